@@ -0,0 +1,422 @@
+/*
+ * Copyright (c) 1999-2014 allette systems pty. ltd.
+ */
+package org.pageseeder.berlioz.bridge.auth;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An authorizer which requires users to have specific roles to access the URIs matching the rules
+ * defined in a file.
+ *
+ * <p>Each line of the file is a rule made of a URI pattern followed by the roles which can access
+ * the matching URIs, separated by commas or spaces; a user needs one of these roles. The role "*"
+ * allows any user who is logged in. Empty lines and lines starting with '#' are ignored.
+ * <pre>
+ * # Administration
+ * /admin/**          admin
+ * /reports/*.html    manager, admin
+ * /reports/public/   *
+ * </pre>
+ *
+ * <p>Each segment of a pattern is either a name, '*' for any segment, '**' for any number of
+ * segments, or '*' followed by a suffix starting with '.' (e.g. "*.html"); a pattern ending with
+ * '/' is the same as one ending with '/**'.
+ *
+ * <p>The patterns are compiled into a trie of segments which is walked once per request, so the
+ * cost of matching depends on the length of the URI rather than the number of rules. When several
+ * rules match, the most specific one applies: the patterns are compared segment by segment and, at
+ * the first difference, a name is more specific than a suffix, which is more specific than '*',
+ * which is more specific than '**'; otherwise the first rule in the file applies. For example,
+ * "/admin/**" is more specific than "/*&#47;*&#47;*.html". Users who are logged in can access the URIs
+ * which do not match any rule.
+ *
+ * <p>The file is checked for changes at most once per interval and reloaded when it is modified;
+ * if the new rules are invalid, the previous ones remain in use.
+ *
+ * @author Christophe Lauret
+ *
+ * @version 0.3.2
+ * @since 0.3.2
+ */
+public final class RuleAuthorizer implements Authorizer {
+
+  /** To know what's going on */
+  private static final Logger LOGGER = LoggerFactory.getLogger(RuleAuthorizer.class);
+
+  /** Default number of ms between checks for changes to the rule file */
+  public static final long DEFAULT_INTERVAL = 5000;
+
+  /** The last modified time recorded when the rule file cannot be accessed */
+  private static final long MISSING = -1;
+
+  /** The role which any user who is logged in has */
+  private static final String ANY_ROLE = "*";
+
+  /** Specificity of a segment matching any number of segments ('**') */
+  private static final int GLOBSTAR = 0;
+
+  /** Specificity of a segment matching any segment ('*') */
+  private static final int STAR = 1;
+
+  /** Specificity of a segment matching a suffix (e.g. "*.html") */
+  private static final int SUFFIX = 2;
+
+  /** Specificity of a segment matching a name */
+  private static final int NAME = 3;
+
+  /** The rule file */
+  private final Path _file;
+
+  /** Number of ms between checks for changes to the rule file */
+  private final long _interval;
+
+  /** When the rule file should be checked next */
+  private final AtomicLong _nextCheck = new AtomicLong();
+
+  /** The compiled rules */
+  private volatile Rules rules;
+
+  /** When the rule file was last modified */
+  private volatile long modified;
+
+  /**
+   * Creates a new authorizer using the rules in the specified file.
+   *
+   * @param file     The rule file
+   * @param interval The number of ms between checks for changes to the rule file
+   *
+   * @throws IOException If the file could not be read
+   * @throws IllegalArgumentException If a rule is invalid
+   */
+  public RuleAuthorizer(Path file, long interval) throws IOException {
+    this._file = file;
+    this._interval = interval;
+    this.modified = Files.getLastModifiedTime(file).toMillis();
+    this.rules = Rules.parse(Files.readAllLines(file, StandardCharsets.UTF_8));
+    this._nextCheck.set(System.currentTimeMillis() + interval);
+    LOGGER.info("Loaded {} authorization rules from {}", this.rules.size(), file);
+  }
+
+  /**
+   * Returns <code>AUTHORIZED</code> if the user is logged in and has one of the roles of the
+   * most specific rule matching the URI.
+   *
+   * @param user A user.
+   * @param uri  The URI the user is trying to access relative to the web application.
+   *
+   * @return <code>AUTHORIZED</code> if the user can access the URI;
+   *         <code>UNAUTHORIZED</code> if the user is <code>null</code>;
+   *         <code>FORBIDDEN</code> if the user does not have the required role.
+   */
+  @Override
+  public AuthorizationResult isUserAuthorized(User user, String uri) {
+    if (user == null) return AuthorizationResult.UNAUTHORIZED;
+    checkForChanges();
+    Rule rule = this.rules.match(uri);
+    if (rule == null || rule.allows(user)) return AuthorizationResult.AUTHORIZED;
+    return AuthorizationResult.FORBIDDEN;
+  }
+
+  /**
+   * Reloads the rules if the file has been modified.
+   *
+   * <p>Errors are only reported once until the file is modified or can be accessed again.
+   *
+   * @return <code>true</code> if the rules were reloaded;
+   *         <code>false</code> if the file was not modified, cannot be accessed or the new rules are invalid.
+   */
+  public synchronized boolean reload() {
+    long modified;
+    try {
+      modified = Files.getLastModifiedTime(this._file).toMillis();
+    } catch (IOException ex) {
+      if (this.modified != MISSING) {
+        this.modified = MISSING;
+        LOGGER.error("Unable to access authorization rules at {}, keeping previous rules: {}", this._file, ex.getMessage());
+      }
+      return false;
+    }
+    if (modified == this.modified) return false;
+    // So that unreadable files and invalid rules are only reported once
+    this.modified = modified;
+    try {
+      List<String> lines = Files.readAllLines(this._file, StandardCharsets.UTF_8);
+      Rules rules = Rules.parse(lines);
+      this.rules = rules;
+      LOGGER.info("Reloaded {} authorization rules from {}", rules.size(), this._file);
+      return true;
+    } catch (IOException | IllegalArgumentException ex) {
+      LOGGER.error("Unable to reload authorization rules from {}, keeping previous rules: {}", this._file, ex.getMessage());
+      return false;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "RuleAuthorizer[file="+this._file+", rules="+this.rules.size()+"]";
+  }
+
+  /**
+   * Reloads the rules if the interval has elapsed since the last check.
+   *
+   * <p>Only one thread checks the file, the others keep using the current rules.
+   */
+  private void checkForChanges() {
+    long now = System.currentTimeMillis();
+    long next = this._nextCheck.get();
+    if (now >= next && this._nextCheck.compareAndSet(next, now + this._interval)) {
+      reload();
+    }
+  }
+
+  /**
+   * Rules compiled into a trie of segments.
+   */
+  static final class Rules {
+
+    /** The root of the trie */
+    private final Node _root;
+
+    /** The number of rules */
+    private final int _size;
+
+    private Rules(Node root, int size) {
+      this._root = root;
+      this._size = size;
+    }
+
+    /**
+     * Compiles the rules.
+     *
+     * @param lines The lines of the rule file
+     *
+     * @return the compiled rules.
+     *
+     * @throws IllegalArgumentException If a rule is invalid.
+     */
+    static Rules parse(List<String> lines) {
+      Node root = new Node(false);
+      int size = 0;
+      for (int i = 0; i < lines.size(); i++) {
+        String line = lines.get(i).trim();
+        if (line.isEmpty() || line.charAt(0) == '#') continue;
+        String[] tokens = line.split("[,\\s]+");
+        if (tokens.length < 2)
+          throw new IllegalArgumentException("Missing roles at line "+(i+1)+": "+line);
+        String pattern = tokens[0];
+        if (pattern.charAt(0) != '/')
+          throw new IllegalArgumentException("Pattern must start with '/' at line "+(i+1)+": "+pattern);
+        if (pattern.endsWith("/")) {
+          pattern = pattern+"**";
+        }
+        Node node = root;
+        String[] segments = pattern.substring(1).split("/", -1);
+        int[] specificity = new int[segments.length];
+        for (int j = 0; j < segments.length; j++) {
+          String segment = segments[j];
+          if (segment.indexOf('*') < 0) {
+            node = child(node._names, segment);
+            specificity[j] = NAME;
+          } else if ("**".equals(segment)) {
+            if (node.globstar == null) {
+              node.globstar = new Node(true);
+            }
+            node = node.globstar;
+            specificity[j] = GLOBSTAR;
+          } else if ("*".equals(segment)) {
+            if (node.star == null) {
+              node.star = new Node(false);
+            }
+            node = node.star;
+            specificity[j] = STAR;
+          } else if (segment.startsWith("*.") && segment.indexOf('*', 1) < 0) {
+            node = child(node._suffixes, segment.substring(1));
+            specificity[j] = SUFFIX;
+          } else
+            throw new IllegalArgumentException("Invalid segment at line "+(i+1)+": "+segment);
+        }
+        if (node.rule == null) {
+          Set<String> roles = new LinkedHashSet<String>(Arrays.asList(tokens).subList(1, tokens.length));
+          node.rule = new Rule(roles, specificity, i+1);
+          size++;
+        }
+      }
+      return new Rules(root, size);
+    }
+
+    /**
+     * Returns the most specific rule matching the URI.
+     *
+     * <p>All the nodes matching the segments read so far are walked at the same time.
+     *
+     * @param uri The URI relative to the web application
+     *
+     * @return the rule or <code>null</code> if no rule matches.
+     */
+    Rule match(String uri) {
+      String path = uri.startsWith("/")? uri.substring(1) : uri;
+      List<Node> active = new ArrayList<Node>();
+      add(active, this._root);
+      int start = 0;
+      while (!active.isEmpty()) {
+        int slash = path.indexOf('/', start);
+        String segment = slash >= 0? path.substring(start, slash) : path.substring(start);
+        List<Node> next = new ArrayList<Node>();
+        for (Node node : active) {
+          add(next, node._names.get(segment));
+          if (!node._suffixes.isEmpty()) {
+            for (int dot = segment.indexOf('.'); dot >= 0; dot = segment.indexOf('.', dot+1)) {
+              add(next, node._suffixes.get(segment.substring(dot)));
+            }
+          }
+          add(next, node.star);
+          if (node._any) {
+            add(next, node);
+          }
+        }
+        active = next;
+        if (slash < 0) break;
+        start = slash+1;
+      }
+      Rule best = null;
+      for (Node node : active) {
+        Rule rule = node.rule;
+        if (rule != null && (best == null || rule.isMoreSpecificThan(best))) {
+          best = rule;
+        }
+      }
+      return best;
+    }
+
+    /**
+     * @return the number of rules.
+     */
+    int size() {
+      return this._size;
+    }
+
+    /**
+     * Adds the node and the nodes matching zero segments after it, if not already there.
+     */
+    private static void add(List<Node> nodes, Node node) {
+      while (node != null && !nodes.contains(node)) {
+        nodes.add(node);
+        node = node.globstar;
+      }
+    }
+
+    /**
+     * Returns the child node for the key, creating it if necessary.
+     */
+    private static Node child(Map<String, Node> children, String key) {
+      Node node = children.get(key);
+      if (node == null) {
+        node = new Node(false);
+        children.put(key, node);
+      }
+      return node;
+    }
+  }
+
+  /**
+   * A node of the trie.
+   */
+  private static final class Node {
+
+    /** Children by segment name */
+    private final Map<String, Node> _names = new HashMap<String, Node>();
+
+    /** Children by segment suffix (e.g. ".html") */
+    private final Map<String, Node> _suffixes = new HashMap<String, Node>();
+
+    /** Whether this node matches any number of segments ('**') */
+    private final boolean _any;
+
+    /** Child matching any segment */
+    private Node star;
+
+    /** Child matching any number of segments */
+    private Node globstar;
+
+    /** The rule for the URIs ending at this node (may be <code>null</code>) */
+    private Rule rule;
+
+    Node(boolean any) {
+      this._any = any;
+    }
+  }
+
+  /**
+   * The roles which can access the URIs matching a pattern.
+   */
+  static final class Rule {
+
+    /** The roles, a user needs one of them */
+    private final Set<String> _roles;
+
+    /** How specific each segment of the pattern is */
+    private final int[] _specificity;
+
+    /** The line of the rule in the file */
+    private final int _line;
+
+    Rule(Set<String> roles, int[] specificity, int line) {
+      this._roles = roles;
+      this._specificity = specificity;
+      this._line = line;
+    }
+
+    /**
+     * @param user The user
+     * @return <code>true</code> if the user has one of the roles.
+     */
+    boolean allows(User user) {
+      if (this._roles.contains(ANY_ROLE)) return true;
+      for (String role : this._roles) {
+        if (user.hasRole(role)) return true;
+      }
+      return false;
+    }
+
+    /**
+     * @return the line of the rule in the file.
+     */
+    int line() {
+      return this._line;
+    }
+
+    /**
+     * Compares the patterns segment by segment, the first difference decides.
+     */
+    private boolean isMoreSpecificThan(Rule rule) {
+      int[] a = this._specificity;
+      int[] b = rule._specificity;
+      int common = Math.min(a.length, b.length);
+      for (int i = 0; i < common; i++) {
+        if (a[i] != b[i]) return a[i] > b[i];
+      }
+      if (a.length != b.length) {
+        // Unless it continues with '**', the longer pattern matches fewer URIs (e.g. "/a/**/b" and "/a/**")
+        int[] longer = a.length > b.length? a : b;
+        return (longer == a) == (longer[common] != GLOBSTAR);
+      }
+      return this._line < rule._line;
+    }
+  }
+
+}
@@ -89,13 +89,18 @@ public final class Sessions {
   }
 
   /**
-   * Returns the user stored in the session.
+   * Returns the user resolved for the request or stored in the session.
+   *
+   * <p>The user resolved by the <code>BridgeFilter</code> is used first so that the session is
+   * not looked up again.
    *
    * @param req the content request.
    * @return the user if any or <code>null</code>.
    */
   public static User getUser(HttpServletRequest req) {
-    return getUser(req.getSession());
+    Object o = req.getAttribute(USER_ATTRIBUTE);
+    if (o instanceof User) return (User)o;
+    return getUser(req.getSession(false));
   }
 
   /**
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 1999-2014 allette systems pty. ltd.
+ */
+package org.pageseeder.berlioz.bridge.cache;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.pageseeder.berlioz.bridge.util.IOUtils;
+
+/**
+ * A manifest listing the keys of the entries to load in a cache when it starts.
+ *
+ * <p>The manifest is a UTF-8 text file with one key per line; empty lines and lines starting
+ * with '#' are ignored.
+ *
+ * @author Christophe Lauret
+ *
+ * @version 0.3.2
+ * @since 0.3.2
+ */
+public final class CacheManifest {
+
+  /** Utility class */
+  private CacheManifest() {
+  }
+
+  /**
+   * Reads the keys listed in the manifest.
+   *
+   * @param manifest The path to the manifest
+   *
+   * @return the keys in the order they appear, or an empty list if the file does not exist.
+   *
+   * @throws IOException If the file could not be read.
+   */
+  public static List<String> read(Path manifest) throws IOException {
+    List<String> keys = new ArrayList<String>();
+    try (BufferedReader reader = Files.newBufferedReader(manifest, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String key = line.trim();
+        if (!key.isEmpty() && key.charAt(0) != '#') {
+          keys.add(key);
+        }
+      }
+    } catch (NoSuchFileException ex) {
+      return Collections.emptyList();
+    }
+    return keys;
+  }
+
+  /**
+   * Writes the keys to the manifest atomically.
+   *
+   * @param manifest The path to the manifest
+   * @param keys     The keys to write
+   *
+   * @throws IOException If the file could not be written.
+   */
+  public static void write(Path manifest, List<String> keys) throws IOException {
+    Path temp = Files.createTempFile(manifest.getParent(), manifest.getFileName().toString(), ".tmp");
+    try {
+      try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+        writer.write("# Most requested entries, written "+new Date());
+        writer.newLine();
+        for (String key : keys) {
+          writer.write(key);
+          writer.newLine();
+        }
+      }
+      IOUtils.move(temp, manifest);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+}
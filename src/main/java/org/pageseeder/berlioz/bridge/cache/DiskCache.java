@@ -0,0 +1,871 @@
+/*
+ * Copyright (c) 1999-2014 allette systems pty. ltd.
+ */
+package org.pageseeder.berlioz.bridge.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.pageseeder.berlioz.bridge.util.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A disk cache bounded in size which evicts the least recently used entries.
+ *
+ * <p>The cache is content-addressable: the data is stored once in a blob named after its
+ * SHA-256 hash and each key points to a blob, so that identical files cached under different
+ * keys share the same blob. A blob is deleted when no key points to it any longer.
+ *
+ * <p>Blobs are stored in two levels of sub-directories derived from the hash, so that
+ * no directory holds too many files.
+ *
+ * <p>The metadata of each entry (hash, size, media type, last modified date and entity tag on
+ * the origin server, fetch time, freshness and last access time) is kept in memory and saved in
+ * a compact index file, so that entries can be served without probing the file system and the
+ * cache does not need to scan the file system at startup. If the index is missing or invalid,
+ * it is rebuilt in the background: files left in the root directory by the original flat cache
+ * are moved to the blob store and blobs which no key points to are deleted.
+ *
+ * <p>A background janitor periodically saves the index and evicts the least recently used
+ * entries when the cache exceeds its maximum size; requests are never blocked by the janitor.
+ * When only access times have changed, the index is saved at most every 15 minutes.
+ *
+ * @author Christophe Lauret
+ *
+ * @version 0.3.2
+ * @since 0.3.2
+ */
+public final class DiskCache {
+
+  /** To know what's going on */
+  private static final Logger LOGGER = LoggerFactory.getLogger(DiskCache.class);
+
+  /** Name of the index file */
+  private static final String INDEX_FILENAME = "index.dat";
+
+  /** To identify the index file */
+  private static final int INDEX_MAGIC = 0x50534443;
+
+  /** Version of the index file format */
+  private static final int INDEX_VERSION = 4;
+
+  /** Name of the directory containing the blobs */
+  private static final String BLOBS_DIRECTORY = "blobs";
+
+  /** Name of the directory containing the temporary files */
+  private static final String TEMP_DIRECTORY = "tmp";
+
+  /** Suffix of temporary files */
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  /** Minimum number of ms between saves of the index when only access times have changed */
+  private static final long ACCESS_SAVE_INTERVAL = 15*60*1000L;
+
+  /** The janitor evicts entries until the cache is below this proportion of its maximum size */
+  private static final double LOW_WATERMARK = 0.9;
+
+  /** The root directory of the cache. */
+  private final Path _root;
+
+  /** The directory containing the blobs. */
+  private final Path _blobDirectory;
+
+  /** The directory containing the temporary files. */
+  private final Path _tempDirectory;
+
+  /** Maximum size of the cache in bytes (0 for unlimited). */
+  private final long _maxSize;
+
+  /** When this cache was created, temporary files older than this were left by a previous run. */
+  private final long _created = System.currentTimeMillis();
+
+  /** Entries in the cache. */
+  private final ConcurrentMap<String, Entry> _entries = new ConcurrentHashMap<String, Entry>();
+
+  /** Blobs by hash, synchronize on this map to link or unlink blobs. */
+  private final Map<String, Blob> _blobs = new HashMap<String, Blob>();
+
+  /** Total size of the blobs. */
+  private final AtomicLong size = new AtomicLong();
+
+  /** Whether the index contains all the files in the cache. */
+  private volatile boolean complete = false;
+
+  /** Whether entries were added, removed or revalidated since the index was saved. */
+  private volatile boolean modified = false;
+
+  /** Whether entries were accessed since the index was saved. */
+  private volatile boolean accessed = false;
+
+  /** When the index was last saved. */
+  private volatile long saved = System.currentTimeMillis();
+
+  /** Runs the background tasks. */
+  private ScheduledExecutorService janitor = null;
+
+  /**
+   * Creates a new disk cache.
+   *
+   * @param root    The root directory of the cache
+   * @param maxSize The maximum size of the cache in bytes (0 for unlimited)
+   */
+  public DiskCache(File root, long maxSize) {
+    this._root = root.toPath();
+    this._blobDirectory = this._root.resolve(BLOBS_DIRECTORY);
+    this._tempDirectory = this._root.resolve(TEMP_DIRECTORY);
+    this._maxSize = maxSize;
+  }
+
+  /**
+   * Opens the cache by loading the index and starting the janitor.
+   *
+   * @param interval The interval in seconds between each run of the janitor.
+   *
+   * @throws IOException If the root directory could not be created.
+   */
+  public synchronized void open(long interval) throws IOException {
+    Files.createDirectories(this._root);
+    this.janitor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "DiskCache-Janitor");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    if (load()) {
+      // Delete blobs committed after the index was last saved
+      this.janitor.execute(new Runnable() {
+        @Override
+        public void run() {
+          sweep();
+        }
+      });
+    } else if (isEmpty(this._root)) {
+      // New cache, nothing to rebuild
+      this.complete = true;
+    } else {
+      this.janitor.execute(new Runnable() {
+        @Override
+        public void run() {
+          rebuild();
+        }
+      });
+    }
+    this.janitor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        cleanup();
+      }
+    }, interval, interval, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Closes the cache by stopping the janitor and saving the index.
+   */
+  public synchronized void close() {
+    if (this.janitor != null) {
+      this.janitor.shutdownNow();
+      try {
+        this.janitor.awaitTermination(5, TimeUnit.SECONDS);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+      this.janitor = null;
+    }
+    save();
+  }
+
+  /**
+   * Returns the file containing the data of the specified entry.
+   *
+   * <p>The file may be shared with other entries and must not be modified.
+   *
+   * @param entry The cache entry
+   *
+   * @return The corresponding blob.
+   */
+  public File file(Entry entry) {
+    return blob(entry.hash()).toFile();
+  }
+
+  /**
+   * Returns the entry for the specified key and records the access.
+   *
+   * @param key The cache key
+   *
+   * @return The entry or <code>null</code> if it is not in the cache.
+   */
+  public Entry get(String key) {
+    Entry entry = this._entries.get(key);
+    if (entry == null && !this.complete) {
+      // The index is being rebuilt, check for a file left by the flat cache
+      entry = migrate(key, this._root.resolve(toName(key)));
+    }
+    if (entry != null) {
+      entry.touch();
+      this.accessed = true;
+    }
+    return entry;
+  }
+
+  /**
+   * Returns the entry for the specified key without recording the access.
+   *
+   * @param key The cache key
+   *
+   * @return The entry or <code>null</code> if it is not in the index.
+   */
+  public Entry peek(String key) {
+    return this._entries.get(key);
+  }
+
+  /**
+   * Returns the entries which were requested the most since the cache was opened.
+   *
+   * @param limit The maximum number of entries to return
+   *
+   * @return the entries in descending order of requests.
+   */
+  public List<Entry> mostRequested(int limit) {
+    List<Entry> entries = new ArrayList<Entry>();
+    for (Entry entry : this._entries.values()) {
+      if (entry.hits() > 0) {
+        entries.add(entry);
+      }
+    }
+    Collections.sort(entries, new Comparator<Entry>() {
+      @Override
+      public int compare(Entry a, Entry b) {
+        return Integer.compare(b.hits(), a.hits());
+      }
+    });
+    return entries.size() > limit? entries.subList(0, limit) : entries;
+  }
+
+  /**
+   * Creates a new temporary file for the specified key.
+   *
+   * <p>The temporary file should be committed or deleted by the caller.
+   *
+   * @param key The cache key
+   *
+   * @return a new empty temporary file.
+   *
+   * @throws IOException If the file could not be created
+   */
+  public Path newTempFile(String key) throws IOException {
+    Files.createDirectories(this._tempDirectory);
+    return Files.createTempFile(this._tempDirectory, toName(key), TEMP_SUFFIX);
+  }
+
+  /**
+   * Stores the content of the temporary file for the specified key and records the entry.
+   *
+   * <p>If a blob with the same content already exists, the key points to it and the temporary
+   * file is left for the caller to delete; otherwise the temporary file becomes the blob.
+   *
+   * @param key      The cache key
+   * @param temp     The temporary file containing the data
+   * @param media    The media type of the data (may be <code>null</code>)
+   * @param modified The last modified date of the data on the origin server (0 if unknown)
+   * @param etag     The entity tag of the data on the origin server (may be <code>null</code>)
+   * @param expires  When the data should be revalidated with the origin server
+   *
+   * @return the new entry.
+   *
+   * @throws IOException If the file could not be read or moved
+   */
+  public Entry commit(String key, Path temp, String media, long modified, String etag, long expires) throws IOException {
+    String hash = hash(temp);
+    long length = Files.size(temp);
+    Path blob = blob(hash);
+    long now = System.currentTimeMillis();
+    Entry entry = new Entry(key, hash, length, media, modified, etag, now, expires, now);
+    synchronized (this._blobs) {
+      if (!this._blobs.containsKey(hash) || !Files.exists(blob)) {
+        Files.createDirectories(blob.getParent());
+        IOUtils.move(temp, blob);
+      }
+      link(hash, length);
+      Entry previous = this._entries.put(key, entry);
+      if (previous != null) {
+        unlink(previous.hash());
+      }
+    }
+    this.modified = true;
+    return entry;
+  }
+
+  /**
+   * Records that the entry was successfully revalidated with the origin server.
+   *
+   * @param entry   The entry
+   * @param expires When the data should be revalidated again
+   */
+  public void refresh(Entry entry, long expires) {
+    entry.expires = expires;
+    this.modified = true;
+  }
+
+  /**
+   * Removes the entry for the specified key and deletes its blob if no other entry points to it.
+   *
+   * @param key The cache key
+   */
+  public void remove(String key) {
+    Entry entry = this._entries.remove(key);
+    if (entry != null) {
+      removed(entry);
+    }
+  }
+
+  /**
+   * Removes the entry for the specified key only if the key still points to that entry.
+   *
+   * <p>Use this method when the entry was found to be invalid so that an entry committed
+   * meanwhile for the same key is kept.
+   *
+   * @param key   The cache key
+   * @param entry The entry to remove
+   *
+   * @return <code>true</code> if the entry was removed;
+   *         <code>false</code> if the key points to another entry or no entry.
+   */
+  public boolean remove(String key, Entry entry) {
+    if (!this._entries.remove(key, entry)) return false;
+    removed(entry);
+    return true;
+  }
+
+  /**
+   * Deletes the blob of an entry which was removed if no other entry points to it.
+   *
+   * @param entry The entry which was removed
+   */
+  private void removed(Entry entry) {
+    synchronized (this._blobs) {
+      unlink(entry.hash());
+    }
+    this.modified = true;
+  }
+
+  /**
+   * Removes the entries for all the keys starting with the specified prefix.
+   *
+   * @param prefix The prefix of the cache keys
+   */
+  public void removeStartingWith(String prefix) {
+    for (String key : this._entries.keySet()) {
+      if (key.startsWith(prefix)) {
+        remove(key);
+      }
+    }
+  }
+
+  /** @return the total size of the blobs in bytes. */
+  public long size() {
+    return this.size.get();
+  }
+
+  /** @return the number of entries in this cache. */
+  public int count() {
+    return this._entries.size();
+  }
+
+  /** @return the number of blobs in this cache. */
+  public int blobs() {
+    synchronized (this._blobs) {
+      return this._blobs.size();
+    }
+  }
+
+  /** @return the maximum size of the cache in bytes (0 for unlimited). */
+  public long maxSize() {
+    return this._maxSize;
+  }
+
+  @Override
+  public String toString() {
+    return "DiskCache[entries="+this._entries.size()+", blobs="+blobs()+", size="+this.size.get()+"/"+this._maxSize+"]";
+  }
+
+  // Janitor tasks
+  // ----------------------------------------------------------------------------------------------
+
+  /**
+   * Evicts entries if necessary and saves the index if it has changed.
+   *
+   * <p>Access times alone do not justify rewriting the index on every run.
+   */
+  void cleanup() {
+    try {
+      evict();
+      if (this.modified || this.accessed && System.currentTimeMillis() - this.saved >= ACCESS_SAVE_INTERVAL) {
+        save();
+      }
+    } catch (RuntimeException ex) {
+      LOGGER.error("Unexpected error while cleaning up cache", ex);
+    }
+  }
+
+  /**
+   * Evicts the least recently used entries until the cache is below the low watermark.
+   *
+   * <p>The size of the cache only decreases when the last entry pointing to a blob is evicted.
+   */
+  void evict() {
+    if (this._maxSize <= 0 || this.size.get() <= this._maxSize) return;
+    long target = (long)(this._maxSize * LOW_WATERMARK);
+    List<Entry> entries = new ArrayList<Entry>(this._entries.values());
+    Collections.sort(entries, new Comparator<Entry>() {
+      @Override
+      public int compare(Entry a, Entry b) {
+        return Long.compare(a.lastAccess(), b.lastAccess());
+      }
+    });
+    int count = 0;
+    for (Entry entry : entries) {
+      if (this.size.get() <= target) break;
+      if (this._entries.remove(entry.key(), entry)) {
+        synchronized (this._blobs) {
+          unlink(entry.hash());
+        }
+        count++;
+      }
+    }
+    this.modified = true;
+    LOGGER.info("Evicted {} entries from cache, now {}", count, this);
+  }
+
+  /**
+   * Rebuilds the index from the files in the cache.
+   *
+   * <p>Files from previous versions of the cache (found directly in the root directory or in
+   * sub-directories derived from the key) are moved to the blob store. Since the keys of
+   * existing blobs are unknown, these blobs are deleted.
+   */
+  void rebuild() {
+    LOGGER.info("Rebuilding cache index for {}", this._root);
+    if (sweep()) {
+      this.complete = true;
+      this.modified = true;
+      LOGGER.info("Rebuilt cache index: {}", this);
+    }
+  }
+
+  /**
+   * Scans the cache to delete old temporary files and blobs which no entry points to, and to
+   * move files left in the root directory by the flat cache to the blob store.
+   *
+   * @return <code>true</code> if the whole cache was scanned.
+   */
+  boolean sweep() {
+    try {
+      Files.walkFileTree(this._root, new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+          String name = file.getFileName().toString();
+          if (name.endsWith(TEMP_SUFFIX)) {
+            // Left over from an interrupted write (recent files may be written to)
+            if (attrs.lastModifiedTime().toMillis() < DiskCache.this._created) {
+              Files.deleteIfExists(file);
+            }
+          } else if (file.startsWith(DiskCache.this._blobDirectory)) {
+            synchronized (DiskCache.this._blobs) {
+              if (!DiskCache.this._blobs.containsKey(name)) {
+                Files.deleteIfExists(file);
+              }
+            }
+          } else if (file.getParent().equals(DiskCache.this._root) && !INDEX_FILENAME.equals(name)) {
+            migrate('/'+name, file);
+          }
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException ex) throws IOException {
+          // Files may be committed or deleted while the cache is scanned
+          if (ex instanceof NoSuchFileException) return FileVisitResult.CONTINUE;
+          throw ex;
+        }
+
+        @Override
+        public FileVisitResult postVisitDirectory(Path dir, IOException ex) throws IOException {
+          if (ex != null && !(ex instanceof NoSuchFileException)) throw ex;
+          return FileVisitResult.CONTINUE;
+        }
+      });
+      return true;
+    } catch (IOException ex) {
+      LOGGER.error("Unable to scan cache directory", ex);
+      return false;
+    }
+  }
+
+  // Index persistence
+  // ----------------------------------------------------------------------------------------------
+
+  /**
+   * Loads the index.
+   *
+   * @return <code>true</code> if the index was loaded;
+   *         <code>false</code> if it is missing or invalid.
+   */
+  private boolean load() {
+    Path index = this._root.resolve(INDEX_FILENAME);
+    if (!Files.exists(index)) return false;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(index)))) {
+      int version = in.readInt() == INDEX_MAGIC? in.readInt() : -1;
+      if (version != INDEX_VERSION) {
+        LOGGER.warn("Ignoring cache index with unsupported format");
+        return false;
+      }
+      int count = in.readInt();
+      synchronized (this._blobs) {
+        for (int i = 0; i < count; i++) {
+          String key = in.readUTF();
+          String hash = in.readUTF();
+          long size = in.readLong();
+          long lastAccess = in.readLong();
+          String media = in.readUTF();
+          String etag = in.readUTF();
+          long expires = in.readLong();
+          long modified = in.readLong();
+          long fetched = in.readLong();
+          Entry entry = new Entry(key, hash, size, media.isEmpty()? null : media, modified, etag.isEmpty()? null : etag, fetched, expires, lastAccess);
+          this._entries.put(key, entry);
+          link(hash, size);
+        }
+      }
+    } catch (EOFException ex) {
+      LOGGER.warn("Ignoring truncated cache index");
+      clearIndex();
+      return false;
+    } catch (IOException ex) {
+      LOGGER.warn("Unable to load cache index", ex);
+      clearIndex();
+      return false;
+    }
+    this.complete = true;
+    LOGGER.info("Loaded cache index: {}", this);
+    return true;
+  }
+
+  /**
+   * Saves the index atomically.
+   */
+  private synchronized void save() {
+    if (!this.complete) return;
+    Path index = this._root.resolve(INDEX_FILENAME);
+    try {
+      Path temp = Files.createTempFile(this._root, INDEX_FILENAME, TEMP_SUFFIX);
+      try {
+        this.modified = false;
+        this.accessed = false;
+        this.saved = System.currentTimeMillis();
+        List<Entry> entries = new ArrayList<Entry>(this._entries.values());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+          out.writeInt(INDEX_MAGIC);
+          out.writeInt(INDEX_VERSION);
+          out.writeInt(entries.size());
+          for (Entry entry : entries) {
+            out.writeUTF(entry.key());
+            out.writeUTF(entry.hash());
+            out.writeLong(entry.size());
+            out.writeLong(entry.lastAccess());
+            out.writeUTF(entry.media() != null? entry.media() : "");
+            out.writeUTF(entry.etag() != null? entry.etag() : "");
+            out.writeLong(entry.expires());
+            out.writeLong(entry.modified());
+            out.writeLong(entry.fetched());
+          }
+        }
+        IOUtils.move(temp, index);
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+    } catch (IOException ex) {
+      this.modified = true;
+      LOGGER.warn("Unable to save cache index", ex);
+    }
+  }
+
+  /**
+   * Clears the entries and blobs loaded from an invalid index.
+   */
+  private void clearIndex() {
+    synchronized (this._blobs) {
+      this._entries.clear();
+      this._blobs.clear();
+      this.size.set(0);
+    }
+  }
+
+  // Private helpers
+  // ----------------------------------------------------------------------------------------------
+
+  /**
+   * Moves a file from the flat cache to the blob store.
+   *
+   * @return the new entry or <code>null</code> if the file does not exist or is already indexed.
+   */
+  private Entry migrate(String key, Path file) {
+    if (!Files.exists(file)) return null;
+    try {
+      if (this._entries.containsKey(key)) {
+        Files.deleteIfExists(file);
+        return null;
+      }
+      // The last modified date on the origin server was kept on the file
+      long modified = Files.getLastModifiedTime(file).toMillis();
+      Entry entry = commit(key, file, null, modified, null, 0);
+      Files.deleteIfExists(file);
+      return entry;
+    } catch (IOException ex) {
+      LOGGER.warn("Unable to migrate cached file for {}", key, ex);
+      return null;
+    }
+  }
+
+  /**
+   * Adds a reference to the blob, must be called while synchronized on the blobs.
+   */
+  private void link(String hash, long length) {
+    Blob blob = this._blobs.get(hash);
+    if (blob == null) {
+      blob = new Blob(length);
+      this._blobs.put(hash, blob);
+      this.size.addAndGet(length);
+    }
+    blob.references++;
+  }
+
+  /**
+   * Removes a reference to the blob and deletes it if it was the last one, must be called
+   * while synchronized on the blobs.
+   */
+  private void unlink(String hash) {
+    Blob blob = this._blobs.get(hash);
+    if (blob == null || --blob.references > 0) return;
+    this._blobs.remove(hash);
+    this.size.addAndGet(-blob._size);
+    try {
+      Files.deleteIfExists(blob(hash));
+    } catch (IOException ex) {
+      LOGGER.warn("Unable to delete cached blob {}", hash, ex);
+    }
+  }
+
+  /**
+   * Returns the path of the blob with the specified hash.
+   *
+   * <p>The blob is stored in two levels of directories derived from the hash.
+   */
+  private Path blob(String hash) {
+    return this._blobDirectory.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash);
+  }
+
+  /**
+   * Returns a file name for the specified key.
+   */
+  private static String toName(String key) {
+    String name = key.startsWith("/")? key.substring(1) : key;
+    return name.replace('/', '_').replace('\\', '_');
+  }
+
+  /**
+   * Returns the SHA-256 hash of the file content as a hexadecimal string.
+   */
+  static String hash(Path file) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException("SHA-256 is required by the Java platform", ex);
+    }
+    try (InputStream in = Files.newInputStream(file)) {
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        digest.update(buffer, 0, read);
+      }
+    }
+    StringBuilder hex = new StringBuilder(64);
+    for (byte b : digest.digest()) {
+      hex.append(toHex(b & 0xff));
+    }
+    return hex.toString();
+  }
+
+  /**
+   * Indicates whether the directory is empty.
+   */
+  private static boolean isEmpty(Path dir) throws IOException {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+      return !files.iterator().hasNext();
+    }
+  }
+
+  private static String toHex(int b) {
+    return b < 0x10? "0"+Integer.toHexString(b) : Integer.toHexString(b);
+  }
+
+  /**
+   * A blob and the number of entries pointing to it.
+   */
+  private static final class Blob {
+
+    /** The size of the blob */
+    private final long _size;
+
+    /** Number of entries pointing to this blob */
+    private int references = 0;
+
+    Blob(long size) {
+      this._size = size;
+    }
+  }
+
+  /**
+   * An entry in the disk cache.
+   */
+  public static final class Entry {
+
+    /** The cache key */
+    private final String _key;
+
+    /** The SHA-256 hash of the content */
+    private final String _hash;
+
+    /** The size of the file */
+    private final long _size;
+
+    /** The media type (may be <code>null</code>) */
+    private final String _media;
+
+    /** The last modified date on the origin server (0 if unknown) */
+    private final long _modified;
+
+    /** The entity tag on the origin server (may be <code>null</code>) */
+    private final String _etag;
+
+    /** When the data was fetched from the origin server (0 if unknown) */
+    private final long _fetched;
+
+    /** When the entry was last accessed */
+    private volatile long lastAccess;
+
+    /** When the entry should be revalidated with the origin server */
+    private volatile long expires;
+
+    /** Approximate number of requests since the cache was opened */
+    private volatile int hits;
+
+    Entry(String key, String hash, long size, String media, long modified, String etag, long fetched,
+        long expires, long lastAccess) {
+      this._key = key;
+      this._hash = hash;
+      this._size = size;
+      this._media = media;
+      this._modified = modified;
+      this._etag = etag;
+      this._fetched = fetched;
+      this.expires = expires;
+      this.lastAccess = lastAccess;
+    }
+
+    /** @return the cache key */
+    public String key() {
+      return this._key;
+    }
+
+    /** @return the SHA-256 hash of the content as a hexadecimal string, shared by identical files */
+    public String hash() {
+      return this._hash;
+    }
+
+    /** @return the size of the file */
+    public long size() {
+      return this._size;
+    }
+
+    /** @return the media type of the file (may be <code>null</code>) */
+    public String media() {
+      return this._media;
+    }
+
+    /** @return the last modified date on the origin server (0 if unknown) */
+    public long modified() {
+      return this._modified;
+    }
+
+    /** @return the entity tag on the origin server (may be <code>null</code>) */
+    public String etag() {
+      return this._etag;
+    }
+
+    /** @return when the data was fetched from the origin server (0 if unknown) */
+    public long fetched() {
+      return this._fetched;
+    }
+
+    /** @return when the entry should be revalidated with the origin server */
+    public long expires() {
+      return this.expires;
+    }
+
+    /**
+     * @param now The current time
+     * @return <code>true</code> if the entry does not need to be revalidated yet.
+     */
+    public boolean isFresh(long now) {
+      return now < this.expires;
+    }
+
+    /** @return the approximate number of requests since the cache was opened */
+    public int hits() {
+      return this.hits;
+    }
+
+    /** @return when the entry was last accessed */
+    public long lastAccess() {
+      return this.lastAccess;
+    }
+
+    /** Records an access to this entry */
+    void touch() {
+      this.lastAccess = System.currentTimeMillis();
+      this.hits++;
+    }
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 1999-2014 allette systems pty. ltd.
+ */
+package org.pageseeder.berlioz.bridge.cache;
+
+import java.util.Arrays;
+
+/**
+ * A compact and approximate count of how often keys have been requested recently.
+ *
+ * <p>This is a count-min sketch: each key is hashed into one counter on each of the rows and
+ * the estimated frequency is the smallest of those counters. Counters are capped and are all
+ * halved periodically so that the frequencies reflect recent popularity rather than all-time
+ * popularity.
+ *
+ * <p>This class is not thread-safe.
+ *
+ * @author Christophe Lauret
+ *
+ * @version 0.3.2
+ * @since 0.3.2
+ */
+final class FrequencySketch {
+
+  /** Number of rows (and hash functions). */
+  private static final int DEPTH = 4;
+
+  /** Maximum value of a counter. */
+  private static final int MAX_COUNT = 15;
+
+  /** Seeds used to derive each hash function. */
+  private static final int[] SEEDS = new int[] { 0x97cb3127, 0xb492b66f, 0x9ae16a3b, 0x0f82a5e1 };
+
+  /** The counters for each row. */
+  private final int[][] _table;
+
+  /** Mask to apply to the hash to find the index within a row. */
+  private final int _mask;
+
+  /** Number of increments after which counters are halved. */
+  private final int _sampleSize;
+
+  /** Number of increments since the last reset. */
+  private int additions = 0;
+
+  /**
+   * Creates a new sketch.
+   *
+   * @param capacity The expected number of distinct keys to track.
+   */
+  public FrequencySketch(int capacity) {
+    int width = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+    this._table = new int[DEPTH][width];
+    this._mask = width - 1;
+    this._sampleSize = width * 10;
+  }
+
+  /**
+   * Records one more occurrence of the specified key.
+   *
+   * @param key The key
+   */
+  public void increment(Object key) {
+    int hash = spread(key.hashCode());
+    boolean added = false;
+    for (int i = 0; i < DEPTH; i++) {
+      int index = indexOf(hash, i);
+      if (this._table[i][index] < MAX_COUNT) {
+        this._table[i][index]++;
+        added = true;
+      }
+    }
+    if (added && ++this.additions >= this._sampleSize) {
+      reset();
+    }
+  }
+
+  /**
+   * Returns the estimated number of recent occurrences of the specified key.
+   *
+   * @param key The key
+   *
+   * @return the estimated frequency (between 0 and 15)
+   */
+  public int frequency(Object key) {
+    int hash = spread(key.hashCode());
+    int frequency = MAX_COUNT;
+    for (int i = 0; i < DEPTH; i++) {
+      frequency = Math.min(frequency, this._table[i][indexOf(hash, i)]);
+    }
+    return frequency;
+  }
+
+  /**
+   * Forgets about all recorded occurrences.
+   */
+  public void clear() {
+    for (int[] row : this._table) {
+      Arrays.fill(row, 0);
+    }
+    this.additions = 0;
+  }
+
+  // Private helpers
+  // ----------------------------------------------------------------------------------------------
+
+  /**
+   * Halves all counters so that older occurrences weigh less than recent ones.
+   */
+  private void reset() {
+    for (int[] row : this._table) {
+      for (int j = 0; j < row.length; j++) {
+        row[j] = row[j] >>> 1;
+      }
+    }
+    this.additions = this.additions >>> 1;
+  }
+
+  private int indexOf(int hash, int row) {
+    int h = (hash ^ SEEDS[row]) * SEEDS[row];
+    h += h >>> 16;
+    return h & this._mask;
+  }
+
+  private static int spread(int hash) {
+    int h = hash * 0x9e3779b9;
+    return h ^ (h >>> 16);
+  }
+
+}
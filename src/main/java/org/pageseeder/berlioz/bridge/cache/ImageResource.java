@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 1999-2014 allette systems pty. ltd.
+ */
+package org.pageseeder.berlioz.bridge.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.pageseeder.berlioz.bridge.util.IOUtils;
+
+/**
+ * An immutable image resource.
+ *
+ * <p>The data can be held on the heap or in a direct buffer outside of the heap; the buffer is
+ * never exposed so that the same instance can be written concurrently.
+ *
+ * @author Christophe Lauret
+ *
+ * @version 0.3.2
+ * @since 0.3.2
+ */
+public final class ImageResource {
+
+  private final long _modified;
+  private final int _length;
+  private final String _media;
+  private final ByteBuffer _data;
+
+  /**
+   * Creates a new resource backed by the specified byte array.
+   *
+   * @param modified The last modified date
+   * @param length   The length of the resource
+   * @param media    The media type
+   * @param data     The content of the resource
+   */
+  public ImageResource(long modified, int length, String media, byte[] data) {
+    this(modified, length, media, ByteBuffer.wrap(data));
+  }
+
+  /**
+   * Creates a new resource backed by the specified buffer.
+   */
+  private ImageResource(long modified, int length, String media, ByteBuffer data) {
+    this._modified = modified;
+    this._length = length;
+    this._media = media;
+    this._data = data;
+  }
+
+  /** @return the last modified date */
+  public long modified() {
+    return this._modified;
+  }
+
+  /** @return the length of resource */
+  public int length() {
+    return this._length;
+  }
+
+  /** @return the media type */
+  public String media() {
+    return this._media;
+  }
+
+  /** @return <code>true</code> if the data is held outside of the heap. */
+  public boolean isOffHeap() {
+    return this._data.isDirect();
+  }
+
+  /**
+   * Returns a copy of this resource with its data stored outside the heap.
+   *
+   * @return a new resource using a direct buffer or this resource if already off-heap.
+   */
+  public ImageResource toOffHeap() {
+    if (this._data.isDirect()) return this;
+    ByteBuffer direct = ByteBuffer.allocateDirect(this._data.remaining());
+    direct.put(this._data.duplicate());
+    direct.flip();
+    return new ImageResource(this._modified, this._length, this._media, direct.asReadOnlyBuffer());
+  }
+
+  /**
+   * Loads the resource from the specified file.
+   *
+   * <p>The file is read through a file channel directly into the buffer of the resource so that
+   * no intermediate array is allocated.
+   *
+   * @param file    The file to load
+   * @param media   The media type of the resource
+   * @param offHeap <code>true</code> to store the data outside the heap
+   *
+   * @return the corresponding resource
+   *
+   * @throws IOException If an error occurs while reading the file
+   * @throws UnsupportedOperationException If the file size is larger than MAX_INTEGER
+   */
+  public static ImageResource load(File file, String media, boolean offHeap) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE)
+        throw new UnsupportedOperationException("File too large");
+      int length = (int)size;
+      ByteBuffer data = offHeap? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+      while (data.hasRemaining()) {
+        if (channel.read(data) < 0) throw new IOException("Unexpected end of file "+file.getName());
+      }
+      data.flip();
+      return new ImageResource(file.lastModified(), length, media, offHeap? data.asReadOnlyBuffer() : data);
+    }
+  }
+
+  /** Write the data the output stream */
+  public void writeTo(OutputStream out) throws IOException {
+    IOUtils.copy(this._data.duplicate(), out);
+  }
+
+  /**
+   * Write the specified region of the data the output stream.
+   *
+   * @param out    The output stream
+   * @param offset The position of the first byte to write
+   * @param count  The number of bytes to write
+   *
+   * @throws IOException If an error occurs while writing to the output stream
+   * @throws IndexOutOfBoundsException If the region is outside of the data
+   */
+  public void writeTo(OutputStream out, long offset, long count) throws IOException {
+    if (offset < 0 || count < 0 || offset + count > this._data.limit())
+      throw new IndexOutOfBoundsException("Invalid region "+offset+"+"+count);
+    ByteBuffer region = this._data.duplicate();
+    region.position((int)offset);
+    region.limit((int)(offset + count));
+    IOUtils.copy(region, out);
+  }
+
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 1999-2014 allette systems pty. ltd.
+ */
+package org.pageseeder.berlioz.bridge.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded in-memory cache of image resources sitting in front of the disk cache.
+ *
+ * <p>The cache is bounded by the total number of bytes of the resources it holds. Resources
+ * larger than the off-heap threshold are copied into direct buffers outside of the heap.
+ *
+ * <p>When the cache is full, the least recently used entries are candidates for eviction, but
+ * a new resource is only admitted if it has been requested more often recently than the entries
+ * it would replace. This prevents images that are requested only once from pushing out the
+ * images that are requested all the time.
+ *
+ * @author Christophe Lauret
+ *
+ * @version 0.3.2
+ * @since 0.3.2
+ */
+public final class MemoryCache {
+
+  /** Maximum number of bytes this cache can hold. */
+  private final long _capacity;
+
+  /** Size in bytes above which resources are stored off-heap. */
+  private final int _offHeapThreshold;
+
+  /** The entries in access order (least recently used first). */
+  private final LinkedHashMap<String, ImageResource> _entries;
+
+  /** Estimates how often keys are requested. */
+  private final FrequencySketch _sketch;
+
+  /** The number of bytes currently held. */
+  private long size = 0;
+
+  private long hits = 0;
+  private long misses = 0;
+  private long rejections = 0;
+  private long evictions = 0;
+
+  /**
+   * Creates a new memory cache.
+   *
+   * @param capacity         The maximum number of bytes this cache can hold.
+   * @param offHeapThreshold The size in bytes above which resources are stored off-heap.
+   */
+  public MemoryCache(long capacity, int offHeapThreshold) {
+    this._capacity = capacity;
+    this._offHeapThreshold = offHeapThreshold;
+    this._entries = new LinkedHashMap<String, ImageResource>(64, .75f, true);
+    // Assume an average image of 4KB to size the sketch
+    this._sketch = new FrequencySketch((int)Math.min(capacity / 4096, 1 << 20));
+  }
+
+  /**
+   * Returns the resource for the specified key.
+   *
+   * @param key The cache key
+   *
+   * @return the resource or <code>null</code> if not in the cache.
+   */
+  public synchronized ImageResource get(String key) {
+    this._sketch.increment(key);
+    ImageResource resource = this._entries.get(key);
+    if (resource != null) {
+      this.hits++;
+    } else {
+      this.misses++;
+    }
+    return resource;
+  }
+
+  /**
+   * Offers a resource to the cache.
+   *
+   * <p>The resource is only admitted if it fits in the cache and if it is requested more often
+   * than the entries that need to be evicted to make room for it.
+   *
+   * @param key      The cache key
+   * @param resource The resource to cache
+   *
+   * @return <code>true</code> if the resource was admitted;
+   *         <code>false</code> otherwise.
+   */
+  public boolean put(String key, ImageResource resource) {
+    if (resource.length() > this._capacity) return false;
+    // Copy the data outside the synchronized block
+    ImageResource entry = resource.length() >= this._offHeapThreshold? resource.toOffHeap() : resource;
+    synchronized (this) {
+      // Decide admission first so that a rejected replacement leaves the current entry in place
+      List<String> victims = selectVictims(key, entry.length());
+      if (victims == null) {
+        this.rejections++;
+        return false;
+      }
+      for (String victim : victims) {
+        this.size -= this._entries.remove(victim).length();
+        this.evictions++;
+      }
+
+      ImageResource previous = this._entries.put(key, entry);
+      if (previous != null) {
+        this.size -= previous.length();
+      }
+      this.size += entry.length();
+    }
+    return true;
+  }
+
+  /**
+   * Indicates whether a resource of the specified length would currently be admitted.
+   *
+   * <p>This method can be used to avoid loading a resource that would be rejected anyway.
+   *
+   * @param key    The cache key
+   * @param length The length of the resource
+   *
+   * @return <code>true</code> if the resource would be admitted;
+   *         <code>false</code> otherwise.
+   */
+  public synchronized boolean admits(String key, long length) {
+    if (length > this._capacity) return false;
+    if (this._entries.containsKey(key)) return true;
+    return selectVictims(key, length) != null;
+  }
+
+  /**
+   * Removes the resource for the specified key.
+   *
+   * @param key The cache key
+   */
+  public synchronized void remove(String key) {
+    ImageResource removed = this._entries.remove(key);
+    if (removed != null) {
+      this.size -= removed.length();
+    }
+  }
+
+  /**
+   * Removes all the resources from this cache.
+   */
+  public synchronized void clear() {
+    this._entries.clear();
+    this._sketch.clear();
+    this.size = 0;
+  }
+
+  /** @return the size in bytes above which resources are stored off-heap. */
+  public int offHeapThreshold() {
+    return this._offHeapThreshold;
+  }
+
+  /** @return the maximum number of bytes this cache can hold. */
+  public long capacity() {
+    return this._capacity;
+  }
+
+  /** @return the number of bytes currently held by this cache. */
+  public synchronized long size() {
+    return this.size;
+  }
+
+  /** @return the number of entries in this cache. */
+  public synchronized int count() {
+    return this._entries.size();
+  }
+
+  /**
+   * Selects the least recently used entries to evict in order to make room for a new entry.
+   *
+   * <p>The current entry for the key, if any, is replaced rather than evicted.
+   *
+   * @param key    The key of the new entry
+   * @param length The length of the new entry
+   *
+   * @return the list of keys to evict or <code>null</code> if the entry should not be admitted.
+   */
+  private List<String> selectVictims(String key, long length) {
+    ImageResource current = this._entries.get(key);
+    long required = this.size - (current != null? current.length() : 0) + length - this._capacity;
+    if (required <= 0) return Collections.emptyList();
+    int frequency = this._sketch.frequency(key);
+    List<String> victims = new ArrayList<String>();
+    Iterator<Map.Entry<String, ImageResource>> i = this._entries.entrySet().iterator();
+    while (required > 0 && i.hasNext()) {
+      Map.Entry<String, ImageResource> victim = i.next();
+      if (victim.getKey().equals(key)) continue;
+      if (this._sketch.frequency(victim.getKey()) >= frequency) return null;
+      victims.add(victim.getKey());
+      required -= victim.getValue().length();
+    }
+    return victims;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "MemoryCache[entries="+this._entries.size()+", size="+this.size+"/"+this._capacity
+        +", hits="+this.hits+", misses="+this.misses+", rejections="+this.rejections
+        +", evictions="+this.evictions+"]";
+  }
+}
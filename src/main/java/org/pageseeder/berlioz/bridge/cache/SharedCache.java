@@ -0,0 +1,754 @@
+/*
+ * Copyright (c) 1999-2014 allette systems pty. ltd.
+ */
+package org.pageseeder.berlioz.bridge.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.pageseeder.berlioz.bridge.util.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A cache directory shared by several processes on the same host, for example several web
+ * applications fetching the same resources from PageSeeder.
+ *
+ * <p>Like the {@link DiskCache}, the data is stored once in a blob named after its SHA-256 hash.
+ * Each key has a small metadata file named after the hash of the key which points to a blob.
+ * There is no index: every file is written to a temporary file first and then moved atomically
+ * in place, so that other processes only ever see complete files.
+ *
+ * <p>Processes coordinate using {@link FileChannel} locks on a small lock file for each key, so
+ * that only one process fetches a resource while the others wait and use its copy; since each key
+ * has its own lock, fetching a resource never delays the others.
+ *
+ * <p>File locks are held on behalf of the whole JVM and closing any channel to a file releases all
+ * of them, so each lock file is only opened once per JVM and closed when no thread uses it.
+ *
+ * <p>A background janitor evicts the least recently used keys when the blobs exceed the maximum
+ * size and deletes the blobs which no key points to; only one process runs it at a time.
+ *
+ * @author Christophe Lauret
+ *
+ * @version 0.3.2
+ * @since 0.3.2
+ */
+public final class SharedCache {
+
+  /** To know what's going on */
+  private static final Logger LOGGER = LoggerFactory.getLogger(SharedCache.class);
+
+  /** The lock files used in this JVM by path */
+  private static final Map<Path, LockFile> LOCK_FILES = new HashMap<Path, LockFile>();
+
+  /** Name of the directory containing the blobs */
+  private static final String BLOBS_DIRECTORY = "blobs";
+
+  /** Name of the directory containing the metadata of each key */
+  private static final String KEYS_DIRECTORY = "keys";
+
+  /** Name of the directory containing the temporary files */
+  private static final String TEMP_DIRECTORY = "tmp";
+
+  /** Name of the directory containing the lock file of each key */
+  private static final String LOCKS_DIRECTORY = "locks";
+
+  /** Name of the lock file of the janitor */
+  private static final String LOCK_FILENAME = "cache.lock";
+
+  /** Suffix of temporary files */
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  /** To identify metadata files */
+  private static final int META_MAGIC = 0x50535343;
+
+  /** Version of the metadata file format */
+  private static final int META_VERSION = 1;
+
+  /** Number of ms between attempts to acquire a lock held by another process */
+  private static final long LOCK_POLL_INTERVAL = 20;
+
+  /** Number of ms after which blobs, temporary files and lock files which are not used are deleted */
+  private static final long ORPHAN_AGE = 3600*1000;
+
+  /** The janitor evicts keys until the cache is below this proportion of its maximum size */
+  private static final double LOW_WATERMARK = 0.9;
+
+  /** The root directory of the cache. */
+  private final Path _root;
+
+  /** The directory containing the blobs. */
+  private final Path _blobDirectory;
+
+  /** The directory containing the metadata of each key. */
+  private final Path _keyDirectory;
+
+  /** The directory containing the temporary files. */
+  private final Path _tempDirectory;
+
+  /** The directory containing the lock file of each key. */
+  private final Path _lockDirectory;
+
+  /** Maximum size of the blobs in bytes (0 for unlimited). */
+  private final long _maxSize;
+
+  /** Runs the background tasks. */
+  private ScheduledExecutorService janitor = null;
+
+  /**
+   * Creates a new shared cache.
+   *
+   * @param root    The root directory of the cache
+   * @param maxSize The maximum size of the blobs in bytes (0 for unlimited)
+   */
+  public SharedCache(File root, long maxSize) {
+    this._root = root.toPath();
+    this._blobDirectory = this._root.resolve(BLOBS_DIRECTORY);
+    this._keyDirectory = this._root.resolve(KEYS_DIRECTORY);
+    this._tempDirectory = this._root.resolve(TEMP_DIRECTORY);
+    this._lockDirectory = this._root.resolve(LOCKS_DIRECTORY);
+    this._maxSize = maxSize;
+  }
+
+  /**
+   * Opens the cache and starts the janitor.
+   *
+   * @param interval The interval in seconds between each run of the janitor.
+   *
+   * @throws IOException If the directories could not be created.
+   */
+  public synchronized void open(long interval) throws IOException {
+    Files.createDirectories(this._blobDirectory);
+    Files.createDirectories(this._keyDirectory);
+    Files.createDirectories(this._tempDirectory);
+    Files.createDirectories(this._lockDirectory);
+    this.janitor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "SharedCache-Janitor");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    this.janitor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        trim();
+      }
+    }, interval, interval, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Closes the cache by stopping the janitor.
+   */
+  public synchronized void close() {
+    if (this.janitor != null) {
+      this.janitor.shutdownNow();
+      this.janitor = null;
+    }
+  }
+
+  /**
+   * Acquires the lock for the specified key, waiting if another thread or process holds it.
+   *
+   * <p>The lock must be closed to be released. Since it only applies to this key, it can be held
+   * while the resource is fetched.
+   *
+   * @param key     The cache key
+   * @param timeout The maximum number of ms to wait
+   *
+   * @return the lock or <code>null</code> if it could not be acquired in time.
+   *
+   * @throws IOException If the lock file could not be locked
+   */
+  public Lock lock(String key, long timeout) throws IOException {
+    String hash = hash(key);
+    return lock(this._lockDirectory.resolve(hash.substring(0, 2)).resolve(hash), timeout);
+  }
+
+  /**
+   * Returns the item for the specified key.
+   *
+   * @param key The cache key
+   *
+   * @return The item or <code>null</code> if it is not in the cache.
+   */
+  public Item get(String key) {
+    Path meta = meta(key);
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(meta)))) {
+      if (in.readInt() != META_MAGIC || in.readInt() != META_VERSION) return null;
+      if (!key.equals(in.readUTF())) return null;
+      String hash = in.readUTF();
+      long size = in.readLong();
+      String media = in.readUTF();
+      long modified = in.readLong();
+      String etag = in.readUTF();
+      long expires = in.readLong();
+      Path blob = blob(hash);
+      if (!Files.exists(blob)) return null;
+      // Record the access for the janitor
+      Files.setLastModifiedTime(meta, FileTime.fromMillis(System.currentTimeMillis()));
+      return new Item(key, hash, size, media.isEmpty()? null : media, modified, etag.isEmpty()? null : etag, expires, blob);
+    } catch (NoSuchFileException ex) {
+      return null;
+    } catch (IOException ex) {
+      LOGGER.debug("Unable to read shared cache item for {}: {}", key, ex.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Stores the data for the specified key.
+   *
+   * <p>The data is hard-linked when possible, otherwise copied.
+   *
+   * @param key      The cache key
+   * @param data     The file containing the data, which must not be modified
+   * @param hash     The SHA-256 hash of the data
+   * @param media    The media type of the data (may be <code>null</code>)
+   * @param modified The last modified date of the data on the origin server (0 if unknown)
+   * @param etag     The entity tag of the data on the origin server (may be <code>null</code>)
+   * @param expires  When the data should be revalidated with the origin server
+   *
+   * @throws IOException If the data or metadata could not be written
+   */
+  public void put(String key, File data, String hash, String media, long modified, String etag, long expires)
+      throws IOException {
+    Path blob = blob(hash);
+    if (!Files.exists(blob)) {
+      Path temp = newTempFile();
+      try {
+        copy(data.toPath(), temp);
+        Files.createDirectories(blob.getParent());
+        IOUtils.move(temp, blob);
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+    }
+    // So that the janitor does not delete the blob before the key points to it
+    Files.setLastModifiedTime(blob, FileTime.fromMillis(System.currentTimeMillis()));
+
+    Path meta = meta(key);
+    Path temp = newTempFile();
+    try {
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+        out.writeInt(META_MAGIC);
+        out.writeInt(META_VERSION);
+        out.writeUTF(key);
+        out.writeUTF(hash);
+        out.writeLong(Files.size(blob));
+        out.writeUTF(media != null? media : "");
+        out.writeLong(modified);
+        out.writeUTF(etag != null? etag : "");
+        out.writeLong(expires);
+      }
+      Files.createDirectories(meta.getParent());
+      IOUtils.move(temp, meta);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /**
+   * Copies the data of the item to the specified file, hard-linking it when possible.
+   *
+   * @param item   The item
+   * @param target The file to copy to, it is replaced if it exists
+   *
+   * @throws IOException If the data could not be copied
+   */
+  public void copyTo(Item item, Path target) throws IOException {
+    copy(item._blob, target);
+  }
+
+  /**
+   * Removes the specified key, its blob is deleted later if no other key points to it.
+   *
+   * @param key The cache key
+   */
+  public void remove(String key) {
+    try {
+      Files.deleteIfExists(meta(key));
+    } catch (IOException ex) {
+      LOGGER.debug("Unable to remove shared cache item for {}: {}", key, ex.getMessage());
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "SharedCache[root="+this._root+", max="+this._maxSize+"]";
+  }
+
+  /**
+   * Evicts the least recently used keys when the cache is too large and deletes the blobs which
+   * no key points to, old temporary files and the lock files which are no longer used.
+   *
+   * <p>Does nothing if another process is already running the janitor.
+   */
+  void trim() {
+    try (Lock lock = lock(this._root.resolve(LOCK_FILENAME), 0)) {
+      if (lock == null) return;
+      final long now = System.currentTimeMillis();
+
+      // List the keys and the blobs they point to
+      final List<Path> metas = new ArrayList<Path>();
+      final Map<Path, FileTime> accessed = new HashMap<Path, FileTime>();
+      final Map<String, Integer> references = new HashMap<String, Integer>();
+      final Map<Path, String> hashes = new HashMap<Path, String>();
+      Files.walkFileTree(this._keyDirectory, new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+          String hash = readHash(file);
+          if (hash != null) {
+            metas.add(file);
+            accessed.put(file, attrs.lastModifiedTime());
+            hashes.put(file, hash);
+            Integer count = references.get(hash);
+            references.put(hash, count == null? 1 : count+1);
+          }
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException ex) {
+          return FileVisitResult.CONTINUE;
+        }
+      });
+
+      // Measure the blobs which keys point to, the others are deleted below
+      final Map<String, Long> sizes = new HashMap<String, Long>();
+      long total = 0;
+      for (Path blob : list(this._blobDirectory)) {
+        String hash = blob.getFileName().toString();
+        if (references.containsKey(hash)) {
+          long size = Files.size(blob);
+          sizes.put(hash, size);
+          total += size;
+        }
+      }
+
+      // Evict the least recently used keys
+      if (this._maxSize > 0 && total > this._maxSize) {
+        Collections.sort(metas, new Comparator<Path>() {
+          @Override
+          public int compare(Path a, Path b) {
+            return accessed.get(a).compareTo(accessed.get(b));
+          }
+        });
+        long target = (long)(this._maxSize * LOW_WATERMARK);
+        int evicted = 0;
+        for (Path meta : metas) {
+          if (total <= target) break;
+          Files.deleteIfExists(meta);
+          evicted++;
+          String hash = hashes.get(meta);
+          int count = references.get(hash) - 1;
+          references.put(hash, count);
+          if (count == 0 && sizes.containsKey(hash)) {
+            total -= sizes.get(hash);
+          }
+        }
+        LOGGER.info("Evicted {} items from {}", evicted, this);
+      }
+
+      // Delete the blobs which no key points to, old temporary files and unused lock files
+      for (Path blob : list(this._blobDirectory)) {
+        Integer count = references.get(blob.getFileName().toString());
+        if ((count == null || count == 0) && isOlderThan(blob, now - ORPHAN_AGE)) {
+          Files.deleteIfExists(blob);
+        }
+      }
+      for (Path temp : list(this._tempDirectory)) {
+        if (isOlderThan(temp, now - ORPHAN_AGE)) {
+          Files.deleteIfExists(temp);
+        }
+      }
+      for (Path file : list(this._lockDirectory)) {
+        if (isOlderThan(file, now - ORPHAN_AGE)) {
+          deleteLockFile(file);
+        }
+      }
+    } catch (IOException ex) {
+      LOGGER.warn("Unable to trim shared cache", ex);
+    }
+  }
+
+  // Private helpers
+  // ----------------------------------------------------------------------------------------------
+
+  /**
+   * Acquires the lock on the specified file, waiting if another thread or process holds it.
+   *
+   * <p>Threads of this JVM wait for each other using the lock of the file in this JVM, so that only
+   * one of them uses the file lock; a thread which gives up never closes the file.
+   */
+  private static Lock lock(Path file, long timeout) throws IOException {
+    long deadline = System.currentTimeMillis() + timeout;
+    Files.createDirectories(file.getParent());
+    LockFile lockFile = LockFile.acquire(file.getParent().toRealPath().resolve(file.getFileName()));
+    boolean local = false;
+    boolean locked = false;
+    try {
+      local = lockFile._local.tryLock(timeout, TimeUnit.MILLISECONDS);
+      if (!local) return null;
+      while (true) {
+        // An interrupted thread would close the channel and release the lock of the whole JVM
+        if (Thread.interrupted()) throw new InterruptedException();
+        try {
+          FileChannel channel = lockFile.channel();
+          FileLock lock = channel.tryLock();
+          if (lock != null) {
+            // So that the janitor does not delete the lock file while it is used; the time is
+            // updated by writing to the channel since opening the file again would release the lock
+            channel.write(ByteBuffer.wrap(new byte[1]), 0);
+            locked = true;
+            return new Lock(lockFile, lock);
+          }
+        } catch (OverlappingFileLockException ex) {
+          // Held by another copy of this class in the JVM (e.g. another web application)
+        }
+        if (System.currentTimeMillis() >= deadline) return null;
+        Thread.sleep(LOCK_POLL_INTERVAL);
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for shared cache lock");
+    } finally {
+      if (!locked) {
+        if (local) {
+          lockFile._local.unlock();
+        }
+        lockFile.release();
+      }
+    }
+  }
+
+  /**
+   * Deletes the lock file of a key unless it is locked.
+   *
+   * <p>A process which opened the file just before it is deleted may still lock it, at worst the
+   * resource is then fetched by two processes.
+   */
+  private static void deleteLockFile(Path file) {
+    try (Lock lock = lock(file, 0)) {
+      if (lock != null) {
+        Files.deleteIfExists(file);
+      }
+    } catch (IOException ex) {
+      LOGGER.debug("Unable to delete shared cache lock file {}: {}", file, ex.getMessage());
+    }
+  }
+
+  /**
+   * Creates a new temporary file.
+   */
+  private Path newTempFile() throws IOException {
+    Files.createDirectories(this._tempDirectory);
+    return Files.createTempFile(this._tempDirectory, "shared", TEMP_SUFFIX);
+  }
+
+  /**
+   * Returns the path of the blob with the specified hash.
+   */
+  private Path blob(String hash) {
+    return this._blobDirectory.resolve(hash.substring(0, 2)).resolve(hash);
+  }
+
+  /**
+   * Returns the path of the metadata for the specified key.
+   */
+  private Path meta(String key) {
+    String hash = hash(key);
+    return this._keyDirectory.resolve(hash.substring(0, 2)).resolve(hash);
+  }
+
+  /**
+   * Returns the hash of the blob the metadata points to or <code>null</code> if it is invalid.
+   */
+  private static String readHash(Path meta) {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(meta)))) {
+      if (in.readInt() != META_MAGIC || in.readInt() != META_VERSION) return null;
+      in.readUTF();
+      return in.readUTF();
+    } catch (IOException ex) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the files in the sub-directories of the specified directory.
+   */
+  private static List<Path> list(Path directory) throws IOException {
+    final List<Path> files = new ArrayList<Path>();
+    Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        files.add(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFileFailed(Path file, IOException ex) {
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    return files;
+  }
+
+  /**
+   * Indicates whether the file was last modified before the specified time.
+   */
+  private static boolean isOlderThan(Path file, long time) {
+    try {
+      return Files.getLastModifiedTime(file).toMillis() < time;
+    } catch (IOException ex) {
+      return false;
+    }
+  }
+
+  /**
+   * Hard-links the source to the target, or copies it if hard links are not supported.
+   */
+  private static void copy(Path source, Path target) throws IOException {
+    Files.deleteIfExists(target);
+    try {
+      Files.createLink(target, source);
+    } catch (IOException | UnsupportedOperationException ex) {
+      Files.copy(source, target);
+    }
+  }
+
+  /**
+   * Returns the SHA-256 hash of the key as a hexadecimal string.
+   */
+  private static String hash(String key) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException("SHA-256 is required by the Java platform", ex);
+    }
+    StringBuilder hex = new StringBuilder(64);
+    for (byte b : digest.digest(key.getBytes(StandardCharsets.UTF_8))) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+
+  /**
+   * A lock file used by this JVM.
+   *
+   * <p>The file is opened once and only closed when no thread uses it, since closing it releases
+   * the lock held on behalf of the whole JVM.
+   */
+  private static final class LockFile {
+
+    /** The real path of the lock file */
+    private final Path _path;
+
+    /** Held by the thread of this JVM using the file lock */
+    private final ReentrantLock _local = new ReentrantLock();
+
+    /** The channel to the file, only used by the thread holding the local lock */
+    private FileChannel channel = null;
+
+    /** The number of threads using the file, guarded by the map of lock files */
+    private int users = 0;
+
+    private LockFile(Path path) {
+      this._path = path;
+    }
+
+    /**
+     * Returns the lock file for the specified path, which must be released after use.
+     */
+    static LockFile acquire(Path path) {
+      synchronized (LOCK_FILES) {
+        LockFile file = LOCK_FILES.get(path);
+        if (file == null) {
+          file = new LockFile(path);
+          LOCK_FILES.put(path, file);
+        }
+        file.users++;
+        return file;
+      }
+    }
+
+    /**
+     * Closes the file if no other thread uses it.
+     */
+    void release() {
+      synchronized (LOCK_FILES) {
+        if (--this.users > 0) return;
+        LOCK_FILES.remove(this._path);
+        if (this.channel != null) {
+          try {
+            this.channel.close();
+          } catch (IOException ex) {
+            LOGGER.debug("Unable to close lock file: {}", ex.getMessage());
+          }
+          this.channel = null;
+        }
+      }
+    }
+
+    /**
+     * Returns the channel to the file, opening it if necessary.
+     */
+    FileChannel channel() throws IOException {
+      if (this.channel == null || !this.channel.isOpen()) {
+        this.channel = FileChannel.open(this._path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+      }
+      return this.channel;
+    }
+  }
+
+  /**
+   * A lock held by this thread and process, which must be closed to be released.
+   */
+  public static final class Lock implements Closeable {
+
+    /** The lock file */
+    private final LockFile _file;
+
+    /** The lock held by this process */
+    private final FileLock _lock;
+
+    Lock(LockFile file, FileLock lock) {
+      this._file = file;
+      this._lock = lock;
+    }
+
+    @Override
+    public void close() {
+      try {
+        if (this._lock.isValid()) {
+          this._lock.release();
+        }
+      } catch (IOException ex) {
+        LOGGER.debug("Unable to release shared cache lock: {}", ex.getMessage());
+      } finally {
+        this._file._local.unlock();
+        this._file.release();
+      }
+    }
+  }
+
+  /**
+   * An item in the shared cache.
+   */
+  public static final class Item {
+
+    /** The cache key */
+    private final String _key;
+
+    /** The SHA-256 hash of the content */
+    private final String _hash;
+
+    /** The size of the content */
+    private final long _size;
+
+    /** The media type (may be <code>null</code>) */
+    private final String _media;
+
+    /** The last modified date on the origin server (0 if unknown) */
+    private final long _modified;
+
+    /** The entity tag on the origin server (may be <code>null</code>) */
+    private final String _etag;
+
+    /** When the data should be revalidated with the origin server */
+    private final long _expires;
+
+    /** The blob */
+    private final Path _blob;
+
+    Item(String key, String hash, long size, String media, long modified, String etag, long expires, Path blob) {
+      this._key = key;
+      this._hash = hash;
+      this._size = size;
+      this._media = media;
+      this._modified = modified;
+      this._etag = etag;
+      this._expires = expires;
+      this._blob = blob;
+    }
+
+    /** @return the cache key */
+    public String key() {
+      return this._key;
+    }
+
+    /** @return the SHA-256 hash of the content */
+    public String hash() {
+      return this._hash;
+    }
+
+    /** @return the size of the content */
+    public long size() {
+      return this._size;
+    }
+
+    /** @return the media type (may be <code>null</code>) */
+    public String media() {
+      return this._media;
+    }
+
+    /** @return the last modified date on the origin server (0 if unknown) */
+    public long modified() {
+      return this._modified;
+    }
+
+    /** @return the entity tag on the origin server (may be <code>null</code>) */
+    public String etag() {
+      return this._etag;
+    }
+
+    /** @return when the data should be revalidated with the origin server */
+    public long expires() {
+      return this._expires;
+    }
+
+    /**
+     * @param now The current time
+     * @return <code>true</code> if the data does not need to be revalidated yet.
+     */
+    public boolean isFresh(long now) {
+      return now < this._expires;
+    }
+  }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 1999-2014 allette systems pty. ltd.
+ */
+package org.pageseeder.berlioz.bridge.cache;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Ensures that concurrent calls for the same key are only executed once.
+ *
+ * <p>The first thread to request a key executes the call, other threads requesting the same key
+ * while the call is in progress wait for it to complete and receive the same result (or the same
+ * exception). Once the call has completed, the next request for that key executes a new call.
+ *
+ * @param <K> The type of keys
+ * @param <V> The type of values returned by the calls
+ *
+ * @author Christophe Lauret
+ *
+ * @version 0.3.2
+ * @since 0.3.2
+ */
+public final class SingleFlight<K, V> {
+
+  /** Calls currently in progress. */
+  private final ConcurrentMap<K, FutureTask<V>> _calls = new ConcurrentHashMap<K, FutureTask<V>>();
+
+  /**
+   * Executes the call for the specified key unless a call for the same key is already in
+   * progress, in which case, this method waits for that call to complete.
+   *
+   * @param key  The key
+   * @param call The call to execute if no call for this key is in progress.
+   *
+   * @return the value returned by the call
+   *
+   * @throws IOException If the call failed or the thread was interrupted while waiting.
+   */
+  public V execute(K key, Callable<V> call) throws IOException {
+    FutureTask<V> task = new FutureTask<V>(call);
+    FutureTask<V> inProgress = this._calls.putIfAbsent(key, task);
+    if (inProgress == null) {
+      try {
+        task.run();
+      } finally {
+        this._calls.remove(key, task);
+      }
+      inProgress = task;
+    }
+    return get(inProgress);
+  }
+
+  /**
+   * Indicates whether a call is currently in progress for the specified key.
+   *
+   * @param key The key
+   *
+   * @return <code>true</code> if a call is in progress;
+   *         <code>false</code> otherwise.
+   */
+  public boolean isInProgress(K key) {
+    return this._calls.containsKey(key);
+  }
+
+  /**
+   * @return the number of calls currently in progress.
+   */
+  public int count() {
+    return this._calls.size();
+  }
+
+  /**
+   * Returns the result of the task unwrapping the cause of any exception.
+   */
+  private static <V> V get(FutureTask<V> task) throws IOException {
+    try {
+      return task.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for concurrent call");
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof IOException) throw (IOException)cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+      if (cause instanceof Error) throw (Error)cause;
+      throw new IOException(cause);
+    }
+  }
+
+}
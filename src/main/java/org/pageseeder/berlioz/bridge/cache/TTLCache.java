@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 1999-2014 allette systems pty. ltd.
+ */
+package org.pageseeder.berlioz.bridge.cache;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A small bounded in-memory cache where each value expires after a time-to-live.
+ *
+ * <p>When the cache is full, the least recently used entry is evicted. Expired entries are
+ * removed when they are accessed.
+ *
+ * @param <K> The type of keys
+ * @param <V> The type of values
+ *
+ * @author Christophe Lauret
+ *
+ * @version 0.3.2
+ * @since 0.3.2
+ */
+public final class TTLCache<K, V> {
+
+  /** Maximum number of entries. */
+  private final int _capacity;
+
+  /** The entries in access order (least recently used first). */
+  private final LinkedHashMap<K, Item<V>> _entries;
+
+  /**
+   * Creates a new cache.
+   *
+   * @param capacity The maximum number of entries.
+   */
+  public TTLCache(int capacity) {
+    this._capacity = capacity;
+    this._entries = new LinkedHashMap<K, Item<V>>(16, .75f, true) {
+      /** As per requirement */
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<K, Item<V>> eldest) {
+        return size() > TTLCache.this._capacity;
+      }
+    };
+  }
+
+  /**
+   * Returns the value for the specified key if it has not expired.
+   *
+   * @param key The key
+   *
+   * @return the value or <code>null</code> if not in the cache or expired.
+   */
+  public synchronized V get(K key) {
+    Item<V> item = this._entries.get(key);
+    if (item == null) return null;
+    if (item._expires < System.currentTimeMillis()) {
+      this._entries.remove(key);
+      return null;
+    }
+    return item._value;
+  }
+
+  /**
+   * Puts a value in the cache.
+   *
+   * @param key   The key
+   * @param value The value
+   * @param ttl   The time-to-live of the value in ms
+   */
+  public synchronized void put(K key, V value, long ttl) {
+    this._entries.put(key, new Item<V>(value, System.currentTimeMillis() + ttl));
+  }
+
+  /**
+   * Removes the value for the specified key.
+   *
+   * @param key The key
+   *
+   * @return the value that was removed or <code>null</code>.
+   */
+  public synchronized V remove(K key) {
+    Item<V> item = this._entries.remove(key);
+    return item != null? item._value : null;
+  }
+
+  /**
+   * Returns the keys currently in the cache.
+   *
+   * <p>The list is a copy and includes the keys of expired entries.
+   *
+   * @return the keys from the least to the most recently used.
+   */
+  public synchronized List<K> keys() {
+    return new ArrayList<K>(this._entries.keySet());
+  }
+
+  /**
+   * Removes all the entries.
+   */
+  public synchronized void clear() {
+    this._entries.clear();
+  }
+
+  /** @return the number of entries in the cache including expired entries. */
+  public synchronized int size() {
+    return this._entries.size();
+  }
+
+  /** @return the maximum number of entries. */
+  public int capacity() {
+    return this._capacity;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "TTLCache[entries="+this._entries.size()+"/"+this._capacity+"]";
+  }
+
+  /**
+   * A value and its expiry time.
+   */
+  private static final class Item<V> {
+
+    private final V _value;
+
+    private final long _expires;
+
+    Item(V value, long expires) {
+      this._value = value;
+      this._expires = expires;
+    }
+  }
+}
@@ -0,0 +1,11 @@
+/*
+ * Copyright (c) 1999-2014 allette systems pty. ltd.
+ */
+/**
+ * Caching of resources fetched from PageSeeder on behalf of the user.
+ *
+ * <p>Note: this is a low level API, this is mostly designed for internal use and is subject to change.
+ *
+ * @author Christophe Lauret
+ */
+package org.pageseeder.berlioz.bridge.cache;
@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 1999-2014 allette systems pty. ltd.
+ */
+package org.pageseeder.berlioz.bridge.servlet;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A request handled asynchronously by a pool of threads so that the container thread is released.
+ *
+ * <p>If the request times out before it is handled, a "503 Service Unavailable" response is sent
+ * and the request is completed. From then on, the thread handling the request can no longer write
+ * to the response, which the container may already have recycled, and does not complete the
+ * request again.
+ *
+ * @author Christophe Lauret
+ *
+ * @version 0.3.2
+ * @since 0.3.2
+ */
+final class AsyncRequest implements Runnable, AsyncListener {
+
+  /** The logger. */
+  private static final Logger LOGGER = LoggerFactory.getLogger(AsyncRequest.class);
+
+  /**
+   * Handles the request on the thread of the pool.
+   */
+  interface Handler {
+
+    /**
+     * @param req The HTTP servlet request
+     * @param res The HTTP servlet response
+     *
+     * @throws IOException If an error occurs while writing the response
+     */
+    void handle(HttpServletRequest req, HttpServletResponse res) throws IOException;
+  }
+
+  /** The asynchronous context */
+  private final AsyncContext _context;
+
+  /** Handles the request */
+  private final Handler _handler;
+
+  /** Set once the request has timed out or was completed */
+  private final AtomicBoolean _finished = new AtomicBoolean(false);
+
+  /**
+   * @param context The asynchronous context
+   * @param handler Handles the request
+   */
+  private AsyncRequest(AsyncContext context, Handler handler) {
+    this._context = context;
+    this._handler = handler;
+  }
+
+  /**
+   * Starts handling the request asynchronously.
+   *
+   * <p>When all the threads are busy and too many requests are waiting, the request is handled by
+   * the current thread.
+   *
+   * @param req      The HTTP servlet request
+   * @param timeout  The number of ms before the request times out
+   * @param executor The pool of threads handling the request
+   * @param handler  Handles the request
+   */
+  public static void start(HttpServletRequest req, long timeout, Executor executor, Handler handler) {
+    AsyncContext context = req.startAsync();
+    context.setTimeout(timeout);
+    AsyncRequest request = new AsyncRequest(context, handler);
+    context.addListener(request);
+    try {
+      executor.execute(request);
+    } catch (RejectedExecutionException ex) {
+      // Too busy, use the container thread
+      request.run();
+    }
+  }
+
+  /**
+   * @return <code>true</code> if the request has timed out or was completed.
+   */
+  public boolean isFinished() {
+    return this._finished.get();
+  }
+
+  @Override
+  public void run() {
+    // Timed out while waiting for a thread
+    if (this._finished.get()) return;
+    HttpServletRequest req = (HttpServletRequest)this._context.getRequest();
+    HttpServletResponse res = new GuardedResponse((HttpServletResponse)this._context.getResponse());
+    try {
+      this._handler.handle(req, res);
+    } catch (IOException | RuntimeException ex) {
+      if (!this._finished.get()) {
+        LOGGER.warn("Unable to complete asynchronous request for {}", req.getPathInfo(), ex);
+        sendErrorQuietly(res, HttpServletResponse.SC_BAD_GATEWAY);
+      }
+    } finally {
+      if (this._finished.compareAndSet(false, true)) {
+        this._context.complete();
+      }
+    }
+  }
+
+  @Override
+  public void onTimeout(AsyncEvent event) {
+    if (!this._finished.compareAndSet(false, true)) return;
+    HttpServletRequest req = (HttpServletRequest)this._context.getRequest();
+    LOGGER.warn("Asynchronous request for {} timed out", req.getPathInfo());
+    sendErrorQuietly((HttpServletResponse)this._context.getResponse(), HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    this._context.complete();
+  }
+
+  @Override
+  public void onError(AsyncEvent event) {
+    if (this._finished.compareAndSet(false, true)) {
+      LOGGER.debug("Asynchronous request failed: {}", event.getThrowable() != null? event.getThrowable().getMessage() : null);
+      this._context.complete();
+    }
+  }
+
+  @Override
+  public void onComplete(AsyncEvent event) {
+    this._finished.set(true);
+  }
+
+  @Override
+  public void onStartAsync(AsyncEvent event) {
+  }
+
+  /**
+   * Sends an error unless the response is already committed.
+   *
+   * @param res    The HTTP servlet response
+   * @param status The HTTP status code
+   */
+  private static void sendErrorQuietly(HttpServletResponse res, int status) {
+    if (!res.isCommitted()) {
+      try {
+        res.sendError(status);
+      } catch (IOException | IllegalStateException ex) {
+        LOGGER.debug("Unable to send error: {}", ex.getMessage());
+      }
+    }
+  }
+
+  /**
+   * A response which ignores headers and rejects any output once the request is finished.
+   */
+  private final class GuardedResponse extends HttpServletResponseWrapper {
+
+    GuardedResponse(HttpServletResponse res) {
+      super(res);
+    }
+
+    @Override
+    public void setStatus(int sc) {
+      if (!isFinished()) {
+        super.setStatus(sc);
+      }
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+      if (!isFinished()) {
+        super.setHeader(name, value);
+      }
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+      if (!isFinished()) {
+        super.addHeader(name, value);
+      }
+    }
+
+    @Override
+    public void setDateHeader(String name, long date) {
+      if (!isFinished()) {
+        super.setDateHeader(name, date);
+      }
+    }
+
+    @Override
+    public void setContentType(String type) {
+      if (!isFinished()) {
+        super.setContentType(type);
+      }
+    }
+
+    @Override
+    public void setContentLength(int len) {
+      if (!isFinished()) {
+        super.setContentLength(len);
+      }
+    }
+
+    @Override
+    public void sendError(int sc) throws IOException {
+      checkFinished();
+      super.sendError(sc);
+    }
+
+    @Override
+    public void sendError(int sc, String msg) throws IOException {
+      checkFinished();
+      super.sendError(sc, msg);
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+      checkFinished();
+      super.flushBuffer();
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+      checkFinished();
+      final ServletOutputStream out = super.getOutputStream();
+      return new ServletOutputStream() {
+
+        @Override
+        public void write(int b) throws IOException {
+          checkFinished();
+          out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+          checkFinished();
+          out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+          checkFinished();
+          out.flush();
+        }
+      };
+    }
+
+    private void checkFinished() throws IOException {
+      if (isFinished()) throw new IOException("Asynchronous request already finished");
+    }
+  }
+
+}
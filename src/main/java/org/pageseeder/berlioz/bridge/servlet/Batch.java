@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 1999-2014 allette systems pty. ltd.
+ */
+package org.pageseeder.berlioz.bridge.servlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Writes several resources as the parts of a "multipart/mixed" response.
+ *
+ * <p>Each part includes the URI ID of the resource as its <code>Content-Location</code> so that
+ * clients can match the parts to the resources they requested, for example:
+ * <pre>
+ * --boundary
+ * Content-Type: image/png
+ * Content-Location: /12345.png
+ * ETag: "..."
+ * Content-Length: 1234
+ *
+ * [data]
+ * --boundary--
+ * </pre>
+ *
+ * <p>Parts are written as soon as they are available, so the total length is unknown.
+ *
+ * @author Christophe Lauret
+ *
+ * @version 0.3.2
+ * @since 0.3.2
+ */
+final class Batch {
+
+  /** The output stream */
+  private final OutputStream _out;
+
+  /** The boundary between parts */
+  private final String _boundary;
+
+  /** Number of parts written */
+  private int parts = 0;
+
+  /**
+   * @param out The output stream
+   */
+  Batch(OutputStream out) {
+    this(out, Long.toHexString(ThreadLocalRandom.current().nextLong())
+            + Long.toHexString(ThreadLocalRandom.current().nextLong()));
+  }
+
+  /**
+   * @param out      The output stream
+   * @param boundary The boundary between parts
+   */
+  Batch(OutputStream out, String boundary) {
+    this._out = out;
+    this._boundary = boundary;
+  }
+
+  /**
+   * Returns the cache keys of the resources requested in a batch.
+   *
+   * <p>Each value is a URI ID optionally followed by an extension (e.g. "12345.png"); duplicates
+   * are ignored.
+   *
+   * @param values The values of the request parameter (may be <code>null</code>)
+   * @param types  The types of resources accepted
+   * @param max    The maximum number of resources in a batch
+   *
+   * @return the cache keys in the order they were requested (e.g. "/12345.png").
+   *
+   * @throws IllegalArgumentException If a value is not a URI ID or there are too many resources
+   */
+  public static List<String> parse(String[] values, ResourceTypes types, int max) {
+    Set<String> keys = new LinkedHashSet<String>();
+    if (values != null) {
+      for (String value : values) {
+        for (String item : value.split(",")) {
+          String v = item.trim();
+          if (v.isEmpty()) continue;
+          String key = v.startsWith("/")? v : '/'+v;
+          if (!types.isURIID(key))
+            throw new IllegalArgumentException("Invalid URI ID: "+v);
+          keys.add(key);
+        }
+      }
+    }
+    if (keys.size() > max)
+      throw new IllegalArgumentException("Too many resources, the maximum is "+max);
+    return new ArrayList<String>(keys);
+  }
+
+  /**
+   * @return the media type of the response including the boundary.
+   */
+  public String contentType() {
+    return "multipart/mixed; boundary="+this._boundary;
+  }
+
+  /**
+   * Writes the resource as the next part.
+   *
+   * @param key     The cache key of the resource
+   * @param media   The media type of the resource
+   * @param etag    The entity tag of the resource (may be <code>null</code>)
+   * @param content The content of the resource
+   *
+   * @throws IOException If an error occurs while reading the content or writing to the output
+   */
+  public void write(String key, String media, String etag, Content content) throws IOException {
+    long length = content.length();
+    StringBuilder header = new StringBuilder();
+    if (this.parts > 0) {
+      header.append("\r\n");
+    }
+    header.append("--").append(this._boundary).append("\r\n");
+    header.append("Content-Type: ").append(media).append("\r\n");
+    header.append("Content-Location: ").append(key).append("\r\n");
+    if (etag != null) {
+      header.append("ETag: ").append(etag).append("\r\n");
+    }
+    header.append("Content-Length: ").append(length).append("\r\n\r\n");
+    this._out.write(header.toString().getBytes(StandardCharsets.US_ASCII));
+    content.writeTo(this._out, 0, length);
+    this.parts++;
+  }
+
+  /**
+   * Writes the final boundary.
+   *
+   * @throws IOException If an error occurs while writing to the output
+   */
+  public void close() throws IOException {
+    String end = (this.parts > 0? "\r\n--" : "--")+this._boundary+"--\r\n";
+    this._out.write(end.getBytes(StandardCharsets.US_ASCII));
+    this._out.flush();
+  }
+
+  /**
+   * @return the number of parts written.
+   */
+  public int parts() {
+    return this.parts;
+  }
+
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 1999-2014 allette systems pty. ltd.
+ */
+package org.pageseeder.berlioz.bridge.servlet;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.pageseeder.berlioz.bridge.cache.DiskCache;
+import org.pageseeder.bridge.PSSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves the resources requested in a batch as a "multipart/mixed" response.
+ *
+ * <p>The resources which are cached or published locally are sent first, while the others are
+ * fetched from PageSeeder concurrently by a bounded pool of threads; concurrent requests for the
+ * same resource still share the same fetch. Resources which cannot be found or fetched are
+ * omitted from the response.
+ *
+ * <p>If the response may include resources cached for the user who is logged in, it is marked as
+ * "private" and varies by cookie.
+ *
+ * @author Christophe Lauret
+ *
+ * @version 0.3.2
+ * @since 0.3.2
+ */
+final class BatchHandler {
+
+  /** To know what's going on */
+  private static final Logger LOGGER = LoggerFactory.getLogger(BatchHandler.class);
+
+  /** Maximum number of resources waiting to be fetched */
+  private static final int QUEUE_SIZE = 256;
+
+  /** The servlet serving the resources */
+  private final ResourceProxyServlet _servlet;
+
+  /** The types of resources accepted */
+  private final ResourceTypes _types;
+
+  /** Maximum number of resources requested in a batch */
+  private final int _max;
+
+  /** The value of the Cache-Control header */
+  private final String _cacheControl;
+
+  /** Fetches the resources which are not cached */
+  private final ThreadPoolExecutor _executor;
+
+  /**
+   * @param servlet      The servlet serving the resources
+   * @param types        The types of resources accepted
+   * @param max          Maximum number of resources requested in a batch
+   * @param cacheControl The value of the Cache-Control header
+   * @param name         The name of the threads fetching the resources
+   * @param threads      The number of resources fetched at the same time
+   */
+  BatchHandler(ResourceProxyServlet servlet, ResourceTypes types, int max, String cacheControl, String name, int threads) {
+    this._servlet = servlet;
+    this._types = types;
+    this._max = max;
+    this._cacheControl = cacheControl;
+    this._executor = ThreadPools.newThreadPool(name, threads, QUEUE_SIZE);
+  }
+
+  /**
+   * Indicates whether all the resources requested in a batch can be served without asking PageSeeder.
+   *
+   * <p>This method does not record any access to the caches.
+   *
+   * @param req The HTTP servlet request
+   *
+   * @return <code>true</code> if the batch can be served immediately or is invalid;
+   *         <code>false</code> if any resource must be fetched first.
+   */
+  public boolean isReady(HttpServletRequest req) {
+    List<String> uriids;
+    try {
+      uriids = Batch.parse(req.getParameterValues("uriid"), this._types, this._max);
+    } catch (IllegalArgumentException ex) {
+      return true;
+    }
+    for (String uriid : uriids) {
+      if (!this._servlet.isCached(this._servlet.toKey(uriid, req))) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Serves the resources requested in a batch.
+   *
+   * @param req The HTTP servlet request
+   * @param res The HTTP servlet response
+   *
+   * @throws IOException If an error occurs while reading a resource or writing the response
+   */
+  public void serve(HttpServletRequest req, HttpServletResponse res) throws IOException {
+    final ResourceProxyServlet servlet = this._servlet;
+    List<String> uriids;
+    try {
+      uriids = Batch.parse(req.getParameterValues("uriid"), this._types, this._max);
+    } catch (IllegalArgumentException ex) {
+      res.sendError(HttpServletResponse.SC_BAD_REQUEST, ex.getMessage());
+      return;
+    }
+    if (uriids.isEmpty()) {
+      res.sendError(HttpServletResponse.SC_BAD_REQUEST, "No URI ID specified");
+      return;
+    }
+
+    // Start fetching the resources which must be fetched before they can be served
+    List<String> ready = new ArrayList<String>();
+    Map<String, FutureTask<DiskCache.Entry>> pending = new LinkedHashMap<String, FutureTask<DiskCache.Entry>>();
+    boolean scoped = false;
+    for (String uriid : uriids) {
+      final String key = servlet.toKey(uriid, req);
+      final PSSession session = servlet.getSession(key, req);
+      final DiskCache.Entry entry = servlet.getEntry(key);
+      if (servlet.isReady(key, entry)) {
+        ready.add(key);
+        scoped |= CacheScope.isScoped(key);
+      } else if (entry != null || !servlet.isNotFound(key)) {
+        // The resource is fetched for the user if PageSeeder refuses or cannot find it anonymously
+        final String userKey = servlet.toScopedKey(uriid, req);
+        final PSSession userSession = servlet.getSession(userKey, req);
+        FutureTask<DiskCache.Entry> task = new FutureTask<DiskCache.Entry>(new Callable<DiskCache.Entry>() {
+          @Override
+          public DiskCache.Entry call() throws IOException {
+            DiskCache.Entry loaded = servlet.load(key, entry, session);
+            if (loaded == null && !userKey.equals(key)) {
+              loaded = servlet.load(userKey, servlet.getEntry(userKey), userSession);
+            }
+            return loaded;
+          }
+        });
+        scoped |= CacheScope.isScoped(userKey);
+        try {
+          this._executor.execute(task);
+        } catch (RejectedExecutionException ex) {
+          // Too busy, the task will run on this thread
+          LOGGER.debug("Too many resources to fetch, {} will be fetched by the batch", key);
+        }
+        pending.put(key, task);
+      }
+    }
+
+    Batch batch = new Batch(res.getOutputStream());
+    res.setContentType(batch.contentType());
+    if (scoped) {
+      res.setHeader("Cache-Control", ResourceProxyServlet.toPrivate(this._cacheControl));
+      res.setHeader("Vary", "Cookie");
+    } else {
+      res.setHeader("Cache-Control", this._cacheControl);
+    }
+    for (String key : ready) {
+      servlet.writePart(batch, key, req);
+    }
+    if (!pending.isEmpty()) {
+      res.flushBuffer();
+    }
+    for (Map.Entry<String, FutureTask<DiskCache.Entry>> p : pending.entrySet()) {
+      FutureTask<DiskCache.Entry> task = p.getValue();
+      try {
+        // Tasks which have not started yet are run by this thread (it has no effect otherwise)
+        task.run();
+        DiskCache.Entry entry = task.get();
+        if (entry != null) {
+          servlet.writePart(batch, entry.key(), entry);
+        }
+      } catch (ExecutionException ex) {
+        LOGGER.info("Unable to fetch {} for batch: {}", p.getKey(), ex.getCause().getMessage());
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while fetching batch");
+      }
+    }
+    batch.close();
+    LOGGER.debug("Served {} of {} resources in batch", batch.parts(), uriids.size());
+  }
+
+  /**
+   * Stops fetching resources.
+   */
+  public void close() {
+    this._executor.shutdownNow();
+  }
+
+}
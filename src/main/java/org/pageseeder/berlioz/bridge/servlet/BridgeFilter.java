@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 1999-2014 allette systems pty. ltd.
+ */
+package org.pageseeder.berlioz.bridge.servlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.pageseeder.berlioz.bridge.auth.AuthException;
+import org.pageseeder.berlioz.bridge.auth.AuthenticationResult;
+import org.pageseeder.berlioz.bridge.auth.AuthorizationResult;
+import org.pageseeder.berlioz.bridge.auth.Authenticator;
+import org.pageseeder.berlioz.bridge.auth.Authorizer;
+import org.pageseeder.berlioz.bridge.auth.LoggedInAuthorizer;
+import org.pageseeder.berlioz.bridge.auth.ProtectedRequest;
+import org.pageseeder.berlioz.bridge.auth.RememberMe;
+import org.pageseeder.berlioz.bridge.auth.RememberMe.Credentials;
+import org.pageseeder.berlioz.bridge.auth.RuleAuthorizer;
+import org.pageseeder.berlioz.bridge.auth.Sessions;
+import org.pageseeder.berlioz.bridge.auth.User;
+import org.pageseeder.berlioz.bridge.config.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves the user of each request in a single pass and checks that the user has access to the
+ * underlying resource.
+ *
+ * <p>This filter replaces the {@link RememberMeFilter} and {@link SecurityFilter}: the session
+ * and cookies are looked up once per request, and the remember me cookie is only used to login
+ * when there is no user in the session.
+ *
+ * <p>Request parameters are only read on the login endpoint, so that the container does not parse
+ * the body of other requests, such as large uploads.
+ *
+ * <p>Requests for public paths are let through without creating a session or logging in with the
+ * remember me cookie; a session is only created to store the protected URL when the user has not
+ * logged in yet.
+ *
+ * <p>The user is available to downstream filters and servlets as the request attribute
+ * {@link Sessions#USER_ATTRIBUTE}, which {@link Sessions#getUser(HttpServletRequest)} checks
+ * before the session.
+ *
+ * <h3>Initialisation parameters</h3>
+ * <p>See {@link #init(FilterConfig)}.
+ *
+ * @author Christophe Lauret
+ *
+ * @version 0.3.2
+ * @since 0.3.2
+ */
+public final class BridgeFilter implements Filter {
+
+  /** To know what's going on */
+  private static final Logger LOGGER = LoggerFactory.getLogger(BridgeFilter.class);
+
+  /** Default servlet path of the login endpoint */
+  private static final String DEFAULT_LOGIN_PATH = "/login";
+
+  /** Default servlet path of the logout endpoint */
+  private static final String DEFAULT_LOGOUT_PATH = "/logout.html";
+
+  /** Stores the credentials of users in a cookie (<code>null</code> if disabled) */
+  private RememberMe rememberme = null;
+
+  /** Servlet path of the login endpoint */
+  private String loginPath = DEFAULT_LOGIN_PATH;
+
+  /** Servlet path of the logout endpoint */
+  private String logoutPath = DEFAULT_LOGOUT_PATH;
+
+  /** Whether users must be logged in and authorized to access resources */
+  private boolean authorize = true;
+
+  /** Paths which can be accessed without logging in */
+  private PublicPaths publicPaths = PublicPaths.NONE;
+
+  /** Checks whether users can access the requested URIs */
+  private Authorizer authorizer = LoggedInAuthorizer.getInstance();
+
+  /**
+   * This filter accepts the following initialisation parameters.
+   *
+   * <p><code>remember-me</code> is optional and indicates whether users can be logged in using
+   * the remember me cookie, defaults to "true". The keys are stored in <code>WEB-INF/auth</code>.
+   * <p><code>login-path</code> is optional and is the servlet path of the login endpoint, defaults
+   * to "/login". Users asking to be remembered with the "rememberme" parameter are only
+   * recognised on that path. When <code>authorize</code> is "true", the login path must also be
+   * listed in <code>public-paths</code>, otherwise users who have not logged in cannot reach it.
+   * <p><code>logout-path</code> is optional and is the servlet path of the logout endpoint,
+   * defaults to "/logout.html". The remember me cookie is removed on that path.
+   * <p><code>authorize</code> is optional and indicates whether users must be logged in and
+   * authorized to access the filtered resources, defaults to "true"; use "false" on public
+   * resources to only resolve the user.
+   * <p><code>public-paths</code> is optional and is the list of paths which can be accessed without
+   * logging in, separated by commas or white spaces, see {@link PublicPaths}.
+   * <p><code>authorization-rules</code> is optional and is the path to the file defining the
+   * roles required to access URIs relative to the web application, for example
+   * "/WEB-INF/config/authorization.rules", see {@link RuleAuthorizer}; the file is reloaded when
+   * it is modified. By default, users only need to be logged in.
+   *
+   * {@inheritDoc}
+   */
+  @Override
+  public void init(FilterConfig config) throws ServletException {
+    if (!"false".equals(config.getInitParameter("remember-me"))) {
+      try {
+        File root = new File(config.getServletContext().getRealPath("/"));
+        RememberMe rememberme = new RememberMe();
+        rememberme.init(root.toPath().resolve("WEB-INF/auth"));
+        this.rememberme = rememberme;
+      } catch (IOException | GeneralSecurityException ex) {
+        throw new ServletException(ex);
+      }
+    }
+    String loginPath = config.getInitParameter("login-path");
+    if (loginPath != null) {
+      this.loginPath = loginPath;
+    }
+    String logoutPath = config.getInitParameter("logout-path");
+    if (logoutPath != null) {
+      this.logoutPath = logoutPath;
+    }
+    this.authorize = !"false".equals(config.getInitParameter("authorize"));
+    try {
+      this.publicPaths = PublicPaths.parse(config.getInitParameter("public-paths"));
+    } catch (IllegalArgumentException ex) {
+      throw new ServletException(ex.getMessage(), ex);
+    }
+    String rules = config.getInitParameter("authorization-rules");
+    if (rules != null && !rules.trim().isEmpty()) {
+      File file = new File(config.getServletContext().getRealPath("/"), rules.trim());
+      try {
+        this.authorizer = new RuleAuthorizer(file.toPath(), RuleAuthorizer.DEFAULT_INTERVAL);
+      } catch (IOException | IllegalArgumentException ex) {
+        throw new ServletException("Unable to load authorization rules from "+rules, ex);
+      }
+    }
+  }
+
+  @Override
+  public void destroy() {
+    this.rememberme = null;
+  }
+
+  /**
+   * Does the filtering.
+   *
+   * {@inheritDoc}
+   */
+  @Override
+  public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain)
+     throws IOException, ServletException {
+    // Use HTTP specific requests.
+    doHttpFilter((HttpServletRequest)req, (HttpServletResponse)res, chain);
+  }
+
+  /**
+   * Does the filtering.
+   *
+   * @param req   the HTTP servlet request
+   * @param res   the HTTP servlet response
+   * @param chain The filter chain
+   *
+   * @throws IOException      If thrown by any of the underlying filters or servlets.
+   * @throws ServletException If thrown by any of the underlying filters or servlets.
+   */
+  private void doHttpFilter(HttpServletRequest req, HttpServletResponse res, FilterChain chain)
+     throws IOException, ServletException {
+    boolean isPublic = this.publicPaths.matches(req);
+    HttpSession session = req.getSession(false);
+    User user = Sessions.getUser(session);
+
+    // Remember me
+    RememberMe rememberme = this.rememberme;
+    if (rememberme != null) {
+      String path = req.getServletPath();
+      Cookie cookie = rememberme.getCookie(req.getCookies());
+      if (cookie != null) {
+        if (user == null && !isPublic) {
+          user = login(req, res, rememberme, cookie);
+        }
+        if (this.logoutPath.equals(path)) {
+          LOGGER.debug("Removing remember me cookie");
+          cookie.setMaxAge(0);
+          res.addCookie(cookie);
+        }
+      }
+      if (this.loginPath.equals(path) && "POST".equals(req.getMethod())) {
+        remember(req, res, rememberme);
+      }
+    }
+
+    // Expose the user to downstream code
+    if (user != null) {
+      req.setAttribute(Sessions.USER_ATTRIBUTE, user);
+    }
+
+    // The user must be logged in and authorized
+    if (this.authorize && !isPublic) {
+      if (user == null) {
+        req.getSession(true).setAttribute(Sessions.REQUEST_ATTRIBUTE, ProtectedRequest.create(req));
+        res.setHeader("WWW-Authenticate", "FORM");
+        res.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+        return;
+      }
+      AuthorizationResult result = this.authorizer.isUserAuthorized(user, PublicPaths.toPath(req));
+      if (result != AuthorizationResult.AUTHORIZED) {
+        res.sendError(HttpServletResponse.SC_FORBIDDEN);
+        return;
+      }
+    }
+
+    // Continue
+    chain.doFilter(req, res);
+  }
+
+  /**
+   * Logs the user in using the credentials in the remember me cookie.
+   *
+   * <p>The cookie is removed if the credentials are no longer valid.
+   *
+   * @return the user or <code>null</code> if the user could not be logged in.
+   */
+  private static User login(HttpServletRequest req, HttpServletResponse res, RememberMe rememberme, Cookie cookie) {
+    Credentials credentials = rememberme.getCredentials(cookie);
+    if (credentials == null) return null;
+    LOGGER.info("Found credentials for {}", credentials.username());
+    try {
+      Authenticator<? extends User> authenticator = Configuration.getAuthenticator();
+      AuthenticationResult result = authenticator.login(new CredentialsRequest(req, credentials));
+      if (result == AuthenticationResult.INCORRECT_DETAILS
+       || result == AuthenticationResult.INSUFFICIENT_DETAILS) {
+        LOGGER.info("Invalidating credentials for {}", credentials.username());
+        cookie.setMaxAge(0);
+        res.addCookie(cookie);
+        return null;
+      }
+    } catch (AuthException ex) {
+      LOGGER.warn("Unable to login {} using remember me cookie", credentials.username(), ex);
+      return null;
+    }
+    return Sessions.getUser(req.getSession(false));
+  }
+
+  /**
+   * Stores the credentials submitted to the login endpoint in a cookie if the user asked to be
+   * remembered.
+   */
+  private static void remember(HttpServletRequest req, HttpServletResponse res, RememberMe rememberme) {
+    if (!"true".equals(req.getParameter("rememberme"))) return;
+    String username = req.getParameter("username");
+    String password = req.getParameter("password");
+    if (username != null && password != null) {
+      Credentials credentials = new Credentials(username, password);
+      Cookie cookie = rememberme.newCookie(credentials);
+      if (cookie != null) {
+        LOGGER.info("Storing credentials in cookie for {}", credentials.username());
+        res.addCookie(cookie);
+      }
+    }
+  }
+
+  /**
+   * A request wrapping the current one to pass the credentials from the remember me cookie to the
+   * authenticator as the username and password parameters.
+   *
+   * <p>The parameters of the wrapped request are never read, so that its body is not parsed.
+   */
+  private static final class CredentialsRequest extends HttpServletRequestWrapper {
+
+    /** The credentials to use for the authenticator. */
+    private final Credentials _credentials;
+
+    CredentialsRequest(HttpServletRequest original, Credentials credentials) {
+      super(original);
+      this._credentials = credentials;
+    }
+
+    @Override
+    public String getParameter(String name) {
+      if ("username".equals(name)) return this._credentials.username();
+      if ("password".equals(name)) return this._credentials.password();
+      return null;
+    }
+
+  }
+}
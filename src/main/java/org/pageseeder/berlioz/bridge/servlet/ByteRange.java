@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 1999-2014 allette systems pty. ltd.
+ */
+package org.pageseeder.berlioz.bridge.servlet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * A range of bytes requested by the client using the HTTP "Range" header.
+ *
+ * @author Christophe Lauret
+ *
+ * @version 0.3.2
+ * @since 0.3.2
+ */
+final class ByteRange {
+
+  /** Maximum number of ranges accepted in a single request. */
+  private static final int MAX_RANGES = 16;
+
+  /** Position of the first byte */
+  private final long _start;
+
+  /** Position of the last byte (inclusive) */
+  private final long _end;
+
+  /**
+   * @param start Position of the first byte
+   * @param end   Position of the last byte (inclusive)
+   */
+  ByteRange(long start, long end) {
+    this._start = start;
+    this._end = end;
+  }
+
+  /** @return the position of the first byte */
+  public long start() {
+    return this._start;
+  }
+
+  /** @return the position of the last byte (inclusive) */
+  public long end() {
+    return this._end;
+  }
+
+  /** @return the number of bytes in this range */
+  public long length() {
+    return this._end - this._start + 1;
+  }
+
+  /**
+   * Returns the value of the "Content-Range" header for this range.
+   *
+   * @param total The total length of the resource
+   *
+   * @return the value of the "Content-Range" header
+   */
+  public String toContentRange(long total) {
+    return "bytes "+this._start+'-'+this._end+'/'+total;
+  }
+
+  @Override
+  public String toString() {
+    return this._start+"-"+this._end;
+  }
+
+  /**
+   * Parses the value of the "Range" header.
+   *
+   * <p>This method returns <code>null</code> when the header should be ignored, that is when the
+   * syntax is invalid, the unit is not "bytes" or there are too many ranges. It returns an
+   * empty list when none of the ranges can be satisfied.
+   *
+   * @param header The value of the "Range" header
+   * @param length The length of the resource
+   *
+   * @return the list of satisfiable ranges or <code>null</code>.
+   */
+  public static List<ByteRange> parse(String header, long length) {
+    if (!header.startsWith("bytes=")) return null;
+    String[] specs = header.substring(6).split(",");
+    if (specs.length > MAX_RANGES) return null;
+    List<ByteRange> ranges = new ArrayList<ByteRange>(specs.length);
+    try {
+      for (String spec : specs) {
+        int dash = spec.indexOf('-');
+        if (dash < 0) return null;
+        String first = spec.substring(0, dash).trim();
+        String last = spec.substring(dash+1).trim();
+        if (first.isEmpty()) {
+          // Suffix range (last N bytes)
+          long suffix = Long.parseLong(last);
+          if (suffix < 0) return null;
+          if (suffix > 0 && length > 0) {
+            ranges.add(new ByteRange(Math.max(0, length - suffix), length - 1));
+          }
+        } else {
+          long start = Long.parseLong(first);
+          long end = last.isEmpty()? Long.MAX_VALUE : Long.parseLong(last);
+          if (start < 0 || end < start) return null;
+          if (start < length) {
+            ranges.add(new ByteRange(start, Math.min(end, length - 1)));
+          }
+        }
+      }
+    } catch (NumberFormatException ex) {
+      return null;
+    }
+    return ranges;
+  }
+
+  /**
+   * Indicates whether the "Range" header should be applied based on the "If-Range" header.
+   *
+   * <p>The "If-Range" header can contain either an entity tag which must match using the strong
+   * comparison function or an HTTP date which must match the last modified date exactly.
+   *
+   * @param req      The HTTP servlet request
+   * @param etag     The entity tag of the resource (may be <code>null</code>)
+   * @param modified The last modified date of the resource (in ms)
+   *
+   * @return <code>true</code> if there is no "If-Range" header or if it matches;
+   *         <code>false</code> if the whole resource should be sent.
+   */
+  public static boolean isIfRangeSatisfied(HttpServletRequest req, String etag, long modified) {
+    String ifRange = req.getHeader("If-Range");
+    if (ifRange == null) return true;
+    String value = ifRange.trim();
+    if (value.startsWith("\"") || value.startsWith("W/")) return etag != null && value.equals(etag);
+    long date = Validators.getDateHeader(req, "If-Range");
+    return date != -1 && modified > 0 && date / 1000 == modified / 1000;
+  }
+
+}
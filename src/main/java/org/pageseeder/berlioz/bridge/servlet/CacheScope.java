@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 1999-2014 allette systems pty. ltd.
+ */
+package org.pageseeder.berlioz.bridge.servlet;
+
+import java.nio.charset.StandardCharsets;
+
+import org.pageseeder.berlioz.bridge.auth.PSUser;
+
+/**
+ * Cache keys which include the access scope of a resource.
+ *
+ * <p>Public resources are cached under their URI ID (e.g. "/12345.png") and can be served to
+ * anyone. Resources fetched on behalf of a user are cached under a key which includes the scope
+ * of that user (e.g. "/12345@u42.png"), so that they are only served to the same user.
+ *
+ * <p>Since the disk and memory caches store identical content once, scoped copies of the same
+ * resource only cost an entry in the index.
+ *
+ * @author Christophe Lauret
+ *
+ * @version 0.3.2
+ * @since 0.3.2
+ */
+final class CacheScope {
+
+  /** Separates the URI ID from the scope in a cache key */
+  static final char SEPARATOR = '@';
+
+  /** Utility class */
+  private CacheScope() {
+  }
+
+  /**
+   * Returns the scope of the specified user.
+   *
+   * @param user The user
+   *
+   * @return the scope (e.g. "u42")
+   */
+  public static String toScope(PSUser user) {
+    if (user.id() != null) return "u"+user.id();
+    // Only letters and digits can be used in the key
+    StringBuilder scope = new StringBuilder("n");
+    for (byte b : user.getUsername().getBytes(StandardCharsets.UTF_8)) {
+      scope.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return scope.toString();
+  }
+
+  /**
+   * Returns the cache key of the resource in the specified scope.
+   *
+   * @param uriid The URI ID of the resource followed by the extension (e.g. "/12345.png")
+   * @param scope The scope (<code>null</code> for public resources)
+   *
+   * @return the cache key (e.g. "/12345@u42.png")
+   */
+  public static String toKey(String uriid, String scope) {
+    if (scope == null) return uriid;
+    int dot = uriid.lastIndexOf('.');
+    return dot > 0? uriid.substring(0, dot)+SEPARATOR+scope+uriid.substring(dot) : uriid+SEPARATOR+scope;
+  }
+
+  /**
+   * Returns the URI ID of the resource for the specified cache key.
+   *
+   * @param key The cache key (e.g. "/12345@u42.png")
+   *
+   * @return the URI ID followed by the extension (e.g. "/12345.png")
+   */
+  public static String toURIID(String key) {
+    int at = key.indexOf(SEPARATOR);
+    if (at < 0) return key;
+    int dot = key.lastIndexOf('.');
+    return key.substring(0, at)+(dot > at? key.substring(dot) : "");
+  }
+
+  /**
+   * Indicates whether the cache key is in the scope of a user.
+   *
+   * @param key The cache key
+   *
+   * @return <code>true</code> if the key includes a scope;
+   *         <code>false</code> for public resources.
+   */
+  public static boolean isScoped(String key) {
+    return key.indexOf(SEPARATOR) >= 0;
+  }
+
+  /**
+   * Returns the prefix of the cache keys of the resource in any scope.
+   *
+   * @param uriid The URI ID of the resource (e.g. "/12345")
+   *
+   * @return the prefix (e.g. "/12345@")
+   */
+  public static String toPrefix(String uriid) {
+    return uriid+SEPARATOR;
+  }
+
+}
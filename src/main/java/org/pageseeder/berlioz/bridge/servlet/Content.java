@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 1999-2014 allette systems pty. ltd.
+ */
+package org.pageseeder.berlioz.bridge.servlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.pageseeder.berlioz.bridge.cache.ImageResource;
+import org.pageseeder.berlioz.bridge.util.IOUtils;
+
+/**
+ * The content of a cached resource which can be sent in full or in parts.
+ *
+ * @author Christophe Lauret
+ *
+ * @version 0.3.2
+ * @since 0.3.2
+ */
+abstract class Content {
+
+  /** Request attribute set by the container when it supports sending files directly (Tomcat) */
+  private static final String SENDFILE_SUPPORT_ATTRIBUTE = "org.apache.tomcat.sendfile.support";
+
+  /** Request attribute for the path of the file to send */
+  private static final String SENDFILE_FILENAME_ATTRIBUTE = "org.apache.tomcat.sendfile.filename";
+
+  /** Request attribute for the position of the first byte to send */
+  private static final String SENDFILE_START_ATTRIBUTE = "org.apache.tomcat.sendfile.start";
+
+  /** Request attribute for the position after the last byte to send */
+  private static final String SENDFILE_END_ATTRIBUTE = "org.apache.tomcat.sendfile.end";
+
+  /**
+   * @return the total length of the content.
+   */
+  abstract long length();
+
+  /**
+   * Writes the specified region of the content to the output stream.
+   *
+   * @param out    The output stream
+   * @param offset The position of the first byte to write
+   * @param count  The number of bytes to write
+   *
+   * @throws IOException If an error occurs while reading the content or writing to the output
+   */
+  abstract void writeTo(OutputStream out, long offset, long count) throws IOException;
+
+  /**
+   * Sends the specified region of the content as the body of the response.
+   *
+   * @param req    The HTTP servlet request
+   * @param res    The HTTP servlet response
+   * @param offset The position of the first byte to write
+   * @param count  The number of bytes to write
+   *
+   * @throws IOException If an error occurs while reading the content or writing the response
+   */
+  void sendBody(HttpServletRequest req, HttpServletResponse res, long offset, long count) throws IOException {
+    writeTo(res.getOutputStream(), offset, count);
+  }
+
+  /**
+   * Sends the content honouring the "Range" and "If-Range" headers of the request.
+   *
+   * <p>This method sets the status, the content type and length and the body of the response.
+   *
+   * @param media    The media type of the content
+   * @param etag     The entity tag of the content (may be <code>null</code>)
+   * @param modified The last modified date of the content
+   * @param req      The HTTP servlet request
+   * @param res      The HTTP servlet response
+   *
+   * @throws IOException If an error occurs while reading the content or writing the response
+   */
+  public final void send(String media, String etag, long modified, HttpServletRequest req, HttpServletResponse res)
+      throws IOException {
+    long length = length();
+    res.setHeader("Accept-Ranges", "bytes");
+
+    // Only consider the range if the client has the same version
+    List<ByteRange> ranges = null;
+    String range = req.getHeader("Range");
+    if (range != null && ByteRange.isIfRangeSatisfied(req, etag, modified)) {
+      ranges = ByteRange.parse(range, length);
+    }
+
+    if (ranges == null) {
+      // Send the whole content
+      res.setContentType(media);
+      res.setHeader("Content-Length", Long.toString(length));
+      sendBody(req, res, 0L, length);
+
+    } else if (ranges.isEmpty()) {
+      // None of the ranges can be satisfied
+      res.setHeader("Content-Range", "bytes */"+length);
+      res.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+
+    } else if (ranges.size() == 1) {
+      // Single part
+      ByteRange r = ranges.get(0);
+      res.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+      res.setContentType(media);
+      res.setHeader("Content-Range", r.toContentRange(length));
+      res.setHeader("Content-Length", Long.toString(r.length()));
+      sendBody(req, res, r.start(), r.length());
+
+    } else {
+      // Multiple parts
+      sendMultipart(ranges, media, res);
+    }
+  }
+
+  /**
+   * Sends the ranges as a "multipart/byteranges" response.
+   */
+  private void sendMultipart(List<ByteRange> ranges, String media, HttpServletResponse res) throws IOException {
+    long length = length();
+    String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong())
+                    + Long.toHexString(ThreadLocalRandom.current().nextLong());
+
+    // Compute the headers of each part first to determine the length of the response
+    List<byte[]> headers = new ArrayList<byte[]>(ranges.size());
+    long total = 0;
+    for (ByteRange r : ranges) {
+      String header = "\r\n--"+boundary+"\r\n"
+          + "Content-Type: "+media+"\r\n"
+          + "Content-Range: "+r.toContentRange(length)+"\r\n\r\n";
+      byte[] bytes = header.getBytes(StandardCharsets.US_ASCII);
+      headers.add(bytes);
+      total += bytes.length + r.length();
+    }
+    byte[] end = ("\r\n--"+boundary+"--\r\n").getBytes(StandardCharsets.US_ASCII);
+    total += end.length;
+
+    res.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    res.setContentType("multipart/byteranges; boundary="+boundary);
+    res.setHeader("Content-Length", Long.toString(total));
+    OutputStream out = res.getOutputStream();
+    for (int i = 0; i < ranges.size(); i++) {
+      ByteRange r = ranges.get(i);
+      out.write(headers.get(i));
+      writeTo(out, r.start(), r.length());
+    }
+    out.write(end);
+  }
+
+  /**
+   * Returns the content of an image resource held in memory.
+   *
+   * @param image The image resource
+   *
+   * @return the corresponding content
+   */
+  public static Content of(final ImageResource image) {
+    return new Content() {
+
+      @Override
+      long length() {
+        return image.length();
+      }
+
+      @Override
+      void writeTo(OutputStream out, long offset, long count) throws IOException {
+        image.writeTo(out, offset, count);
+      }
+    };
+  }
+
+  /**
+   * Returns the content of a cached file.
+   *
+   * <p>If the servlet container supports it, the container can be asked to send the file
+   * directly to the socket, otherwise the file is copied to the output using positioned reads.
+   *
+   * @param file     The cached file
+   * @param channel  The channel opened to read the file
+   * @param sendfile Whether the container should be asked to send the file when possible
+   *
+   * @return the corresponding content
+   */
+  public static Content of(final File file, final FileChannel channel, final boolean sendfile) throws IOException {
+    final long length = channel.size();
+    return new Content() {
+
+      @Override
+      long length() {
+        return length;
+      }
+
+      @Override
+      void writeTo(OutputStream out, long offset, long count) throws IOException {
+        IOUtils.copy(channel, offset, count, out);
+      }
+
+      @Override
+      void sendBody(HttpServletRequest req, HttpServletResponse res, long offset, long count) throws IOException {
+        if (sendfile && Boolean.TRUE.equals(req.getAttribute(SENDFILE_SUPPORT_ATTRIBUTE))) {
+          // Let the container send the file
+          req.setAttribute(SENDFILE_FILENAME_ATTRIBUTE, file.getCanonicalPath());
+          req.setAttribute(SENDFILE_START_ATTRIBUTE, Long.valueOf(offset));
+          req.setAttribute(SENDFILE_END_ATTRIBUTE, Long.valueOf(offset + count));
+        } else {
+          writeTo(res.getOutputStream(), offset, count);
+        }
+      }
+    };
+  }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 1999-2014 allette systems pty. ltd.
+ */
+package org.pageseeder.berlioz.bridge.servlet;
+
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent.Kind;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.pageseeder.berlioz.bridge.nio.WatchListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A watch listener which evicts the images and other resources affected by published content
+ * from the caches of a resource proxy servlet.
+ *
+ * <p>When a PSML document is published, the document itself and the images and binary files it
+ * references are evicted using their URI ID so that the next request fetches them again from
+ * PageSeeder. When a binary file is published on its own, it is mapped to its URI ID using the
+ * references of the documents published before. Other resources remain in the cache.
+ *
+ * <p>Only the affected resources are removed from the resources and paths which were not found,
+ * and the files referenced by published documents are added to the index of published files.
+ *
+ * <p>To use this listener:
+ * <pre>
+ *   FileTreeWatcher watcher = FileTreeWatcher.newPSMLWatcher(new ImageCacheListener(servlet));
+ *   watcher.start();
+ * </pre>
+ *
+ * <p>The image proxy servlet starts its own watcher when the <code>watch</code> initialisation
+ * parameter is set to "true".
+ *
+ * @author Christophe Lauret
+ *
+ * @version 0.3.2
+ * @since 0.3.2
+ */
+public final class ImageCacheListener implements WatchListener {
+
+  /** To know what's going on */
+  private static final Logger LOGGER = LoggerFactory.getLogger(ImageCacheListener.class);
+
+  /** The servlet whose cache should be invalidated */
+  private final ResourceProxyServlet _servlet;
+
+  /**
+   * @param servlet The servlet whose cache should be invalidated
+   */
+  public ImageCacheListener(ResourceProxyServlet servlet) {
+    this._servlet = servlet;
+  }
+
+  @Override
+  public void received(Path path, Kind<Path> kind) {
+    String name = path.getFileName().toString();
+    if (name.endsWith(".psml")) {
+      if (kind == StandardWatchEventKinds.ENTRY_DELETE) return;
+      // The document is parsed once for the index and the eviction
+      PSMLReferences references = PSMLReferences.parse(path);
+      this._servlet.reindex(path, references);
+      Set<String> uriids = references.uriids();
+      LOGGER.debug("Evicting {} resources referenced by {}", uriids.size(), path);
+      for (String uriid : uriids) {
+        this._servlet.invalidate(uriid);
+      }
+      Set<String> names = new HashSet<String>();
+      for (String reference : references.files().values()) {
+        names.add(reference.substring(reference.lastIndexOf('/')+1));
+      }
+      this._servlet.invalidatePaths(names);
+    } else {
+      String uriid = this._servlet.getURIID(path);
+      if (uriid != null) {
+        LOGGER.debug("Evicting {} published as {}", uriid, path);
+        this._servlet.invalidate(uriid);
+      }
+      this._servlet.invalidatePaths(Collections.singleton(name));
+    }
+  }
+
+}
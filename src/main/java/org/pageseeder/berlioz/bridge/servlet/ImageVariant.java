@@ -0,0 +1,369 @@
+/*
+ * Copyright (c) 1999-2014 allette systems pty. ltd.
+ */
+package org.pageseeder.berlioz.bridge.servlet;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * A resized variant of an image specified using the "width", "height", "fit" and "quality"
+ * parameters of the request.
+ *
+ * <p>The "fit" parameter indicates how the image is resized when both the width and height
+ * are specified:
+ * <ul>
+ *   <li><code>contain</code> (default) the image is scaled to fit within the box;</li>
+ *   <li><code>cover</code> the image is scaled to cover the box and cropped in the center;</li>
+ *   <li><code>fill</code> the image is stretched to the exact size of the box.</li>
+ * </ul>
+ *
+ * <p>Images are never scaled up. The "quality" parameter only applies to JPEG images and is
+ * ignored for other formats.
+ *
+ * <p>To bound the number of variants of each image, the requested width and height are rounded
+ * up to the nearest of a set of sizes, see {@link #parse(HttpServletRequest, String, int[])}.
+ * Images with more pixels than a given limit are never decoded, see
+ * {@link #resize(File, Path, String, long)}.
+ *
+ * @author Christophe Lauret
+ *
+ * @version 0.3.2
+ * @since 0.3.2
+ */
+final class ImageVariant {
+
+  /** Separates the key of the original image from the specification of the variant. */
+  private static final char SEPARATOR = '~';
+
+  /** Maximum width or height of a variant. */
+  private static final int MAX_DIMENSION = 4096;
+
+  /** Default quality of JPEG images. */
+  private static final int DEFAULT_QUALITY = 85;
+
+  /** Default sizes the width and height of variants are rounded up to. */
+  static final int[] DEFAULT_SIZES = {
+    16, 32, 48, 64, 96, 128, 160, 200, 240, 320, 400, 480, 640, 800, 960, 1024, 1280, 1600, 1920,
+    2048, 2560, 3200, 4096
+  };
+
+  /**
+   * How the image fits in the box.
+   */
+  enum Fit {
+
+    /** Scale the image to fit within the box */
+    CONTAIN,
+
+    /** Scale the image to cover the box and crop it */
+    COVER,
+
+    /** Stretch the image to the size of the box */
+    FILL;
+
+    @Override
+    public String toString() {
+      return name().toLowerCase(Locale.ENGLISH);
+    }
+  }
+
+  /** Width of the box (0 if not specified) */
+  private final int _width;
+
+  /** Height of the box (0 if not specified) */
+  private final int _height;
+
+  /** How the image fits in the box */
+  private final Fit _fit;
+
+  /** Quality of JPEG images (1-100) or 0 for other formats */
+  private final int _quality;
+
+  /**
+   * @param width   Width of the box (0 if not specified)
+   * @param height  Height of the box (0 if not specified)
+   * @param fit     How the image fits in the box
+   * @param quality Quality of JPEG images (1-100) or 0 for other formats
+   */
+  ImageVariant(int width, int height, Fit fit, int quality) {
+    this._width = width;
+    this._height = height;
+    this._fit = fit;
+    this._quality = quality;
+  }
+
+  /**
+   * Returns the variant specified by the request.
+   *
+   * <p>The width and height are rounded up to the nearest of the specified sizes, or down to the
+   * largest one. The quality is only used for JPEG images.
+   *
+   * @param req   The HTTP servlet request
+   * @param media The media type of the requested image (may be <code>null</code>)
+   * @param sizes The sizes allowed for the width and height in ascending order
+   *
+   * @return the variant or <code>null</code> if neither the width nor the height is specified.
+   *
+   * @throws IllegalArgumentException If any of the parameters is invalid
+   */
+  public static ImageVariant parse(HttpServletRequest req, String media, int[] sizes) {
+    int width = toSize(getInt(req, "width", 0, MAX_DIMENSION, 0), sizes);
+    int height = toSize(getInt(req, "height", 0, MAX_DIMENSION, 0), sizes);
+    if (width == 0 && height == 0) return null;
+    int quality = "jpeg".equals(toFormat(media))? getInt(req, "quality", 1, 100, DEFAULT_QUALITY) : 0;
+    String fit = req.getParameter("fit");
+    try {
+      return new ImageVariant(width, height, fit != null? Fit.valueOf(fit.toUpperCase(Locale.ENGLISH)) : Fit.CONTAIN, quality);
+    } catch (IllegalArgumentException ex) {
+      throw new IllegalArgumentException("Invalid fit: "+fit);
+    }
+  }
+
+  /**
+   * Parses a comma-separated list of sizes.
+   *
+   * @param list The list of sizes
+   *
+   * @return the sizes in ascending order.
+   *
+   * @throws IllegalArgumentException If the list is empty or includes an invalid size
+   */
+  public static int[] parseSizes(String list) {
+    String[] values = list.split("[,\\s]+");
+    int[] sizes = new int[values.length];
+    int count = 0;
+    for (String value : values) {
+      if (value.isEmpty()) continue;
+      try {
+        int size = Integer.parseInt(value);
+        if (size < 1 || size > MAX_DIMENSION) throw new IllegalArgumentException("Invalid size: "+value);
+        sizes[count++] = size;
+      } catch (NumberFormatException ex) {
+        throw new IllegalArgumentException("Invalid size: "+value);
+      }
+    }
+    if (count == 0) throw new IllegalArgumentException("No size specified");
+    int[] sorted = Arrays.copyOf(sizes, count);
+    Arrays.sort(sorted);
+    return sorted;
+  }
+
+  /**
+   * Returns the cache key for this variant of the original image.
+   *
+   * <p>The extension of the original key is preserved (e.g. "/12345~200x0-contain-q85.jpg" or
+   * "/12345~200x0-contain.png").
+   *
+   * @param key The cache key of the original image
+   *
+   * @return the cache key of this variant
+   */
+  public String toKey(String key) {
+    int dot = key.lastIndexOf('.');
+    String base = dot > 0? key.substring(0, dot) : key;
+    String extension = dot > 0? key.substring(dot) : "";
+    return base+SEPARATOR+toString()+extension;
+  }
+
+  /**
+   * Returns the prefix of the cache keys of all the variants of an image.
+   *
+   * @param key The cache key of the original image
+   *
+   * @return the prefix of the cache keys of its variants.
+   */
+  public static String toPrefix(String key) {
+    int dot = key.lastIndexOf('.');
+    return (dot > 0? key.substring(0, dot) : key)+SEPARATOR;
+  }
+
+  /**
+   * Indicates whether images of the specified media type can be resized.
+   *
+   * @param media The media type of the image
+   *
+   * @return <code>true</code> for PNG, JPEG and GIF images;
+   *         <code>false</code> otherwise.
+   */
+  public static boolean isResizable(String media) {
+    if (media == null) return false;
+    String type = media.toLowerCase(Locale.ENGLISH);
+    return type.startsWith("image/png") || type.startsWith("image/jpeg") || type.startsWith("image/jpg")
+        || type.startsWith("image/gif");
+  }
+
+  /**
+   * Writes this variant of the image to the target file.
+   *
+   * <p>The dimensions of the image are read before it is decoded so that images which would not
+   * fit in memory are rejected.
+   *
+   * @param source    The original image
+   * @param target    The file to write the variant to
+   * @param media     The media type of the original image
+   * @param maxPixels The maximum number of pixels of the original image
+   *
+   * @return the media type of the variant
+   *
+   * @throws IOException If the image could not be read or written or is too large
+   */
+  public String resize(File source, Path target, String media, long maxPixels) throws IOException {
+    BufferedImage original = read(source, media, maxPixels);
+    String format = toFormat(media);
+    boolean opaque = "jpeg".equals(format);
+
+    // Compute the size of the scaled image and of the result
+    int w = original.getWidth();
+    int h = original.getHeight();
+    double sx = this._width > 0? Math.min(1.0, (double)this._width / w) : 0;
+    double sy = this._height > 0? Math.min(1.0, (double)this._height / h) : 0;
+    if (sx == 0) sx = sy;
+    if (sy == 0) sy = sx;
+    int outWidth;
+    int outHeight;
+    int scaledWidth;
+    int scaledHeight;
+    if (this._fit == Fit.FILL || this._width == 0 || this._height == 0) {
+      scaledWidth = outWidth = Math.max(1, (int)Math.round(w * sx));
+      scaledHeight = outHeight = Math.max(1, (int)Math.round(h * sy));
+    } else if (this._fit == Fit.COVER) {
+      double s = Math.max(sx, sy);
+      scaledWidth = Math.max(1, (int)Math.round(w * s));
+      scaledHeight = Math.max(1, (int)Math.round(h * s));
+      outWidth = Math.min(scaledWidth, this._width);
+      outHeight = Math.min(scaledHeight, this._height);
+    } else {
+      double s = Math.min(sx, sy);
+      scaledWidth = outWidth = Math.max(1, (int)Math.round(w * s));
+      scaledHeight = outHeight = Math.max(1, (int)Math.round(h * s));
+    }
+
+    // Draw the scaled image in the center
+    BufferedImage scaled = new BufferedImage(outWidth, outHeight, opaque? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+    Graphics2D g = scaled.createGraphics();
+    try {
+      g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+      g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+      g.drawImage(original, (outWidth - scaledWidth) / 2, (outHeight - scaledHeight) / 2, scaledWidth, scaledHeight, null);
+    } finally {
+      g.dispose();
+    }
+
+    write(scaled, format, target);
+    return "image/"+format;
+  }
+
+  @Override
+  public String toString() {
+    return this._width+"x"+this._height+'-'+this._fit+(this._quality > 0? "-q"+this._quality : "");
+  }
+
+  /**
+   * Decodes the image after checking its dimensions.
+   */
+  private static BufferedImage read(File source, String media, long maxPixels) throws IOException {
+    try (ImageInputStream in = ImageIO.createImageInputStream(source)) {
+      Iterator<ImageReader> readers = in != null? ImageIO.getImageReaders(in) : null;
+      if (readers == null || !readers.hasNext()) throw new IOException("Unsupported image format: "+media);
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(in, true, true);
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+        if ((long)width * height > maxPixels)
+          throw new IOException("Image too large to resize: "+width+"x"+height);
+        return reader.read(0);
+      } finally {
+        reader.dispose();
+      }
+    }
+  }
+
+  /**
+   * Writes the image using the specified format.
+   */
+  private void write(BufferedImage image, String format, Path target) throws IOException {
+    Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+    if (!writers.hasNext()) throw new IOException("Unable to write image as "+format);
+    ImageWriter writer = writers.next();
+    try (OutputStream out = Files.newOutputStream(target);
+         ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+      writer.setOutput(ios);
+      ImageWriteParam param = writer.getDefaultWriteParam();
+      if ("jpeg".equals(format)) {
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality((this._quality > 0? this._quality : DEFAULT_QUALITY) / 100f);
+      }
+      writer.write(null, new IIOImage(image, null, null), param);
+    } finally {
+      writer.dispose();
+    }
+  }
+
+  /**
+   * Returns the ImageIO format to use for the specified media type.
+   */
+  private static String toFormat(String media) {
+    String subtype = media != null? media.substring(media.indexOf('/')+1).toLowerCase(Locale.ENGLISH) : "";
+    int semicolon = subtype.indexOf(';');
+    if (semicolon >= 0) {
+      subtype = subtype.substring(0, semicolon).trim();
+    }
+    switch (subtype) {
+      case "jpeg":
+      case "jpg":
+        return "jpeg";
+      case "gif":
+        return "gif";
+      default:
+        return "png";
+    }
+  }
+
+  /**
+   * Returns the smallest size greater than or equal to the requested size, the largest size if
+   * there is none or 0 if the size is not specified.
+   */
+  private static int toSize(int requested, int[] sizes) {
+    if (requested == 0) return 0;
+    for (int size : sizes) {
+      if (size >= requested) return size;
+    }
+    return sizes[sizes.length-1];
+  }
+
+  /**
+   * Returns the value of the parameter as an integer within the specified range.
+   */
+  private static int getInt(HttpServletRequest req, String name, int min, int max, int defaultValue) {
+    String value = req.getParameter(name);
+    if (value == null || value.isEmpty()) return defaultValue;
+    try {
+      int i = Integer.parseInt(value);
+      if (i >= min && i <= max) return i;
+    } catch (NumberFormatException ex) {
+      // Handled below
+    }
+    throw new IllegalArgumentException("Invalid "+name+": "+value);
+  }
+
+}
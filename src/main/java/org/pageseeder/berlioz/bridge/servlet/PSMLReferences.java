@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 1999-2014 allette systems pty. ltd.
+ */
+package org.pageseeder.berlioz.bridge.servlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * The URI IDs and references to binary files found in a PSML document.
+ *
+ * <p>The document is parsed once and the references are shared by the cache listener and the
+ * index of published files. Document type declarations are rejected and external entities are
+ * never loaded.
+ *
+ * @author Christophe Lauret
+ *
+ * @version 0.3.2
+ * @since 0.3.2
+ */
+final class PSMLReferences {
+
+  /** To know what's going on */
+  private static final Logger LOGGER = LoggerFactory.getLogger(PSMLReferences.class);
+
+  /** Creates the parsers (not thread-safe) */
+  private static final SAXParserFactory FACTORY = newFactory();
+
+  /** The URI IDs of the document, its images and the binary files it references */
+  private final Set<String> _uriids = new LinkedHashSet<String>();
+
+  /** The references to images and binary files relative to the document by URI ID */
+  private final Map<String, String> _files = new LinkedHashMap<String, String>();
+
+  private PSMLReferences() {
+  }
+
+  /**
+   * Parses the specified PSML document.
+   *
+   * @param psml The path to the PSML document
+   *
+   * @return the references found, those found before an error if the document could not be parsed.
+   */
+  public static PSMLReferences parse(Path psml) {
+    PSMLReferences references = new PSMLReferences();
+    try (InputStream in = Files.newInputStream(psml)) {
+      SAXParser parser;
+      synchronized (FACTORY) {
+        parser = FACTORY.newSAXParser();
+      }
+      parser.parse(in, references.new Collector());
+    } catch (SAXException | ParserConfigurationException | IOException ex) {
+      // The file may be in the process of being written
+      LOGGER.debug("Unable to parse {}: {}", psml, ex.getMessage());
+    }
+    return references;
+  }
+
+  /**
+   * @return the URI IDs of the document, its images and the binary files it references.
+   */
+  public Set<String> uriids() {
+    return Collections.unmodifiableSet(this._uriids);
+  }
+
+  /**
+   * @return the references to images and binary files relative to the document by URI ID.
+   */
+  public Map<String, String> files() {
+    return Collections.unmodifiableMap(this._files);
+  }
+
+  /**
+   * @return a parser factory which does not load DTDs or external entities.
+   */
+  private static SAXParserFactory newFactory() {
+    SAXParserFactory factory = SAXParserFactory.newInstance();
+    factory.setValidating(false);
+    factory.setNamespaceAware(true);
+    factory.setXIncludeAware(false);
+    String[] disabled = {
+      "http://xml.org/sax/features/external-general-entities",
+      "http://xml.org/sax/features/external-parameter-entities",
+      "http://apache.org/xml/features/nonvalidating/load-external-dtd"
+    };
+    try {
+      factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+      factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+      for (String feature : disabled) {
+        factory.setFeature(feature, false);
+      }
+    } catch (SAXException | ParserConfigurationException ex) {
+      LOGGER.warn("Unable to disable DTDs and external entities for PSML documents", ex);
+    }
+    return factory;
+  }
+
+  /**
+   * Collects the URI IDs of the document, of images and of cross-references to binary files.
+   */
+  private final class Collector extends DefaultHandler {
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes) {
+      switch (localName) {
+        case "uri":
+          add(attributes.getValue("id"), null);
+          break;
+
+        case "image":
+          add(attributes.getValue("uriid"), attributes.getValue("src"));
+          break;
+
+        case "xref":
+          String href = attributes.getValue("href");
+          // Only binary files, not PSML documents
+          if (href != null && !href.endsWith(".psml")) {
+            add(attributes.getValue("uriid"), href);
+          }
+          break;
+
+        default:
+      }
+    }
+
+    private void add(String uriid, String reference) {
+      if (uriid == null || !uriid.matches("\\d+")) return;
+      PSMLReferences.this._uriids.add(uriid);
+      if (reference != null && !reference.isEmpty()) {
+        PSMLReferences.this._files.put(uriid, reference);
+      }
+    }
+  }
+
+}
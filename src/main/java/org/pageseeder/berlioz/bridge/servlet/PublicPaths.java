@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 1999-2014 allette systems pty. ltd.
+ */
+package org.pageseeder.berlioz.bridge.servlet;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Matches the paths which can be accessed without logging in.
+ *
+ * <p>Paths are relative to the web application and are specified as:
+ * <ul>
+ *   <li>an exact path, for example "/index.html";</li>
+ *   <li>a prefix ending with '/', for example "/static/" matches all the paths in that folder;</li>
+ *   <li>a glob where '*' matches any characters except '/' and '**' any characters, for example
+ *   "/**&#47;*.css".</li>
+ * </ul>
+ *
+ * <p>The paths are compiled once: exact paths and prefixes are looked up in hash sets, one for
+ * each folder of the path, and all the globs are combined into a single regular expression.
+ *
+ * @author Christophe Lauret
+ *
+ * @version 0.3.2
+ * @since 0.3.2
+ */
+final class PublicPaths {
+
+  /** Matches no path */
+  public static final PublicPaths NONE = new PublicPaths(new HashSet<String>(), new HashSet<String>(), null);
+
+  /** Exact paths */
+  private final Set<String> _paths;
+
+  /** Prefixes (ending with '/') */
+  private final Set<String> _prefixes;
+
+  /** All the globs combined (may be <code>null</code>) */
+  private final Pattern _globs;
+
+  private PublicPaths(Set<String> paths, Set<String> prefixes, Pattern globs) {
+    this._paths = paths;
+    this._prefixes = prefixes;
+    this._globs = globs;
+  }
+
+  /**
+   * Compiles the public paths.
+   *
+   * @param list The paths separated by commas or white spaces (may be <code>null</code>)
+   *
+   * @return the corresponding public paths.
+   *
+   * @throws IllegalArgumentException If a path does not start with '/'.
+   */
+  public static PublicPaths parse(String list) {
+    if (list == null || list.trim().isEmpty()) return NONE;
+    Set<String> paths = new HashSet<String>();
+    Set<String> prefixes = new HashSet<String>();
+    List<String> globs = new ArrayList<String>();
+    for (String path : list.trim().split("[,\\s]+")) {
+      if (path.isEmpty()) continue;
+      if (path.charAt(0) != '/')
+        throw new IllegalArgumentException("Public path must start with '/': "+path);
+      if (path.indexOf('*') >= 0) {
+        globs.add(toRegex(path));
+      } else if (path.endsWith("/")) {
+        prefixes.add(path);
+      } else {
+        paths.add(path);
+      }
+    }
+    Pattern pattern = null;
+    if (!globs.isEmpty()) {
+      StringBuilder regex = new StringBuilder();
+      for (String glob : globs) {
+        if (regex.length() > 0) {
+          regex.append('|');
+        }
+        regex.append("(?:").append(glob).append(')');
+      }
+      pattern = Pattern.compile(regex.toString());
+    }
+    return new PublicPaths(paths, prefixes, pattern);
+  }
+
+  /**
+   * Indicates whether the path can be accessed without logging in.
+   *
+   * @param path The path relative to the web application (e.g. "/static/style.css")
+   *
+   * @return <code>true</code> if the path is public;
+   *         <code>false</code> otherwise.
+   */
+  public boolean matches(String path) {
+    if (this._paths.contains(path)) return true;
+    if (!this._prefixes.isEmpty()) {
+      for (int slash = path.indexOf('/'); slash >= 0; slash = path.indexOf('/', slash+1)) {
+        if (this._prefixes.contains(path.substring(0, slash+1))) return true;
+      }
+    }
+    return this._globs != null && this._globs.matcher(path).matches();
+  }
+
+  /**
+   * Indicates whether the requested path can be accessed without logging in.
+   *
+   * <p>The path is the servlet path followed by the path info, which the container has already
+   * decoded and normalised, so that "/static/../private" does not match "/static/".
+   *
+   * @param req The HTTP servlet request
+   *
+   * @return <code>true</code> if the path is public;
+   *         <code>false</code> otherwise.
+   */
+  public boolean matches(HttpServletRequest req) {
+    if (this == NONE) return false;
+    return matches(toPath(req));
+  }
+
+  /**
+   * Returns the requested path relative to the web application.
+   *
+   * @param req The HTTP servlet request
+   *
+   * @return the servlet path followed by the path info.
+   */
+  static String toPath(HttpServletRequest req) {
+    String path = req.getServletPath();
+    String info = req.getPathInfo();
+    return info != null? path+info : path;
+  }
+
+  /**
+   * @return <code>true</code> if no path is public.
+   */
+  public boolean isEmpty() {
+    return this._paths.isEmpty() && this._prefixes.isEmpty() && this._globs == null;
+  }
+
+  /**
+   * Converts a glob to a regular expression.
+   */
+  private static String toRegex(String glob) {
+    StringBuilder regex = new StringBuilder();
+    int i = 0;
+    while (i < glob.length()) {
+      char c = glob.charAt(i);
+      if (c == '*') {
+        if (i+1 < glob.length() && glob.charAt(i+1) == '*') {
+          // "/**/" also matches "/"
+          if (i+2 < glob.length() && glob.charAt(i+2) == '/') {
+            regex.append("(?:.*/)?");
+            i += 3;
+          } else {
+            regex.append(".*");
+            i += 2;
+          }
+        } else {
+          regex.append("[^/]*");
+          i++;
+        }
+      } else {
+        int star = glob.indexOf('*', i);
+        int end = star < 0? glob.length() : star;
+        regex.append(Pattern.quote(glob.substring(i, end)));
+        i = end;
+      }
+    }
+    return regex.toString();
+  }
+
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 1999-2014 allette systems pty. ltd.
+ */
+package org.pageseeder.berlioz.bridge.servlet;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An index of the binary files published by PageSeeder on the local file system.
+ *
+ * <p>PSML documents reference images and other binary files using their URI ID and a path
+ * relative to the document. The index maps each URI ID to that path relative to the PSML folder,
+ * and files are looked up in the directory where PageSeeder publishes binary files, which mirrors
+ * the PSML folder (it may be the PSML folder itself).
+ *
+ * <p>The index only records paths, so files are always checked on disk when they are looked up
+ * and files which are not there are simply not found.
+ *
+ * <p>The index also maps paths back to URI IDs so that binary files published on their own can
+ * be evicted from the caches.
+ *
+ * @author Christophe Lauret
+ *
+ * @version 0.3.2
+ * @since 0.3.2
+ */
+final class PublishedFiles {
+
+  /** To know what's going on */
+  private static final Logger LOGGER = LoggerFactory.getLogger(PublishedFiles.class);
+
+  /** The folder containing the PSML documents */
+  private final Path _psml;
+
+  /** The folder containing the binary files */
+  private final Path _root;
+
+  /** The path of binary files relative to the PSML folder by URI ID */
+  private final ConcurrentMap<String, String> _uriids = new ConcurrentHashMap<String, String>();
+
+  /** The URI IDs of binary files by path relative to the PSML folder */
+  private final ConcurrentMap<String, String> _paths = new ConcurrentHashMap<String, String>();
+
+  /**
+   * @param psml The folder containing the PSML documents
+   * @param root The folder containing the binary files
+   */
+  PublishedFiles(Path psml, Path root) {
+    this._psml = psml.toAbsolutePath().normalize();
+    this._root = root.toAbsolutePath().normalize();
+  }
+
+  /**
+   * Indexes the binary files referenced by all the PSML documents.
+   */
+  public void index() {
+    if (!Files.isDirectory(this._psml)) return;
+    try {
+      Files.walkFileTree(this._psml, new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+          if (file.getFileName().toString().endsWith(".psml")) {
+            update(file);
+          }
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException ex) {
+          return FileVisitResult.CONTINUE;
+        }
+      });
+      LOGGER.info("Indexed {}", this);
+    } catch (IOException ex) {
+      LOGGER.warn("Unable to index published files", ex);
+    }
+  }
+
+  /**
+   * Indexes the binary files referenced by the specified PSML document.
+   *
+   * @param psml The path to the PSML document
+   */
+  public void update(Path psml) {
+    update(psml, PSMLReferences.parse(psml));
+  }
+
+  /**
+   * Indexes the binary files referenced by the specified PSML document which was already parsed.
+   *
+   * @param psml       The path to the PSML document
+   * @param references The references found in the document
+   */
+  public void update(Path psml, PSMLReferences references) {
+    Path directory = psml.toAbsolutePath().normalize().getParent();
+    for (Map.Entry<String, String> file : references.files().entrySet()) {
+      add(file.getKey(), file.getValue(), directory);
+    }
+  }
+
+  /**
+   * Returns the published file with the specified URI ID.
+   *
+   * @param uriid The URI ID
+   *
+   * @return the file or <code>null</code> if the URI ID is unknown or the file does not exist.
+   */
+  public Path forURIID(String uriid) {
+    String path = this._uriids.get(uriid);
+    return path != null? toFile(path) : null;
+  }
+
+  /**
+   * Returns the published file at the specified path.
+   *
+   * @param path The path of the file relative to the folder containing the binary files
+   *
+   * @return the file or <code>null</code> if the file does not exist.
+   */
+  public Path forPath(String path) {
+    return toFile(path.startsWith("/")? path.substring(1) : path);
+  }
+
+  /**
+   * Returns the URI ID of the specified binary file.
+   *
+   * @param file The binary file in the PSML folder or in the folder containing the binary files
+   *
+   * @return the URI ID or <code>null</code> if the file is not referenced by any indexed document.
+   */
+  public String toURIID(Path file) {
+    Path f = file.toAbsolutePath().normalize();
+    Path base = f.startsWith(this._psml)? this._psml : f.startsWith(this._root)? this._root : null;
+    if (base == null || f.equals(base)) return null;
+    return this._paths.get(base.relativize(f).toString().replace('\\', '/'));
+  }
+
+  /**
+   * @return the number of URI IDs in the index.
+   */
+  public int size() {
+    return this._uriids.size();
+  }
+
+  @Override
+  public String toString() {
+    return "PublishedFiles[root="+this._root+", uriids="+this._uriids.size()+"]";
+  }
+
+  /**
+   * Returns the file at the specified relative path if it exists within the root.
+   */
+  private Path toFile(String path) {
+    try {
+      Path file = this._root.resolve(path).normalize();
+      return file.startsWith(this._root) && Files.isRegularFile(file)? file : null;
+    } catch (InvalidPathException ex) {
+      return null;
+    }
+  }
+
+  /**
+   * Records the path of the binary file relative to the PSML folder.
+   *
+   * @param uriid     The URI ID of the file
+   * @param reference The reference to the file in the PSML document
+   * @param directory The directory of the PSML document
+   */
+  private void add(String uriid, String reference, Path directory) {
+    if (uriid == null || !uriid.matches("\\d+") || reference == null || reference.isEmpty()) return;
+    String path = toPath(reference);
+    if (path == null) return;
+    try {
+      Path file = (path.startsWith("/")? this._psml.resolve(path.substring(1)) : directory.resolve(path)).normalize();
+      if (file.startsWith(this._psml) && !file.equals(this._psml)) {
+        String relative = this._psml.relativize(file).toString().replace('\\', '/');
+        String previous = this._uriids.put(uriid, relative);
+        if (previous != null && !previous.equals(relative)) {
+          this._paths.remove(previous, uriid);
+        }
+        this._paths.put(relative, uriid);
+      }
+    } catch (InvalidPathException ex) {
+      LOGGER.debug("Ignoring invalid reference {}", reference);
+    }
+  }
+
+  /**
+   * Returns the decoded path of the reference or <code>null</code> if it is not a local path.
+   */
+  private static String toPath(String reference) {
+    try {
+      URI uri = new URI(reference);
+      return uri.isAbsolute() || uri.getRawAuthority() != null? null : uri.getPath();
+    } catch (URISyntaxException ex) {
+      // Not encoded
+      return reference.indexOf(':') < 0? reference : null;
+    }
+  }
+
+}
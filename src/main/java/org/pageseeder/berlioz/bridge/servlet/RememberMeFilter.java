@@ -32,6 +32,13 @@ import org.pageseeder.berlioz.bridge.config.Configuration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Logs users in using the credentials stored in the remember me cookie.
+ *
+ * @deprecated Use {@link BridgeFilter} which only reads request parameters on the login endpoint
+ *   and resolves the user once per request.
+ */
+@Deprecated
 public final class RememberMeFilter implements Filter {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(RememberMeFilter.class);
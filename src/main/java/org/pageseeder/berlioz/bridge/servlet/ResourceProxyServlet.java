@@ -0,0 +1,2190 @@
+/*
+ * Copyright (c) 1999-2014 allette systems pty. ltd.
+ */
+package org.pageseeder.berlioz.bridge.servlet;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.Servlet;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.pageseeder.berlioz.GlobalSettings;
+import org.pageseeder.berlioz.bridge.auth.PSUser;
+import org.pageseeder.berlioz.bridge.auth.Sessions;
+import org.pageseeder.berlioz.bridge.auth.User;
+import org.pageseeder.berlioz.bridge.cache.DiskCache;
+import org.pageseeder.berlioz.bridge.cache.ImageResource;
+import org.pageseeder.berlioz.bridge.cache.MemoryCache;
+import org.pageseeder.berlioz.bridge.cache.SharedCache;
+import org.pageseeder.berlioz.bridge.cache.SingleFlight;
+import org.pageseeder.berlioz.bridge.cache.TTLCache;
+import org.pageseeder.berlioz.bridge.nio.FileTreeWatcher;
+import org.pageseeder.berlioz.bridge.servlet.Upstream.Priority;
+import org.pageseeder.bridge.APIException;
+import org.pageseeder.bridge.PSSession;
+import org.pageseeder.bridge.control.DocumentManager;
+import org.pageseeder.bridge.model.PSDocument;
+import org.pageseeder.bridge.model.PSGroup;
+import org.pageseeder.bridge.net.PSHTTPResource;
+import org.pageseeder.bridge.net.PSHTTPResourceType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fetches binary resources on PageSeeder (images, PDF documents, fonts, etc.) on behalf of the
+ * user currently logged in.
+ *
+ * <p>Only the types of resources listed in the <code>types</code> initialisation parameter are
+ * accepted, each with its own cache policy; resources which PageSeeder returns with another
+ * media type are never cached or served.
+ *
+ * <p>Resources are cached on disk in <code>WEB-INF/cache/resources</code> and the most frequently
+ * requested resources are also kept in memory. Identical resources attached under different URI IDs
+ * are stored and kept in memory only once, and share the same entity tag.
+ *
+ * <p>Resources are not streamed to the client while they are fetched: they are copied to a temporary
+ * file as fast as PageSeeder sends them, with or without a declared length, and moved into the cache
+ * before they are served. The first client waits for the whole resource, but slow clients never
+ * hold a connection to PageSeeder.
+ *
+ * <p>Cached resources are revalidated with PageSeeder using conditional requests once their
+ * freshness lifetime has elapsed. Stale resources are served immediately while they are revalidated
+ * in the background, and when PageSeeder cannot be reached.
+ *
+ * <p>Resized variants of PNG, JPEG and GIF images can be requested using the "width", "height",
+ * "fit" and "quality" parameters; they are generated once and cached alongside the original
+ * image, see {@link ImageVariant}.
+ *
+ * <p>The most requested resources can be listed in a manifest when the servlet is destroyed and
+ * fetched in the background when it is initialised, so that the cache is warm after a restart,
+ * see {@link Warmup}.
+ *
+ * <p>In asynchronous mode, requests which need to fetch a resource from PageSeeder release the
+ * container thread and are completed by a dedicated pool of threads; requests for cached resources
+ * are still served synchronously. The servlet must be declared with
+ * <code>&lt;async-supported&gt;true&lt;/async-supported&gt;</code>, see {@link AsyncRequest}.
+ *
+ * <p>Several resources can be requested at once using <code>/batch?uriid=12345.png,12346.png</code>;
+ * they are sent as the parts of a single "multipart/mixed" response, see {@link BatchHandler}.
+ * Cached resources are sent first while the others are fetched from PageSeeder concurrently.
+ *
+ * <p>Resources which PageSeeder could not find are remembered for a short time so that broken
+ * links do not hit PageSeeder on every request.
+ *
+ * <p>When PageSeeder publishes binary files to the local file system, the servlet can serve these
+ * files directly and only asks PageSeeder for the resources which are not found locally, see
+ * {@link PublishedFiles}.
+ *
+ * <p>By default, resources are cached under their URI ID and served to any user. When users do
+ * not all have access to the same resources, the <code>scope</code> initialisation parameter
+ * should be set to "user" so that resources are only shared when they are public, see
+ * {@link CacheScope}.
+ *
+ * <p>Web applications on the same host can share public resources through a common directory so
+ * that each resource is fetched from PageSeeder once per host rather than once per application,
+ * see {@link SharedCache}.
+ *
+ * <p>The servlet is available to other components of the web application as the servlet context
+ * attribute {@link #CONTEXT_ATTRIBUTE} so that its caches can be cleared when content is
+ * published, see {@link ImageCacheListener}.
+ *
+ * <h3>Initialisation parameters</h3>
+ * <p>See {@link #init(ServletConfig)}.
+ *
+ * @author Christophe Lauret
+ *
+ * @version 0.3.2
+ * @since 0.3.2
+ */
+public class ResourceProxyServlet extends HttpServlet implements Servlet {
+
+  /** As per requirement */
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Name of the servlet context attribute holding the instance of this servlet.
+   *
+   * <p>Subclasses are available under their own class name.
+   */
+  public static final String CONTEXT_ATTRIBUTE = ResourceProxyServlet.class.getName();
+
+  /** The logger. */
+  private static final Logger LOGGER = LoggerFactory.getLogger(ResourceProxyServlet.class);
+
+  /** Default types of resources accepted by this servlet */
+  private static final String DEFAULT_TYPES = "png=image/png, jpg=image/jpeg, jpeg=image/jpeg, gif=image/gif,"
+      + " svg=image/svg+xml, webp=image/webp, pdf=application/pdf, woff=font/woff, woff2=font/woff2,"
+      + " ttf=font/ttf, otf=font/otf";
+
+  /** Default maximum number of bytes held by the disk cache (1GB) */
+  private static final long DEFAULT_DISK_CACHE_SIZE = 1024*1024*1024;
+
+  /** Default interval in seconds between each run of the disk cache janitor */
+  private static final long DEFAULT_DISK_CACHE_INTERVAL = 60;
+
+  /** Default maximum number of bytes held by the shared cache (1GB) */
+  private static final long DEFAULT_SHARED_CACHE_SIZE = 1024*1024*1024;
+
+  /** Default interval in seconds between each run of the shared cache janitor */
+  private static final long DEFAULT_SHARED_CACHE_INTERVAL = 600;
+
+  /** Default number of seconds to wait for another process fetching the same resource */
+  private static final long DEFAULT_SHARED_CACHE_LOCK_TIMEOUT = 30;
+
+  /** Default maximum number of bytes held by the memory cache (16MB) */
+  private static final long DEFAULT_MEMORY_CACHE_SIZE = 16*1024*1024;
+
+  /** Default size in bytes above which resources are kept off-heap (64KB) */
+  private static final long DEFAULT_OFFHEAP_THRESHOLD = 64*1024;
+
+  /** Default number of seconds before cached resources are revalidated with PageSeeder */
+  private static final long DEFAULT_FRESHNESS_LIFETIME = 3600;
+
+  /** Default number of seconds stale resources are served while they are revalidated in the background */
+  private static final long DEFAULT_STALE_WHILE_REVALIDATE = 24*3600;
+
+  /** Default number of seconds stale resources are served when PageSeeder cannot be reached */
+  private static final long DEFAULT_STALE_IF_ERROR = 7*24*3600;
+
+  /** Number of threads revalidating resources in the background */
+  private static final int REVALIDATION_THREADS = 2;
+
+  /** Maximum number of resources waiting to be revalidated in the background */
+  private static final int REVALIDATION_QUEUE_SIZE = 256;
+
+  /** Maximum number of images waiting to be resized */
+  private static final int RESIZE_QUEUE_SIZE = 64;
+
+  /** Default maximum number of pixels of the images which can be resized (4096x4096) */
+  private static final long DEFAULT_RESIZE_MAX_PIXELS = 4096*4096;
+
+  /** Minimum number of ms a resized variant is served before it is generated again */
+  private static final long VARIANT_MIN_LIFETIME = 60*1000;
+
+  /** Default maximum number of resources listed in the warm-up manifest */
+  private static final int DEFAULT_WARMUP_SIZE = 500;
+
+  /** Default number of resources fetched at the same time during the warm-up */
+  private static final int DEFAULT_WARMUP_THREADS = 4;
+
+  /** Default number of threads completing asynchronous requests */
+  private static final int DEFAULT_ASYNC_THREADS = 16;
+
+  /** Maximum number of asynchronous requests waiting for a thread */
+  private static final int ASYNC_QUEUE_SIZE = 256;
+
+  /** Default number of seconds before an asynchronous request times out */
+  private static final long DEFAULT_ASYNC_TIMEOUT = 60;
+
+  /** Default maximum number of concurrent connections to PageSeeder */
+  private static final int DEFAULT_UPSTREAM_MAX_CONNECTIONS = 16;
+
+  /** Default number of seconds to wait for a connection to PageSeeder to be established */
+  private static final long DEFAULT_UPSTREAM_CONNECT_TIMEOUT = 5;
+
+  /** Default number of seconds to wait for data from PageSeeder */
+  private static final long DEFAULT_UPSTREAM_READ_TIMEOUT = 30;
+
+  /** Default number of seconds to wait for a connection to PageSeeder to be available */
+  private static final long DEFAULT_UPSTREAM_QUEUE_TIMEOUT = 10;
+
+  /** Default maximum number of paths resolved to URI IDs kept in memory */
+  private static final int DEFAULT_PATH_CACHE_SIZE = 1000;
+
+  /** Default number of seconds a path resolved to a URI ID is kept in memory */
+  private static final long DEFAULT_PATH_CACHE_TTL = 300;
+
+  /** Default number of seconds a path that could not be resolved is kept in memory */
+  private static final long DEFAULT_PATH_CACHE_NEGATIVE_TTL = 30;
+
+  /** Indicates in the path cache that the path does not correspond to any document */
+  private static final String UNKNOWN_PATH = "";
+
+  /** Default maximum number of resources not found on PageSeeder kept in memory */
+  private static final int DEFAULT_NOT_FOUND_CACHE_SIZE = 1000;
+
+  /** Default number of seconds a resource not found on PageSeeder is kept in memory */
+  private static final long DEFAULT_NOT_FOUND_CACHE_TTL = 60;
+
+  /** Path info of the batch endpoint */
+  private static final String BATCH_PATH = "/batch";
+
+  /** Default maximum number of resources requested in a batch */
+  private static final int DEFAULT_BATCH_SIZE = 100;
+
+  /** Default number of resources fetched at the same time for batches */
+  private static final int DEFAULT_BATCH_THREADS = 4;
+
+  /** Default number of seconds after expiry during which public resources are served stale in the user scope */
+  private static final long DEFAULT_PUBLIC_MAX_STALE = 0;
+
+  /** Default Cache-Control header for resources */
+  private static final String DEFAULT_CACHE_CONTROL = "private";
+
+  /** The name of the cache directory and prefix of the threads */
+  private final String _name;
+
+  /** The default types of resources this servlet accepts */
+  private final String _defaultTypes;
+
+  /** The types of resources this servlet accepts */
+  private transient ResourceTypes types = null;
+
+  /** Resources cached on disk */
+  private transient DiskCache disk = null;
+
+  /** Resources shared with other web applications on the same host (may be <code>null</code>) */
+  private transient SharedCache shared = null;
+
+  /** Number of ms to wait for another process fetching the same resource */
+  private long sharedLockTimeout = DEFAULT_SHARED_CACHE_LOCK_TIMEOUT * 1000;
+
+  /** Whether resources fetched on behalf of a user are only served to that user */
+  private boolean userScope = false;
+
+  /** Number of ms before cached resources are revalidated unless PageSeeder specifies otherwise */
+  private long freshnessLifetime = DEFAULT_FRESHNESS_LIFETIME * 1000;
+
+  /** Number of ms after expiry during which stale resources are served while being revalidated */
+  private long staleWhileRevalidate = DEFAULT_STALE_WHILE_REVALIDATE * 1000;
+
+  /** Number of ms after expiry during which stale resources are served if PageSeeder cannot be reached */
+  private long staleIfError = DEFAULT_STALE_IF_ERROR * 1000;
+
+  /** Maximum number of ms after expiry during which public resources are served stale in the user scope */
+  private long publicMaxStale = DEFAULT_PUBLIC_MAX_STALE * 1000;
+
+  /** Revalidates stale resources in the background */
+  private transient ThreadPoolExecutor revalidations = null;
+
+  /** Resizes images (CPU intensive) */
+  private transient ThreadPoolExecutor resizer = null;
+
+  /** The sizes the width and height of resized variants are rounded up to */
+  private int[] resizeSizes = ImageVariant.DEFAULT_SIZES;
+
+  /** Maximum number of pixels of the images which can be resized */
+  private long resizeMaxPixels = DEFAULT_RESIZE_MAX_PIXELS;
+
+  /** Warms up the cache after a restart (may be <code>null</code>) */
+  private transient Warmup warmup = null;
+
+  /** Completes asynchronous requests (<code>null</code> unless in asynchronous mode) */
+  private transient ThreadPoolExecutor async = null;
+
+  /** Number of ms before an asynchronous request times out */
+  private long asyncTimeout = DEFAULT_ASYNC_TIMEOUT * 1000;
+
+  /** Connections to PageSeeder */
+  private transient Upstream upstream = null;
+
+  /** Serves batches of resources (<code>null</code> if batches are disabled) */
+  private transient BatchHandler batch = null;
+
+  /** Whether the container should send cached files directly when it supports it */
+  private boolean sendfile = true;
+
+  /** Resources kept in memory (may be <code>null</code>) */
+  private transient MemoryCache memory = null;
+
+  /** The Cache-Control header for resources requested by path */
+  private String cacheControl = DEFAULT_CACHE_CONTROL;
+
+  /** The Cache-Control header for resources requested by URI ID */
+  private String uriidCacheControl = DEFAULT_CACHE_CONTROL;
+
+  /** URI IDs of resources requested by path (may be <code>null</code>) */
+  private transient TTLCache<String, String> paths = null;
+
+  /** Time-to-live in ms of paths resolved to a URI ID */
+  private long pathTTL = DEFAULT_PATH_CACHE_TTL * 1000;
+
+  /** Time-to-live in ms of paths that could not be resolved */
+  private long pathNegativeTTL = DEFAULT_PATH_CACHE_NEGATIVE_TTL * 1000;
+
+  /** Resources which were not found on PageSeeder (may be <code>null</code>) */
+  private transient TTLCache<String, Boolean> notFound = null;
+
+  /** Time-to-live in ms of resources not found on PageSeeder */
+  private long notFoundTTL = DEFAULT_NOT_FOUND_CACHE_TTL * 1000;
+
+  /** Number of requests to PageSeeder avoided because the resource was known not to exist */
+  private final AtomicLong suppressed = new AtomicLong();
+
+  /** Files published locally by PageSeeder (may be <code>null</code>) */
+  private transient PublishedFiles published = null;
+
+  /** Whether files published locally are served without asking PageSeeder */
+  private boolean servePublished = false;
+
+  /** Evicts resources when content is published (may be <code>null</code>) */
+  private transient FileTreeWatcher watcher = null;
+
+  /** Fetches from PageSeeder in progress */
+  private final transient SingleFlight<String, Boolean> fetches = new SingleFlight<String, Boolean>();
+
+  /**
+   * Creates a servlet caching resources in <code>WEB-INF/cache/resources</code>.
+   */
+  public ResourceProxyServlet() {
+    this("resources", DEFAULT_TYPES);
+  }
+
+  /**
+   * Creates a servlet for the specified name and types of resources.
+   *
+   * @param name         The name of the cache directory in <code>WEB-INF/cache</code>
+   * @param defaultTypes The types of resources accepted unless specified by the <code>types</code>
+   *                     initialisation parameter
+   */
+  protected ResourceProxyServlet(String name, String defaultTypes) {
+    this._name = name;
+    this._defaultTypes = defaultTypes;
+  }
+
+  /**
+   * This servlet accepts the following initialisation parameters.
+   *
+   * <p><code>types</code> is optional and is a comma-separated list of the extensions and media
+   * types of the resources accepted by this servlet, for example "pdf=application/pdf, svg=image/svg+xml";
+   * it defaults to common images, PDF documents and fonts. Other extensions are rejected and
+   * resources returned by PageSeeder with other media types are not served.
+   * <p><code>[extension].cache-control</code> is optional and is the value of the "Cache-Control"
+   * header sent with resources of that type, for example <code>pdf.cache-control</code>; it takes
+   * precedence over <code>cache-control</code> and <code>uriid-cache-control</code>.
+   * <p><code>[extension].freshness-lifetime</code> is optional and is the number of seconds after
+   * which cached resources of that type are revalidated with PageSeeder, it takes precedence over
+   * <code>freshness-lifetime</code>.
+   * <p><code>scope</code> is optional and is either "shared" or "user", defaults to "shared". When
+   * "shared", resources are cached under their URI ID and served to any user; this is only safe
+   * if all users can access the same resources. When "user", resources are fetched anonymously
+   * and cached for everyone when they are public, and only fetched and cached on behalf of the
+   * user who is logged in when PageSeeder refuses or cannot find them anonymously; users may
+   * still be served public resources which were cached for everyone. Paths are resolved to URI IDs
+   * in the same way: anonymously first, then on behalf of the user. Responses which include
+   * resources cached for a user are marked as "private" and vary by cookie.
+   * <p><code>public-max-stale</code> is optional and only applies to the "user" scope: it is the
+   * maximum number of seconds after expiry during which resources cached for everyone are served
+   * stale, defaults to "0". It caps <code>stale-while-revalidate</code> and <code>stale-if-error</code>
+   * so that a resource restricted since it was fetched anonymously is not served to everyone for long.
+   * <p><code>cache-name</code> is optional and is the name of the cache directory in
+   * <code>WEB-INF/cache</code>, defaults to "resources" ("images" for the image proxy servlet).
+   * <p><code>disk-cache-size</code> is optional and is the maximum number of bytes of resources
+   * cached on disk, defaults to "1G"; use "0" for unlimited. When the cache is larger, the least
+   * recently used resources are evicted.
+   * <p><code>disk-cache-interval</code> is optional and is the number of seconds between each
+   * save of the disk cache index and eviction check, defaults to "60".
+   * <p><code>shared-cache</code> is optional and is the absolute path to a directory shared by
+   * the web applications on the same host which proxy the same PageSeeder server. When specified,
+   * public resources are only fetched from PageSeeder by one application and copied from the shared
+   * directory by the others; the directory must be writable by all of them.
+   * <p><code>shared-cache-size</code> is optional and is the maximum number of bytes of resources
+   * in the shared cache, defaults to "1G"; use "0" for unlimited.
+   * <p><code>shared-cache-interval</code> is optional and is the number of seconds between each
+   * eviction check of the shared cache, defaults to "600".
+   * <p><code>shared-cache-lock-timeout</code> is optional and is the number of seconds to wait
+   * for another application fetching the same resource, defaults to "30"; after that, the
+   * resource is fetched from PageSeeder.
+   * <p><code>upstream-max-connections</code> is optional and is the maximum number of concurrent
+   * connections to PageSeeder, defaults to "16". Requests from clients are given a connection
+   * before prefetch and revalidation requests.
+   * <p><code>upstream-connect-timeout</code> is optional and is the number of seconds to wait
+   * for a connection to PageSeeder to be established, defaults to "5".
+   * <p><code>upstream-read-timeout</code> is optional and is the number of seconds to wait for
+   * data from PageSeeder, defaults to "30".
+   * <p><code>upstream-queue-timeout</code> is optional and is the number of seconds to wait for
+   * a connection to PageSeeder to be available, defaults to "10".
+   * <p><code>freshness-lifetime</code> is optional and is the number of seconds after which
+   * cached resources are revalidated with PageSeeder, defaults to "3600". The "max-age" directive or
+   * "Expires" header sent by PageSeeder take precedence.
+   * <p><code>stale-while-revalidate</code> is optional and is the number of seconds after the
+   * expiry of a resource during which the stale resource is served while it is revalidated in the
+   * background, defaults to "86400"; after that, the resource is revalidated before it is served.
+   * <p><code>stale-if-error</code> is optional and is the number of seconds after the expiry of
+   * a resource during which the stale resource is served if PageSeeder cannot be reached, defaults
+   * to "604800".
+   * <p><code>resize-threads</code> is optional and is the maximum number of images resized at
+   * the same time, defaults to half the number of processors.
+   * <p><code>resize-sizes</code> is optional and is a comma-separated list of the widths and
+   * heights of resized variants, for example "100, 200, 400"; requested sizes are rounded up to
+   * the nearest size in the list. It defaults to a list of common sizes from 16 to 4096.
+   * <p><code>resize-max-pixels</code> is optional and is the maximum number of pixels (width
+   * times height) of the images which can be resized, defaults to "16M"; larger images are served
+   * without being resized.
+   * <p><code>memory-cache-size</code> is optional and is the maximum number of bytes of resources
+   * kept in memory, defaults to "16M"; use "0" to disable the memory cache.
+   * <p><code>memory-cache-offheap-threshold</code> is optional and is the size above which resources
+   * kept in memory are stored outside of the heap, defaults to "64K".
+   * <p><code>warmup</code> is optional and indicates whether the most requested resources should
+   * be listed in the manifest <code>WEB-INF/cache/[cache-name].manifest</code> when the servlet is
+   * destroyed and fetched from PageSeeder when it is initialised, defaults to "false". Only
+   * resources which can be accessed without logging in are fetched.
+   * <p><code>warmup-size</code> is optional and is the maximum number of resources listed in the
+   * manifest, defaults to "500".
+   * <p><code>warmup-threads</code> is optional and is the maximum number of resources fetched at
+   * the same time during the warm-up, defaults to "4".
+   * <p><code>warmup-timeout</code> is optional and is the maximum number of seconds the
+   * initialisation of the servlet waits for the warm-up to complete, defaults to "0".
+   * <p><code>async</code> is optional and indicates whether requests which need to fetch an
+   * resource from PageSeeder should be processed asynchronously, defaults to "false".
+   * <p><code>async-threads</code> is optional and is the number of threads completing
+   * asynchronous requests, defaults to "16". When all threads are busy and too many requests are
+   * waiting, requests are processed by the container thread.
+   * <p><code>async-timeout</code> is optional and is the number of seconds before an
+   * asynchronous request times out, defaults to "60"; a "503 Service Unavailable" response is
+   * sent when a request times out.
+   * <p><code>batch-size</code> is optional and is the maximum number of resources which can be
+   * requested at once using the <code>/batch</code> endpoint, defaults to "100"; use "0" to
+   * disable the endpoint.
+   * <p><code>batch-threads</code> is optional and is the number of resources of batches fetched
+   * from PageSeeder at the same time, defaults to "4". When all threads are busy and too many
+   * resources are waiting, resources are fetched by the thread serving the batch.
+   * <p><code>sendfile</code> is optional and indicates whether cached files which are not kept
+   * in memory should be sent directly by the container when it supports it (for example Tomcat
+   * with the NIO or APR connectors), defaults to "true".
+   * <p><code>path-cache-size</code> is optional and is the maximum number of resource paths
+   * resolved to a URI ID kept in memory, defaults to "1000"; use "0" to resolve the path on
+   * every request.
+   * <p><code>path-cache-ttl</code> is optional and is the number of seconds a path resolved to
+   * a URI ID is kept in memory, defaults to "300".
+   * <p><code>path-cache-negative-ttl</code> is optional and is the number of seconds a path
+   * which does not correspond to any document is kept in memory, defaults to "30".
+   * <p><code>not-found-cache-size</code> is optional and is the maximum number of resources not
+   * found on PageSeeder kept in memory, defaults to "1000"; use "0" to disable.
+   * <p><code>not-found-cache-ttl</code> is optional and is the number of seconds a resource not
+   * found on PageSeeder is kept in memory, defaults to "60".
+   * <p><code>watch</code> is optional and indicates whether the PSML folder should be watched
+   * so that resources referenced by published documents and binary files published on their own
+   * are evicted from the cache, defaults to "false".
+   * <p><code>published-files</code> is optional and is the folder relative to the Berlioz
+   * repository where PageSeeder publishes binary files, for example "psml" or "website". When
+   * specified, resources found in that folder are served without asking PageSeeder, so it should
+   * only contain files which any user may access. The files are indexed using the references in
+   * PSML documents, the index is kept up to date when <code>watch</code> is "true".
+   * <p><code>cache-control</code> is optional and is the value of the "Cache-Control" header
+   * sent with resources, defaults to "private".
+   * <p><code>uriid-cache-control</code> is optional and is the value of the "Cache-Control"
+   * header sent with resources requested by URI ID (e.g. <code>/12345.png</code>), defaults to
+   * the value of <code>cache-control</code>.
+   * <p><code>immutable</code> is optional and indicates whether resources requested by URI ID
+   * should be marked as "immutable" so that browsers do not revalidate them while they are
+   * fresh, defaults to "false"; this should be used with a long "max-age".
+   *
+   * <p>Sizes are in bytes and accept the suffixes "K", "M" and "G". Durations are in seconds and
+   * accept the suffixes "s", "m", "h" and "d" (for example "30m").
+   *
+   * {@inheritDoc}
+   */
+  @Override
+  public void init(ServletConfig config) throws ServletException {
+    super.init(config);
+    ServletContext context = config.getServletContext();
+    File contextPath = new File(context.getRealPath("/"));
+    String name = config.getInitParameter("cache-name");
+    if (name == null || name.isEmpty()) {
+      name = this._name;
+    }
+
+    // Types of resources and their cache policies
+    String types = config.getInitParameter("types");
+    this.types = getTypes(config, types != null? types : this._defaultTypes);
+    LOGGER.info("Proxying {}", this.types);
+
+    // Access scope of cached resources
+    String scope = config.getInitParameter("scope");
+    if (scope != null && !"shared".equals(scope) && !"user".equals(scope))
+      throw new ServletException("Invalid scope: "+scope);
+    this.userScope = "user".equals(scope);
+
+    File contextCache = new File(contextPath, "WEB-INF/cache/"+name);
+    long diskSize = getSize(config, "disk-cache-size", DEFAULT_DISK_CACHE_SIZE);
+    long interval = getDuration(config, "disk-cache-interval", DEFAULT_DISK_CACHE_INTERVAL);
+    this.disk = new DiskCache(contextCache, diskSize);
+    try {
+      this.disk.open(interval > 0? interval : DEFAULT_DISK_CACHE_INTERVAL);
+    } catch (IOException ex) {
+      throw new ServletException("Unable to open "+name+" cache", ex);
+    }
+
+    // Resources shared with other web applications
+    String sharedCache = config.getInitParameter("shared-cache");
+    if (sharedCache != null && !sharedCache.trim().isEmpty()) {
+      long sharedSize = getSize(config, "shared-cache-size", DEFAULT_SHARED_CACHE_SIZE);
+      long sharedInterval = getDuration(config, "shared-cache-interval", DEFAULT_SHARED_CACHE_INTERVAL);
+      this.sharedLockTimeout = getDuration(config, "shared-cache-lock-timeout", DEFAULT_SHARED_CACHE_LOCK_TIMEOUT) * 1000;
+      // Keys are only unique for the same server and scope
+      URL server = toURL("/", null);
+      int port = server.getPort() >= 0? server.getPort() : server.getDefaultPort();
+      File directory = new File(sharedCache.trim(), server.getHost()+'-'+port+'/'+(this.userScope? "user" : "shared"));
+      SharedCache shared = new SharedCache(directory, sharedSize);
+      try {
+        shared.open(sharedInterval > 0? sharedInterval : DEFAULT_SHARED_CACHE_INTERVAL);
+        this.shared = shared;
+        LOGGER.info("Sharing resources using {}", shared);
+      } catch (IOException ex) {
+        LOGGER.warn("Unable to open shared cache, resources will not be shared", ex);
+        shared.close();
+      }
+    }
+
+    // Connections to PageSeeder
+    int maxConnections = Math.max(1, getCount(config, "upstream-max-connections", DEFAULT_UPSTREAM_MAX_CONNECTIONS));
+    long connectTimeout = getDuration(config, "upstream-connect-timeout", DEFAULT_UPSTREAM_CONNECT_TIMEOUT) * 1000;
+    long readTimeout = getDuration(config, "upstream-read-timeout", DEFAULT_UPSTREAM_READ_TIMEOUT) * 1000;
+    long queueTimeout = getDuration(config, "upstream-queue-timeout", DEFAULT_UPSTREAM_QUEUE_TIMEOUT) * 1000;
+    this.upstream = new Upstream(maxConnections, (int)connectTimeout, (int)readTimeout, queueTimeout);
+
+    // Freshness
+    this.freshnessLifetime = getDuration(config, "freshness-lifetime", DEFAULT_FRESHNESS_LIFETIME) * 1000;
+    this.staleWhileRevalidate = getDuration(config, "stale-while-revalidate", DEFAULT_STALE_WHILE_REVALIDATE) * 1000;
+    this.staleIfError = getDuration(config, "stale-if-error", DEFAULT_STALE_IF_ERROR) * 1000;
+    this.publicMaxStale = getDuration(config, "public-max-stale", DEFAULT_PUBLIC_MAX_STALE) * 1000;
+    this.revalidations = ThreadPools.newThreadPool(threadName("Revalidation"), REVALIDATION_THREADS, REVALIDATION_QUEUE_SIZE);
+
+    // Resized variants
+    int resizeThreads = Math.max(1, getCount(config, "resize-threads", Runtime.getRuntime().availableProcessors() / 2));
+    this.resizer = ThreadPools.newThreadPool(threadName("Resize"), resizeThreads, RESIZE_QUEUE_SIZE);
+    String resizeSizes = config.getInitParameter("resize-sizes");
+    if (resizeSizes != null && !resizeSizes.trim().isEmpty()) {
+      try {
+        this.resizeSizes = ImageVariant.parseSizes(resizeSizes.trim());
+      } catch (IllegalArgumentException ex) {
+        throw new ServletException(ex.getMessage(), ex);
+      }
+    }
+    this.resizeMaxPixels = getSize(config, "resize-max-pixels", DEFAULT_RESIZE_MAX_PIXELS);
+
+    // Asynchronous mode
+    if ("true".equals(config.getInitParameter("async"))) {
+      int asyncThreads = Math.max(1, getCount(config, "async-threads", DEFAULT_ASYNC_THREADS));
+      this.asyncTimeout = getDuration(config, "async-timeout", DEFAULT_ASYNC_TIMEOUT) * 1000;
+      this.async = ThreadPools.newThreadPool(threadName("Async"), asyncThreads, ASYNC_QUEUE_SIZE);
+    }
+
+    // Memory cache
+    long memorySize = getSize(config, "memory-cache-size", DEFAULT_MEMORY_CACHE_SIZE);
+    long offHeapThreshold = getSize(config, "memory-cache-offheap-threshold", DEFAULT_OFFHEAP_THRESHOLD);
+    if (memorySize > 0) {
+      this.memory = new MemoryCache(memorySize, (int)Math.min(offHeapThreshold, Integer.MAX_VALUE));
+    }
+    // Path cache
+    int pathSize = getCount(config, "path-cache-size", DEFAULT_PATH_CACHE_SIZE);
+    if (pathSize > 0) {
+      this.paths = new TTLCache<String, String>(pathSize);
+      this.pathTTL = getDuration(config, "path-cache-ttl", DEFAULT_PATH_CACHE_TTL) * 1000;
+      this.pathNegativeTTL = getDuration(config, "path-cache-negative-ttl", DEFAULT_PATH_CACHE_NEGATIVE_TTL) * 1000;
+    }
+
+    // Not found cache
+    int notFoundSize = getCount(config, "not-found-cache-size", DEFAULT_NOT_FOUND_CACHE_SIZE);
+    if (notFoundSize > 0) {
+      this.notFound = new TTLCache<String, Boolean>(notFoundSize);
+      this.notFoundTTL = getDuration(config, "not-found-cache-ttl", DEFAULT_NOT_FOUND_CACHE_TTL) * 1000;
+    }
+
+    this.sendfile = !"false".equals(config.getInitParameter("sendfile"));
+
+    // Cache policies
+    String cacheControl = config.getInitParameter("cache-control");
+    if (cacheControl != null) {
+      this.cacheControl = cacheControl;
+    }
+    String uriidCacheControl = config.getInitParameter("uriid-cache-control");
+    this.uriidCacheControl = uriidCacheControl != null? uriidCacheControl : this.cacheControl;
+    if ("true".equals(config.getInitParameter("immutable"))) {
+      this.uriidCacheControl = this.uriidCacheControl+", immutable";
+    }
+
+    // Batches
+    int batchSize = getCount(config, "batch-size", DEFAULT_BATCH_SIZE);
+    if (batchSize > 0) {
+      int batchThreads = Math.max(1, getCount(config, "batch-threads", DEFAULT_BATCH_THREADS));
+      this.batch = new BatchHandler(this, this.types, batchSize, this.uriidCacheControl, threadName("Batch"), batchThreads);
+    }
+
+    context.setAttribute(getClass().getName(), this);
+
+    // Fetch the resources listed in the manifest
+    if ("true".equals(config.getInitParameter("warmup"))) {
+      Path manifest = new File(contextPath, "WEB-INF/cache/"+name+".manifest").toPath();
+      int warmupSize = getCount(config, "warmup-size", DEFAULT_WARMUP_SIZE);
+      int threads = Math.max(1, getCount(config, "warmup-threads", DEFAULT_WARMUP_THREADS));
+      long timeout = getDuration(config, "warmup-timeout", 0);
+      this.warmup = new Warmup(this, manifest, warmupSize);
+      this.warmup.start(threadName("Warmup"), threads, timeout);
+    }
+
+    // Serve files published locally, the index also maps binary files to URI IDs when watching
+    String publishedFiles = config.getInitParameter("published-files");
+    boolean serve = publishedFiles != null && !publishedFiles.trim().isEmpty();
+    boolean watch = "true".equals(config.getInitParameter("watch"));
+    if (serve || watch) {
+      File repository = GlobalSettings.getRepository();
+      File psml = new File(repository, "psml");
+      final PublishedFiles published = new PublishedFiles(psml.toPath(),
+          serve? new File(repository, publishedFiles.trim()).toPath() : psml.toPath());
+      Thread indexer = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          published.index();
+        }
+      }, threadName("Index"));
+      indexer.setDaemon(true);
+      indexer.start();
+      this.published = published;
+      this.servePublished = serve;
+    }
+
+    // Evict resources when content is published
+    if (watch) {
+      this.watcher = FileTreeWatcher.newPSMLWatcher(new ImageCacheListener(this));
+      try {
+        this.watcher.start();
+      } catch (IOException ex) {
+        LOGGER.warn("Unable to watch published content, resources will not be evicted", ex);
+        this.watcher = null;
+      }
+    }
+  }
+
+  @Override
+  public void destroy() {
+    super.destroy();
+    getServletContext().removeAttribute(getClass().getName());
+    if (this.warmup != null) {
+      this.warmup.stop();
+      if (this.disk != null) {
+        this.warmup.save(this.disk);
+      }
+      this.warmup = null;
+    }
+    if (this.watcher != null) {
+      this.watcher.stop();
+      this.watcher = null;
+    }
+    if (this.revalidations != null) {
+      this.revalidations.shutdownNow();
+      this.revalidations = null;
+    }
+    if (this.resizer != null) {
+      this.resizer.shutdownNow();
+      this.resizer = null;
+    }
+    if (this.async != null) {
+      this.async.shutdownNow();
+      this.async = null;
+    }
+    if (this.batch != null) {
+      this.batch.close();
+      this.batch = null;
+    }
+    if (this.memory != null) {
+      LOGGER.info("Closing {}", this.memory);
+      this.memory.clear();
+    }
+    if (this.disk != null) {
+      this.disk.close();
+      LOGGER.info("Closed {}", this.disk);
+    }
+    if (this.shared != null) {
+      this.shared.close();
+    }
+    if (this.paths != null) {
+      this.paths.clear();
+    }
+    if (this.notFound != null) {
+      LOGGER.info("Closing {}, suppressed {} requests", this.notFound, this.suppressed.get());
+      this.notFound.clear();
+    }
+    this.disk = null;
+    this.shared = null;
+    this.memory = null;
+    this.types = null;
+    this.paths = null;
+    this.notFound = null;
+    this.published = null;
+  }
+
+  /**
+   * Clears the resources and paths which were not found on PageSeeder.
+   *
+   * <p>The {@link ImageCacheListener} only evicts the resources affected by each publish event,
+   * this method clears everything.
+   */
+  public void clearNotFound() {
+    TTLCache<String, Boolean> notFound = this.notFound;
+    if (notFound != null) {
+      notFound.clear();
+    }
+    // Paths are cleared as well since they may now resolve to a different document
+    TTLCache<String, String> paths = this.paths;
+    if (paths != null) {
+      paths.clear();
+    }
+  }
+
+  /**
+   * Evicts the resource with the specified URI ID from the caches.
+   *
+   * <p>The resource is fetched again from PageSeeder on the next request. Its resized variants
+   * are evicted as well.
+   *
+   * @param uriid The URI ID of the resource
+   */
+  public void invalidate(String uriid) {
+    DiskCache disk = this.disk;
+    if (disk == null) return;
+    removeVariants('/'+uriid);
+    disk.removeStartingWith(CacheScope.toPrefix('/'+uriid));
+    List<String> extensions = new ArrayList<String>(this.types.extensions());
+    extensions.add("");
+    List<String> keys = new ArrayList<String>();
+    for (String extension : extensions) {
+      String key = '/'+uriid+extension;
+      keys.add(key);
+      disk.remove(key);
+      if (this.shared != null) {
+        this.shared.remove(key);
+      }
+      if (this.notFound != null) {
+        this.notFound.remove(key);
+      }
+    }
+    // Paths resolved to the resource may now resolve to another document
+    TTLCache<String, String> paths = this.paths;
+    if (paths != null) {
+      for (String path : paths.keys()) {
+        String value = paths.get(path);
+        if (value != null && keys.contains(value)) {
+          paths.remove(path);
+        }
+      }
+    }
+  }
+
+  /**
+   * Evicts the paths ending with the specified file names from the path cache.
+   *
+   * <p>Requested paths include the location of the group on PageSeeder, so they are matched by
+   * file name; this includes the paths which could not be resolved before the files were published.
+   *
+   * @param names The names of the files which were published
+   */
+  void invalidatePaths(Collection<String> names) {
+    TTLCache<String, String> paths = this.paths;
+    if (paths == null || names.isEmpty()) return;
+    for (String key : paths.keys()) {
+      int query = key.indexOf('?');
+      String path = query >= 0? key.substring(0, query) : key;
+      String name = path.substring(path.lastIndexOf('/')+1);
+      if (names.contains(name)) {
+        paths.remove(key);
+      }
+    }
+  }
+
+  /**
+   * Updates the index of published files with the files referenced by the specified PSML document.
+   *
+   * @param psml       The path to the PSML document
+   * @param references The references found in the document
+   */
+  void reindex(Path psml, PSMLReferences references) {
+    PublishedFiles published = this.published;
+    if (published != null) {
+      published.update(psml, references);
+    }
+  }
+
+  /**
+   * Returns the URI ID of a binary file published in the PSML folder.
+   *
+   * @param file The binary file
+   *
+   * @return the URI ID or <code>null</code> if no published document references the file.
+   */
+  String getURIID(Path file) {
+    PublishedFiles published = this.published;
+    return published != null? published.toURIID(file) : null;
+  }
+
+  /**
+   * @return the number of requests to PageSeeder avoided because the resource was known not to exist.
+   */
+  public long getSuppressedNotFound() {
+    return this.suppressed.get();
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse res) throws ServletException, IOException {
+    ThreadPoolExecutor async = this.async;
+    if (async != null && req.isAsyncSupported() && !isCached(req)) {
+      // Release the container thread while the resource is fetched from PageSeeder
+      AsyncRequest.start(req, this.asyncTimeout, async, new AsyncRequest.Handler() {
+        @Override
+        public void handle(HttpServletRequest request, HttpServletResponse response) throws IOException {
+          ResourceProxyServlet.this.handle(request, response);
+        }
+      });
+    } else {
+      handle(req, res);
+    }
+  }
+
+  /**
+   * Indicates whether the resource can be served from the cache without asking PageSeeder.
+   *
+   * <p>This method does not record any access to the caches.
+   *
+   * @param req The HTTP servlet request
+   *
+   * @return <code>true</code> if the response can be sent without asking PageSeeder;
+   *         <code>false</code> otherwise.
+   */
+  private boolean isCached(HttpServletRequest req) {
+    String pathInfo = req.getPathInfo();
+    if (pathInfo == null) return true;
+    if (BATCH_PATH.equals(pathInfo)) {
+      BatchHandler batch = this.batch;
+      return batch == null || batch.isReady(req);
+    }
+    ImageVariant variant;
+    try {
+      variant = ImageVariant.parse(req, getMediaType(pathInfo), this.resizeSizes);
+    } catch (IllegalArgumentException ex) {
+      return true;
+    }
+    if (variant == null && getPublishedFile(pathInfo) != null) return true;
+    String key = pathInfo;
+    if (!this.types.isURIID(pathInfo)) {
+      if (this.types.forPath(pathInfo) == null) return true;
+      key = getCachedURIID(pathInfo, req);
+      if (key == null) return false;
+      if (UNKNOWN_PATH.equals(key)) return true;
+    }
+    key = toKey(key, req);
+    if (variant != null) {
+      DiskCache.Entry entry = this.disk.peek(variant.toKey(key));
+      return entry != null && entry.isFresh(System.currentTimeMillis());
+    }
+    return isCached(key);
+  }
+
+  /**
+   * Indicates whether the resource can be served without asking PageSeeder.
+   *
+   * <p>This method does not record any access to the caches.
+   *
+   * @param key The cache key
+   *
+   * @return <code>true</code> if the resource is published locally, fresh enough to be served or
+   *         known not to exist; <code>false</code> otherwise.
+   */
+  boolean isCached(String key) {
+    if (getPublishedFile(CacheScope.toURIID(key)) != null) return true;
+    DiskCache.Entry entry = this.disk.peek(key);
+    if (entry == null) {
+      TTLCache<String, Boolean> notFound = this.notFound;
+      return notFound != null && notFound.get(key) != null;
+    }
+    return System.currentTimeMillis() < entry.expires() + getMaxStale(key, this.staleWhileRevalidate);
+  }
+
+  /**
+   * Handles the request for a resource.
+   *
+   * @param req The HTTP servlet request
+   * @param res The HTTP servlet response
+   *
+   * @throws IOException If an error occurs while fetching the resource or writing the response
+   */
+  private void handle(HttpServletRequest req, HttpServletResponse res) throws IOException {
+    String pathInfo = req.getPathInfo();
+    if (BATCH_PATH.equals(pathInfo)) {
+      BatchHandler batch = this.batch;
+      if (batch != null) {
+        batch.serve(req, res);
+      } else {
+        res.sendError(HttpServletResponse.SC_NOT_FOUND);
+      }
+      return;
+    }
+    String uriid = pathInfo;
+    boolean byURIID = this.types.isURIID(pathInfo);
+    String cacheControl = byURIID? this.uriidCacheControl : this.cacheControl;
+    if (!byURIID && this.types.forPath(pathInfo) == null) {
+      res.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+
+    // Resized variants are generated from the original image
+    ImageVariant variant;
+    try {
+      variant = ImageVariant.parse(req, getMediaType(pathInfo), this.resizeSizes);
+    } catch (IllegalArgumentException ex) {
+      res.sendError(HttpServletResponse.SC_BAD_REQUEST, ex.getMessage());
+      return;
+    }
+
+    // Files published locally are served without asking PageSeeder
+    if (variant == null) {
+      File local = getPublishedFile(pathInfo);
+      if (local != null && servePublished(local, cacheControl, req, res)) return;
+    }
+
+    // The URI ID is used for the cache key, so resources requested by path must be resolved first
+    if (!byURIID) {
+      uriid = toURIID(pathInfo, req);
+      if (uriid == null) {
+        res.sendError(HttpServletResponse.SC_NOT_FOUND);
+        return;
+      }
+    }
+
+    String key = toKey(uriid, req);
+    if (variant != null) {
+      serveVariant(uriid, key, variant, cacheControl, req, res);
+      return;
+    }
+
+    // New resources are cached before they are served, so slow clients do not hold connections to PageSeeder
+    DiskCache.Entry entry = load(uriid, key, req);
+    if (entry == null) {
+      res.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    serveFromCache(entry.key(), entry, cacheControl, req, res);
+  }
+
+  /**
+   * Returns the entry for the resource, fetching it on behalf of the user who is logged in if
+   * PageSeeder refuses or cannot find it anonymously.
+   *
+   * @param uriid The URI ID of the resource followed by the extension (e.g. "/12345.png")
+   * @param key   The cache key of the resource for the current user
+   * @param req   The HTTP servlet request
+   *
+   * @return the entry to serve or <code>null</code> if the resource does not exist.
+   *
+   * @throws IOException If the resource could not be fetched from PageSeeder
+   */
+  private DiskCache.Entry load(String uriid, String key, HttpServletRequest req) throws IOException {
+    DiskCache.Entry entry = load(key, this.disk.get(key), getSession(key, req));
+    if (entry == null && !CacheScope.isScoped(key)) {
+      String scoped = toScopedKey(uriid, req);
+      if (!scoped.equals(key)) {
+        entry = load(scoped, this.disk.get(scoped), getSession(scoped, req));
+      }
+    }
+    return entry;
+  }
+
+  /**
+   * Returns the entry for the resource making sure that it is cached and fresh enough to be served.
+   *
+   * <p>Stale resources are revalidated in the background unless they are too old, in which case
+   * they are revalidated first. Stale resources are returned when PageSeeder cannot be reached.
+   *
+   * @param key     The cache key
+   * @param entry   The current entry for the resource (may be <code>null</code>)
+   * @param session The PageSeeder session of the user (may be <code>null</code>)
+   *
+   * @return the entry to serve or <code>null</code> if the resource does not exist.
+   *
+   * @throws IOException If the resource could not be fetched from PageSeeder
+   */
+  DiskCache.Entry load(String key, DiskCache.Entry entry, PSSession session) throws IOException {
+    long now = System.currentTimeMillis();
+    if (entry != null) {
+      if (entry.isFresh(now)) return entry;
+      if (now < entry.expires() + getMaxStale(key, this.staleWhileRevalidate)) {
+        // Serve the stale resource and revalidate it in the background
+        revalidate(key, entry, toURL(key, session));
+        return entry;
+      }
+    } else if (isNotFound(key)) return null;
+
+    // Concurrent requests for the same resource share the same fetch
+    try {
+      Fetch fetch = new Fetch(toURL(key, session), key, entry, Priority.INTERACTIVE);
+      if (!this.fetches.execute(key, fetch).booleanValue()) {
+        setNotFound(key);
+        return null;
+      }
+    } catch (IOException ex) {
+      // Serve the stale resource rather than an error
+      if (entry != null && now < entry.expires() + getMaxStale(key, this.staleIfError)) {
+        LOGGER.warn("Unable to revalidate {}, serving stale resource: {}", key, ex.getMessage());
+        return entry;
+      }
+      throw ex;
+    }
+    return this.disk.get(key);
+  }
+
+  /**
+   * Fetches the resource in the background unless it is already cached.
+   *
+   * <p>Only public resources requested by URI ID can be fetched.
+   *
+   * @param key The cache key
+   *
+   * @throws IOException If the resource could not be fetched from PageSeeder
+   */
+  void prefetch(String key) throws IOException {
+    ResourceTypes types = this.types;
+    DiskCache disk = this.disk;
+    // The servlet may be destroyed while the warm-up is in progress
+    if (types == null || disk == null) return;
+    if (!types.isURIID(key) || disk.peek(key) != null) return;
+    Fetch fetch = new Fetch(toURL(key, (PSSession)null), key, null, Priority.BACKGROUND);
+    this.fetches.execute(key, fetch);
+  }
+
+  /**
+   * Returns the entry for the resource and records the access.
+   *
+   * @param key The cache key
+   *
+   * @return the entry or <code>null</code> if the resource is not cached.
+   */
+  DiskCache.Entry getEntry(String key) {
+    return this.disk.get(key);
+  }
+
+  /**
+   * Indicates whether the resource can be served without waiting for PageSeeder.
+   *
+   * @param key   The cache key
+   * @param entry The current entry for the resource (may be <code>null</code>)
+   *
+   * @return <code>true</code> if the resource is published locally or fresh enough to be served.
+   */
+  boolean isReady(String key, DiskCache.Entry entry) {
+    if (getPublishedFile(CacheScope.toURIID(key)) != null) return true;
+    return entry != null && System.currentTimeMillis() < entry.expires() + getMaxStale(key, this.staleWhileRevalidate);
+  }
+
+  /**
+   * Writes the resource as a part of the batch, from the published files or the cache.
+   *
+   * @param batch The batch
+   * @param key   The cache key
+   * @param req   The HTTP servlet request
+   *
+   * @return <code>true</code> if the resource was written;
+   *         <code>false</code> if it could not be found.
+   *
+   * @throws IOException If an error occurs while reading the resource or writing the response
+   */
+  boolean writePart(Batch batch, String key, HttpServletRequest req) throws IOException {
+    File local = getPublishedFile(CacheScope.toURIID(key));
+    if (local != null) {
+      String etag = Validators.toETag(local.lastModified(), local.length());
+      if (writePart(batch, key, local, getMediaType(local.getName()), etag)) return true;
+    }
+    DiskCache.Entry entry = load(key, this.disk.get(key), getSession(key, req));
+    return entry != null && writePart(batch, key, entry);
+  }
+
+  /**
+   * Writes the cached resource as a part of the batch.
+   *
+   * @param batch The batch
+   * @param key   The cache key
+   * @param entry The entry in the disk cache
+   *
+   * @return <code>true</code> if the resource was written;
+   *         <code>false</code> if it was not in the cache.
+   *
+   * @throws IOException If an error occurs while reading the file or writing the response
+   */
+  boolean writePart(Batch batch, String key, DiskCache.Entry entry) throws IOException {
+    String media = entry.media() != null? entry.media() : getMediaType(key);
+    String etag = Validators.toETag(entry.hash());
+    ImageResource image = this.memory != null? this.memory.get(entry.hash()) : null;
+    if (image != null) {
+      batch.write(CacheScope.toURIID(key), media, etag, Content.of(image));
+      return true;
+    }
+    if (!writePart(batch, key, this.disk.file(entry), media, etag)) {
+      // The file was deleted from the cache, unless the resource was fetched again meanwhile
+      this.disk.remove(key, entry);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Writes the specified file as a part of the batch.
+   *
+   * @param batch The batch
+   * @param key   The cache key
+   * @param file  The file to write
+   * @param media The media type of the resource
+   * @param etag  The entity tag of the resource
+   *
+   * @return <code>true</code> if the file was written;
+   *         <code>false</code> if it does not exist.
+   *
+   * @throws IOException If an error occurs while reading the file or writing the response
+   */
+  private static boolean writePart(Batch batch, String key, File file, String media, String etag) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      batch.write(CacheScope.toURIID(key), media, etag, Content.of(file, channel, false));
+      return true;
+    } catch (NoSuchFileException ex) {
+      return false;
+    }
+  }
+
+  /**
+   * Indicates whether the resource is known not to exist on PageSeeder.
+   *
+   * @param key The cache key
+   *
+   * @return <code>true</code> if PageSeeder recently could not find the resource.
+   */
+  boolean isNotFound(String key) {
+    TTLCache<String, Boolean> notFound = this.notFound;
+    if (notFound != null && notFound.get(key) != null) {
+      this.suppressed.incrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Remembers that the resource could not be found on PageSeeder.
+   *
+   * @param key The cache key
+   */
+  private void setNotFound(String key) {
+    TTLCache<String, Boolean> notFound = this.notFound;
+    if (notFound != null) {
+      notFound.put(key, Boolean.TRUE, this.notFoundTTL);
+    }
+  }
+
+  /**
+   * Serves a resized variant of the image, generating it if necessary.
+   *
+   * <p>If the variant cannot be generated or the original resource is not an image which can
+   * be resized, the original is served instead.
+   *
+   * @param key          The cache key of the original image
+   * @param variant      The variant to serve
+   * @param cacheControl The value of the Cache-Control header
+   * @param req          The HTTP servlet request
+   * @param res          The HTTP servlet response
+   *
+   * @throws IOException If an error occurs while fetching the original or writing the response
+   */
+  private void serveVariant(String uriid, String key, ImageVariant variant, String cacheControl,
+      HttpServletRequest req, HttpServletResponse res) throws IOException {
+    String variantKey = variant.toKey(key);
+    DiskCache.Entry entry = this.disk.get(variantKey);
+    if (entry != null && entry.isFresh(System.currentTimeMillis())) {
+      if (serveFromCache(variantKey, entry, cacheControl, req, res)) return;
+    }
+
+    // The variant is generated from the original image
+    DiskCache.Entry original = load(uriid, key, req);
+    if (original == null) {
+      res.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    if (!original.key().equals(key)) {
+      // Only accessible to the user
+      key = original.key();
+      variantKey = variant.toKey(key);
+    }
+    if (!ImageVariant.isResizable(original.media() != null? original.media() : getMediaType(key))) {
+      serveFromCache(key, original, cacheControl, req, res);
+      return;
+    }
+    try {
+      // Concurrent requests for the same variant share the same resize
+      if (this.fetches.execute(variantKey, new Resize(key, original, variantKey, variant)).booleanValue()) {
+        entry = this.disk.get(variantKey);
+        if (entry != null && serveFromCache(variantKey, entry, cacheControl, req, res)) return;
+      }
+    } catch (IOException ex) {
+      LOGGER.warn("Unable to resize {} to {}, serving original: {}", key, variant, ex.getMessage());
+    }
+    serveFromCache(key, original, cacheControl, req, res);
+  }
+
+  /**
+   * Returns the cache key of the resource for the current user.
+   *
+   * <p>In the user scope, resources are fetched anonymously first so that public resources are
+   * cached once for everyone. The key in the scope of the user who is logged in is only used if
+   * the resource is already cached for that user or if PageSeeder recently refused or could not
+   * find it anonymously.
+   *
+   * @param uriid The URI ID of the resource followed by the extension (e.g. "/12345.png")
+   * @param req   The HTTP servlet request
+   *
+   * @return the cache key
+   */
+  String toKey(String uriid, HttpServletRequest req) {
+    if (!this.userScope || this.disk.peek(uriid) != null) return uriid;
+    String scoped = toScopedKey(uriid, req);
+    if (this.disk.peek(scoped) != null) return scoped;
+    TTLCache<String, Boolean> notFound = this.notFound;
+    return notFound != null && notFound.get(uriid) != null? scoped : uriid;
+  }
+
+  /**
+   * Returns the cache key of the resource in the scope of the user who is logged in.
+   *
+   * @param uriid The URI ID of the resource followed by the extension (e.g. "/12345.png")
+   * @param req   The HTTP servlet request
+   *
+   * @return the cache key in the scope of the user or the URI ID if the scope is shared or no
+   *         user is logged in.
+   */
+  String toScopedKey(String uriid, HttpServletRequest req) {
+    if (!this.userScope) return uriid;
+    User user = Sessions.getUser(req);
+    return user instanceof PSUser? CacheScope.toKey(uriid, CacheScope.toScope((PSUser)user)) : uriid;
+  }
+
+  /**
+   * Returns the number of ms after expiry during which the resource can be served stale.
+   *
+   * <p>In the user scope, public resources may have been restricted since they were fetched, so
+   * they are not served stale for longer than <code>public-max-stale</code>.
+   *
+   * @param key    The cache key
+   * @param window The number of ms allowed for the resource otherwise
+   *
+   * @return the number of ms
+   */
+  private long getMaxStale(String key, long window) {
+    return this.userScope && !CacheScope.isScoped(key)? Math.min(window, this.publicMaxStale) : window;
+  }
+
+  /**
+   * Returns the PageSeeder session to use to fetch the resource with the specified cache key.
+   *
+   * <p>In the user scope, public resources are always fetched anonymously so that resources
+   * restricted since they were cached are no longer served to everyone.
+   *
+   * @param key The cache key
+   * @param req The HTTP servlet request
+   *
+   * @return the session of the current user or <code>null</code> for anonymous access.
+   */
+  PSSession getSession(String key, HttpServletRequest req) {
+    if (this.userScope && !CacheScope.isScoped(key)) return null;
+    User user = Sessions.getUser(req);
+    return user instanceof PSUser? ((PSUser)user).getSession() : null;
+  }
+
+  /**
+   * Returns the URL of the resource on PageSeeder.
+   *
+   * @param key     The cache key of the resource (e.g. "/12345.png")
+   * @param session The PageSeeder session (may be <code>null</code> for anonymous access)
+   *
+   * @return the corresponding URL
+   */
+  URL toURL(String key, PSSession session) {
+    PSHTTPResource resource = new PSHTTPResource(PSHTTPResourceType.RESOURCE, "/ps/uri"+CacheScope.toURIID(key));
+    return resource.toURL(session);
+  }
+
+  /**
+   * Revalidates the cached resource with PageSeeder in the background.
+   *
+   * <p>If too many resources are waiting to be revalidated, the resource will be revalidated on a
+   * later request.
+   *
+   * @param key   The cache key
+   * @param entry The stale entry
+   * @param url   The URL of the resource on PageSeeder
+   */
+  private void revalidate(final String key, final DiskCache.Entry entry, final URL url) {
+    ThreadPoolExecutor revalidations = this.revalidations;
+    if (revalidations == null || this.fetches.isInProgress(key)) return;
+    try {
+      revalidations.execute(new Runnable() {
+        @Override
+        public void run() {
+          // The entry may have been revalidated or replaced while this task was queued
+          if (entry.isFresh(System.currentTimeMillis()) || ResourceProxyServlet.this.disk.get(key) != entry) return;
+          try {
+            ResourceProxyServlet.this.fetches.execute(key, new Fetch(url, key, entry, Priority.BACKGROUND));
+          } catch (IOException ex) {
+            LOGGER.info("Unable to revalidate {}: {}", key, ex.getMessage());
+          }
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      LOGGER.debug("Too many resources to revalidate, skipping {}", key);
+    }
+  }
+
+  /**
+   * Resolves the path of a resource to its URI ID using the path cache when possible.
+   *
+   * <p>Paths are resolved anonymously first so that they can be cached for everyone. Paths
+   * which cannot be resolved anonymously are resolved on behalf of the user who is logged in
+   * and only cached for that user.
+   *
+   * <p>Paths which do not correspond to any document are also cached for a shorter time.
+   *
+   * @param path The path of the resource
+   * @param req  The HTTP servlet request
+   *
+   * @return the URI ID followed by the extension (e.g. "/12345.png"), the path if it could not
+   *         be resolved because of an error or <code>null</code> if there is no such document.
+   */
+  private String toURIID(String path, HttpServletRequest req) {
+    String uriid = getCachedURIID(path, req);
+    if (UNKNOWN_PATH.equals(uriid)) {
+      this.suppressed.incrementAndGet();
+      return null;
+    }
+    if (uriid != null) return uriid;
+
+    // Ask PageSeeder
+    String key = toPathKey(path, req);
+    User user = Sessions.getUser(req);
+    TTLCache<String, String> paths = this.paths;
+    if (paths == null || paths.get(key) == null) {
+      uriid = resolve(path, req, null, key);
+      if (uriid != null && !UNKNOWN_PATH.equals(uriid)) return uriid;
+      if (!(user instanceof PSUser)) return uriid == null? path : null;
+    }
+    uriid = resolve(path, req, ((PSUser)user).getSession(), toPathKey(path, req, (PSUser)user));
+    if (uriid == null) return path;
+    return UNKNOWN_PATH.equals(uriid)? null : uriid;
+  }
+
+  /**
+   * Returns the URI ID of the resource from the path cache.
+   *
+   * @param path The path of the resource
+   * @param req  The HTTP servlet request
+   *
+   * @return the URI ID followed by the extension, <code>UNKNOWN_PATH</code> if there is no such
+   *         document for the current user or <code>null</code> if the path is not cached.
+   */
+  private String getCachedURIID(String path, HttpServletRequest req) {
+    TTLCache<String, String> paths = this.paths;
+    if (paths == null) return null;
+    String uriid = paths.get(toPathKey(path, req));
+    if (!UNKNOWN_PATH.equals(uriid)) return uriid;
+    User user = Sessions.getUser(req);
+    return user instanceof PSUser? paths.get(toPathKey(path, req, (PSUser)user)) : uriid;
+  }
+
+  /**
+   * Asks PageSeeder for the URI ID of the resource and caches the result under the specified key.
+   *
+   * @param path    The path of the resource
+   * @param req     The HTTP servlet request
+   * @param session The PageSeeder session (may be <code>null</code> for anonymous access)
+   * @param key     The key in the path cache
+   *
+   * @return the URI ID followed by the extension, <code>UNKNOWN_PATH</code> if there is no such
+   *         document or <code>null</code> if it could not be resolved because of an error.
+   */
+  private String resolve(String path, HttpServletRequest req, PSSession session, String key) {
+    String group = req.getParameter("group");
+    DocumentManager manager = new DocumentManager(session);
+    PSDocument document = null;
+    try {
+      PSHTTPResource source = new PSHTTPResource(PSHTTPResourceType.RESOURCE, path.replace("//", "/"));
+      URL url = source.toURL(session);
+      document = manager.getDocument(url.toString().split(";")[0], new PSGroup(group));
+    } catch (APIException ex) {
+      // Don't cache errors
+      LOGGER.warn("Unable to resolve URI ID of resource {}", path, ex);
+      return null;
+    }
+
+    String uriid = UNKNOWN_PATH;
+    if (document != null) {
+      String[] parts = path.split("\\.");
+      uriid = "/"+document.getId()+'.'+parts[parts.length-1];
+    }
+    TTLCache<String, String> paths = this.paths;
+    if (paths != null) {
+      paths.put(key, uriid, UNKNOWN_PATH.equals(uriid)? this.pathNegativeTTL : this.pathTTL);
+    }
+    return uriid;
+  }
+
+  /**
+   * Returns the key used in the path cache for paths resolved anonymously.
+   *
+   * @param path The path of the resource
+   * @param req  The HTTP servlet request
+   *
+   * @return the path and group of the resource.
+   */
+  private static String toPathKey(String path, HttpServletRequest req) {
+    String group = req.getParameter("group");
+    return group != null? path+'?'+group : path;
+  }
+
+  /**
+   * Returns the key used in the path cache for paths resolved on behalf of the specified user.
+   *
+   * <p>Paths always start with '/' so the scope of the user is used as a prefix.
+   *
+   * @param path The path of the resource
+   * @param req  The HTTP servlet request
+   * @param user The user who is logged in
+   *
+   * @return the scope of the user followed by the path and group of the resource.
+   */
+  private static String toPathKey(String path, HttpServletRequest req, PSUser user) {
+    return CacheScope.toScope(user)+toPathKey(path, req);
+  }
+
+  /**
+   * Serve the resource from the memory or the disk cache.
+   *
+   * @param key          The cache key
+   * @param entry        The entry in the disk cache
+   * @param cacheControl The value of the Cache-Control header
+   * @param req          The HTTP servlet request
+   * @param res          The HTTP servlet response
+   *
+   * @return <code>true</code> if the resource was served from the cache;
+   *         <code>false</code> if it was not in the cache.
+   *
+   * @throws IOException If an error occurs while reading the file or writing the response
+   */
+  private boolean serveFromCache(String key, DiskCache.Entry entry, String cacheControl, HttpServletRequest req,
+      HttpServletResponse res) throws IOException {
+
+    // Headers come from the metadata of the entry, not from the file which may be shared or copied
+    String media = entry.media() != null? entry.media() : getMediaType(key);
+    String etag = Validators.toETag(entry.hash());
+    long modified = entry.modified() > 0? entry.modified() : entry.fetched();
+    cacheControl = getCacheControl(media, cacheControl);
+    if (CacheScope.isScoped(key)) {
+      cacheControl = toPrivate(cacheControl);
+      res.setHeader("Vary", "Cookie");
+    }
+
+    // Try the memory first, resources are kept in memory by content so identical resources share a copy
+    ImageResource image = this.memory != null? this.memory.get(entry.hash()) : null;
+    if (image != null) {
+      serve(image, media, etag, modified, cacheControl, req, res);
+      return true;
+    }
+
+    File cached = this.disk.file(entry);
+    try {
+      // Only load the file if it is worth keeping in memory, otherwise serve straight from the file
+      if (this.memory != null && this.memory.admits(entry.hash(), entry.size())) {
+        image = getFromFile(cached, media);
+        this.memory.put(entry.hash(), image);
+        serve(image, media, etag, modified, cacheControl, req, res);
+      } else {
+        serve(cached, media, etag, modified, cacheControl, req, res);
+      }
+    } catch (NoSuchFileException ex) {
+      // The file was deleted from the cache, unless the resource was fetched again meanwhile
+      this.disk.remove(key, entry);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns the file published locally for the specified path info.
+   *
+   * @param pathInfo The path info of the request (e.g. "/12345.png" or a path)
+   *
+   * @return the file or <code>null</code> if there is no such file or it is not an accepted type.
+   */
+  private File getPublishedFile(String pathInfo) {
+    PublishedFiles published = this.published;
+    if (published == null || !this.servePublished || pathInfo == null) return null;
+    Path file;
+    if (this.types.isURIID(pathInfo)) {
+      int dot = pathInfo.lastIndexOf('.');
+      file = published.forURIID(pathInfo.substring(1, dot > 0? dot : pathInfo.length()));
+    } else {
+      file = published.forPath(pathInfo);
+    }
+    if (file == null || this.types.forPath(file.getFileName().toString()) == null) return null;
+    return file.toFile();
+  }
+
+  /**
+   * Serve a file published locally by PageSeeder.
+   *
+   * <p>The file may be replaced when content is published, so the validators are derived from its
+   * last modified date and length.
+   *
+   * @param file         The published file
+   * @param cacheControl The value of the Cache-Control header
+   * @param req          The HTTP servlet request
+   * @param res          The HTTP servlet response
+   *
+   * @return <code>true</code> if the file was served;
+   *         <code>false</code> if it no longer exists.
+   *
+   * @throws IOException If an error occurs while reading the file or writing the response
+   */
+  private boolean servePublished(File file, String cacheControl, HttpServletRequest req,
+      HttpServletResponse res) throws IOException {
+    String media = getMediaType(file.getName());
+    long modified = file.lastModified();
+    String etag = Validators.toETag(modified, file.length());
+    try {
+      serve(file, media, etag, modified, getCacheControl(media, cacheControl), req, res);
+    } catch (NoSuchFileException ex) {
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Serve the specified resource from memory.
+   *
+   * @param image        The resource to serve
+   * @param media        The media type of the resource
+   * @param etag         The entity tag of the resource
+   * @param modified     The last modified date of the resource (0 if unknown)
+   * @param cacheControl The value of the Cache-Control header
+   * @param req          The HTTP servlet request
+   * @param res          The HTTP servlet response
+   *
+   * @throws IOException If an error occurs while writing the response
+   */
+  private static void serve(ImageResource image, String media, String etag, long modified,
+      String cacheControl, HttpServletRequest req, HttpServletResponse res) throws IOException {
+    if (checkNotModified(etag, modified, cacheControl, req, res)) return;
+    Content.of(image).send(media, etag, modified, req, res);
+  }
+
+  /**
+   * Serve the specified cached file without loading it in memory.
+   *
+   * <p>If the servlet container supports it, the container is asked to send the file directly
+   * to the socket, otherwise the file is copied to the output through a file channel.
+   *
+   * <p>Ranges are read directly from the file using positioned reads.
+   *
+   * @param file         The cached file to serve
+   * @param media        The media type of the resource
+   * @param etag         The entity tag of the resource
+   * @param modified     The last modified date of the resource (0 if unknown)
+   * @param cacheControl The value of the Cache-Control header
+   * @param req          The HTTP servlet request
+   * @param res          The HTTP servlet response
+   *
+   * @throws IOException If an error occurs while reading the file or writing the response
+   */
+  private void serve(File file, String media, String etag, long modified, String cacheControl,
+      HttpServletRequest req, HttpServletResponse res) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      if (checkNotModified(etag, modified, cacheControl, req, res)) return;
+      Content.of(file, channel, this.sendfile).send(media, etag, modified, req, res);
+    }
+  }
+
+  /**
+   * Sets the validators and caching headers on the response and sends a "304 Not Modified"
+   * response if the client already has the current version of the resource.
+   *
+   * @param etag         The entity tag of the resource (may be <code>null</code>)
+   * @param modified     The last modified date of the resource
+   * @param cacheControl The value of the Cache-Control header
+   * @param req          The HTTP servlet request
+   * @param res          The HTTP servlet response
+   *
+   * @return <code>true</code> if a "304 Not Modified" response was sent;
+   *         <code>false</code> if the resource should be sent.
+   */
+  private static boolean checkNotModified(String etag, long modified, String cacheControl,
+      HttpServletRequest req, HttpServletResponse res) {
+    if (etag != null) {
+      res.setHeader("ETag", etag);
+    }
+    if (modified > 0) {
+      res.setDateHeader("Last-Modified", modified);
+    }
+    if (cacheControl != null && !cacheControl.isEmpty()) {
+      res.setHeader("Cache-Control", cacheControl);
+    }
+    if (Validators.isNotModified(req, etag, modified)) {
+      res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Fetches a resource from PageSeeder and makes a copy in the file system.
+   *
+   * <p>The resource is written to a temporary file as fast as PageSeeder sends it and the connection
+   * is released as soon as the resource is received, before it is sent to any client.
+   *
+   * <p>If the resource is already in the cache, a conditional request is made so that the resource is
+   * only downloaded again if it has changed.
+   */
+  private final class Fetch implements Callable<Boolean> {
+
+    /** The URL to the resource on PageSeeder */
+    private final URL _url;
+
+    /** The cache key */
+    private final String _key;
+
+    /** The entry to revalidate (may be <code>null</code>) */
+    private final DiskCache.Entry _entry;
+
+    /** The priority of the request to PageSeeder */
+    private final Priority _priority;
+
+    Fetch(URL url, String key, DiskCache.Entry entry, Priority priority) {
+      this._url = url;
+      this._key = key;
+      this._entry = entry;
+      this._priority = priority;
+    }
+
+    @Override
+    public Boolean call() throws IOException {
+      SharedCache shared = ResourceProxyServlet.this.shared;
+      if (shared == null || CacheScope.isScoped(this._key)) return fetch();
+      // Only one application on the host fetches the resource, the others use its copy; the lock
+      // is specific to the key, so other resources are fetched meanwhile
+      SharedCache.Lock lock;
+      try {
+        lock = shared.lock(this._key, ResourceProxyServlet.this.sharedLockTimeout);
+      } catch (InterruptedIOException ex) {
+        throw ex;
+      } catch (IOException ex) {
+        // The shared cache is optional
+        LOGGER.warn("Unable to lock {} in shared cache, fetching it directly: {}", this._key, ex.getMessage());
+        return fetch();
+      }
+      try {
+        if (lock == null) {
+          LOGGER.debug("Timed out waiting for shared cache lock on {}", this._key);
+        }
+        if (adopt(shared)) return Boolean.TRUE;
+        Boolean found = fetch();
+        if (found.booleanValue()) {
+          publish(shared);
+        } else {
+          shared.remove(this._key);
+        }
+        return found;
+      } finally {
+        if (lock != null) {
+          lock.close();
+        }
+      }
+    }
+
+    /**
+     * Fetches the resource from PageSeeder.
+     */
+    private Boolean fetch() throws IOException {
+      try (Upstream.Lease lease = ResourceProxyServlet.this.upstream.open(this._url, this._priority)) {
+        return fetch(lease.connection());
+      }
+    }
+
+    /**
+     * Copies the resource from the shared cache if another application has fetched it recently.
+     *
+     * @return <code>true</code> if the resource was copied or is unchanged.
+     */
+    private boolean adopt(SharedCache shared) throws IOException {
+      SharedCache.Item item = shared.get(this._key);
+      if (item == null || !item.isFresh(System.currentTimeMillis())) return false;
+      // Another application may accept other types of resources
+      if (ResourceProxyServlet.this.types.forMedia(item.media()) == null) return false;
+      DiskCache disk = ResourceProxyServlet.this.disk;
+      if (this._entry != null && item.hash().equals(this._entry.hash())) {
+        // Revalidated by another application
+        disk.refresh(this._entry, item.expires());
+        return true;
+      }
+      Path temp = disk.newTempFile(this._key);
+      try {
+        try {
+          shared.copyTo(item, temp);
+        } catch (IOException ex) {
+          // The blob may have been evicted by the janitor meanwhile
+          LOGGER.debug("Unable to copy {} from shared cache: {}", this._key, ex.getMessage());
+          return false;
+        }
+        disk.commit(this._key, temp, item.media(), item.modified(), item.etag(), item.expires());
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+      if (this._entry != null) {
+        // The resource has changed
+        removeVariants(this._key);
+      }
+      return true;
+    }
+
+    /**
+     * Makes the resource which was just fetched available to the other applications.
+     */
+    private void publish(SharedCache shared) {
+      DiskCache disk = ResourceProxyServlet.this.disk;
+      DiskCache.Entry entry = disk.peek(this._key);
+      if (entry == null) return;
+      try {
+        shared.put(this._key, disk.file(entry), entry.hash(), entry.media(), entry.modified(), entry.etag(), entry.expires());
+      } catch (IOException ex) {
+        LOGGER.warn("Unable to share {}: {}", this._key, ex.getMessage());
+      }
+    }
+
+    /**
+     * Fetches the resource using the specified connection.
+     */
+    private Boolean fetch(URLConnection connection) throws IOException {
+      // The servlet may be destroyed while waiting for PageSeeder
+      DiskCache disk = ResourceProxyServlet.this.disk;
+      ResourceTypes types = ResourceProxyServlet.this.types;
+      if (disk == null || types == null) throw new InterruptedIOException("Servlet destroyed");
+      if (this._entry != null) {
+        if (this._entry.etag() != null) {
+          connection.setRequestProperty("If-None-Match", this._entry.etag());
+        }
+        if (this._entry.modified() > 0) {
+          connection.setIfModifiedSince(this._entry.modified());
+        }
+      }
+      InputStream in = null;
+      try {
+        if (connection instanceof HttpURLConnection) {
+          int status = ((HttpURLConnection)connection).getResponseCode();
+          if (this._entry != null && status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            // The cached resource is still valid
+            disk.refresh(this._entry, getExpires(connection, this._entry.media()));
+            return Boolean.TRUE;
+          }
+          if ((status == HttpURLConnection.HTTP_UNAUTHORIZED || status == HttpURLConnection.HTTP_FORBIDDEN)
+           && ResourceProxyServlet.this.userScope && !CacheScope.isScoped(this._key)) {
+            // The resource is no longer public
+            if (this._entry != null) {
+              evict(this._key);
+            }
+            return Boolean.FALSE;
+          }
+        }
+        in = connection.getInputStream();
+      } catch (FileNotFoundException ex) {
+        // The resource no longer exists
+        if (this._entry != null) {
+          evict(this._key);
+        }
+        return Boolean.FALSE;
+      }
+
+      // Only accept the allowed types of resources
+      String media = connection.getContentType();
+      if (media == null) {
+        ResourceTypes.Type type = types.forPath(this._key);
+        media = type != null? type.media() : null;
+      }
+      if (types.forMedia(media) == null) {
+        LOGGER.warn("Rejecting {} returned by PageSeeder as {}", this._key, media);
+        in.close();
+        if (this._entry != null) {
+          evict(this._key);
+        }
+        return Boolean.FALSE;
+      }
+
+      // Extract metadata
+      long modified = connection.getLastModified();
+      String etag   = connection.getHeaderField("ETag");
+      long expires  = getExpires(connection, media);
+
+      // Copy content to a temporary file
+      Path temp = disk.newTempFile(this._key);
+      try {
+        try (InputStream raw = in) {
+          Files.copy(raw, temp, StandardCopyOption.REPLACE_EXISTING);
+        }
+        disk.commit(this._key, temp, media, modified, etag, expires);
+        if (this._entry != null) {
+          // The resource has changed
+          removeVariants(this._key);
+        }
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+      return Boolean.TRUE;
+    }
+
+    /**
+     * Returns when the resource should be revalidated.
+     *
+     * <p>The "max-age" directive of the "Cache-Control" header and the "Expires" header sent by
+     * PageSeeder take precedence over the freshness lifetime of the type of resource or of the
+     * servlet.
+     */
+    private long getExpires(URLConnection connection, String media) {
+      long now = System.currentTimeMillis();
+      String cacheControl = connection.getHeaderField("Cache-Control");
+      if (cacheControl != null) {
+        for (String directive : cacheControl.split(",")) {
+          String d = directive.trim().toLowerCase(Locale.ENGLISH);
+          if (d.startsWith("max-age=")) {
+            try {
+              return now + Long.parseLong(d.substring(8).trim()) * 1000;
+            } catch (NumberFormatException ex) {
+              LOGGER.debug("Ignoring invalid max-age for {}", this._key);
+            }
+          }
+        }
+      }
+      long expiration = connection.getExpiration();
+      return expiration > 0? expiration : now + getFreshnessLifetime(media);
+    }
+  }
+
+  /**
+   * Generates a resized variant of an image and stores it in the disk cache.
+   *
+   * <p>The image is resized by the bounded pool of resize threads.
+   */
+  private final class Resize implements Callable<Boolean> {
+
+    /** The cache key of the original image */
+    private final String _key;
+
+    /** The entry of the original image */
+    private final DiskCache.Entry _original;
+
+    /** The cache key of the variant */
+    private final String _variantKey;
+
+    /** The variant to generate */
+    private final ImageVariant _variant;
+
+    Resize(String key, DiskCache.Entry original, String variantKey, ImageVariant variant) {
+      this._key = key;
+      this._original = original;
+      this._variantKey = variantKey;
+      this._variant = variant;
+    }
+
+    /**
+     * @return <code>true</code> if the variant was generated;
+     *         <code>false</code> if there are too many images waiting to be resized.
+     */
+    @Override
+    public Boolean call() throws IOException {
+      ThreadPoolExecutor resizer = ResourceProxyServlet.this.resizer;
+      if (resizer == null) return Boolean.FALSE;
+      Future<?> task;
+      try {
+        task = resizer.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            resize();
+            return null;
+          }
+        });
+      } catch (RejectedExecutionException ex) {
+        LOGGER.debug("Too many images to resize, skipping {}", this._variantKey);
+        return Boolean.FALSE;
+      }
+      try {
+        task.get();
+      } catch (InterruptedException ex) {
+        task.cancel(true);
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while resizing image");
+      } catch (ExecutionException ex) {
+        Throwable cause = ex.getCause();
+        if (cause instanceof IOException) throw (IOException)cause;
+        throw new IOException(cause);
+      }
+      return Boolean.TRUE;
+    }
+
+    /**
+     * Resizes the original image and commits the variant to the disk cache.
+     */
+    private void resize() throws IOException {
+      DiskCache disk = ResourceProxyServlet.this.disk;
+      File source = disk.file(this._original);
+      String media = this._original.media() != null? this._original.media() : getMediaType(this._key);
+      Path temp = disk.newTempFile(this._variantKey);
+      try {
+        String variantMedia = this._variant.resize(source, temp, media, ResourceProxyServlet.this.resizeMaxPixels);
+        // The variant expires with the original image
+        long expires = Math.max(this._original.expires(), System.currentTimeMillis() + VARIANT_MIN_LIFETIME);
+        disk.commit(this._variantKey, temp, variantMedia, this._original.modified(), null, expires);
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+    }
+  }
+
+  /**
+   * Removes the resized variants of the image from the disk cache.
+   *
+   * <p>The memory cache holds resources by content, so it never serves a copy which was replaced
+   * and is left to evict unused resources.
+   *
+   * @param key The cache key of the original image
+   */
+  private void removeVariants(String key) {
+    this.disk.removeStartingWith(ImageVariant.toPrefix(key));
+  }
+
+  /**
+   * Removes the resource and its variants from the disk cache.
+   *
+   * @param key The cache key
+   */
+  private void evict(String key) {
+    this.disk.remove(key);
+    removeVariants(key);
+  }
+
+  /**
+   * Returns the resource from the locally cached file
+   *
+   * @param file  The file acting as a cache
+   * @param media The media type of the resource
+   * @return The corresponding resource
+   *
+   * @throws IOException If an error occurs while reading the file
+   * @throws UnsupportedOperationException If the file size is larger than MAX_INTEGER
+   */
+  private ImageResource getFromFile(File file, String media) throws IOException {
+    boolean offHeap = this.memory != null && file.length() >= this.memory.offHeapThreshold();
+    return ImageResource.load(file, media, offHeap);
+  }
+
+  /**
+   * Returns the media type of the resource based on the extension of its key or file name.
+   *
+   * <p>Only used for published files and for resources cached by previous versions which did
+   * not record the media type.
+   *
+   * @param key The cache key or file name
+   * @return The corresponding media type
+   */
+  private String getMediaType(String key) {
+    ResourceTypes.Type type = this.types.forPath(key);
+    return type != null? type.media() : "application/octet-stream";
+  }
+
+  /**
+   * Returns the Cache-Control header for the specified type of resource.
+   *
+   * @param media        The media type of the resource
+   * @param defaultValue The Cache-Control header if the type does not specify one
+   *
+   * @return the value of the Cache-Control header
+   */
+  private String getCacheControl(String media, String defaultValue) {
+    ResourceTypes.Type type = this.types.forMedia(media);
+    return type != null && type.cacheControl() != null? type.cacheControl() : defaultValue;
+  }
+
+  /**
+   * Returns the Cache-Control header for a resource which must only be served to the current user.
+   *
+   * <p>The "public" and "private" directives are replaced by "private", the others are kept.
+   *
+   * @param cacheControl The value of the Cache-Control header (may be <code>null</code>)
+   *
+   * @return the value of the Cache-Control header including "private"
+   */
+  static String toPrivate(String cacheControl) {
+    StringBuilder value = new StringBuilder("private");
+    if (cacheControl != null) {
+      for (String directive : cacheControl.split(",")) {
+        String d = directive.trim();
+        if (d.isEmpty() || "public".equalsIgnoreCase(d) || "private".equalsIgnoreCase(d)) continue;
+        value.append(", ").append(d);
+      }
+    }
+    return value.toString();
+  }
+
+  /**
+   * Returns the number of ms before resources of the specified type are revalidated.
+   *
+   * @param media The media type of the resource
+   *
+   * @return the freshness lifetime of the type or of the servlet.
+   */
+  private long getFreshnessLifetime(String media) {
+    ResourceTypes.Type type = this.types.forMedia(media);
+    return type != null && type.freshnessLifetime() >= 0? type.freshnessLifetime() : this.freshnessLifetime;
+  }
+
+  /**
+   * Returns the types of resources accepted by this servlet and their cache policies.
+   *
+   * @param config The servlet configuration
+   * @param spec   A comma-separated list of extensions mapped to media types
+   *
+   * @return the types of resources
+   *
+   * @throws ServletException If the specification is invalid
+   */
+  private static ResourceTypes getTypes(ServletConfig config, String spec) throws ServletException {
+    Map<String, String> media;
+    try {
+      media = ResourceTypes.parse(spec);
+    } catch (IllegalArgumentException ex) {
+      throw new ServletException(ex.getMessage(), ex);
+    }
+    List<ResourceTypes.Type> types = new ArrayList<ResourceTypes.Type>();
+    for (Map.Entry<String, String> t : media.entrySet()) {
+      String extension = t.getKey();
+      String cacheControl = config.getInitParameter(extension+".cache-control");
+      long lifetime = getDuration(config, extension+".freshness-lifetime", -1);
+      types.add(new ResourceTypes.Type(extension, t.getValue(), cacheControl, lifetime >= 0? lifetime * 1000 : -1));
+    }
+    return new ResourceTypes(types);
+  }
+
+  /**
+   * Returns the name of a thread of this servlet (e.g. "ImageProxy-Resize").
+   *
+   * @param task The task of the thread
+   *
+   * @return the name of the thread
+   */
+  private String threadName(String task) {
+    return getClass().getSimpleName().replace("Servlet", "")+'-'+task;
+  }
+
+  /**
+   * Returns the value of the specified initialisation parameter as a number of seconds.
+   *
+   * @param config       The servlet configuration
+   * @param name         The name of the initialisation parameter
+   * @param defaultValue The default value if the parameter is not specified or invalid
+   *
+   * @return the corresponding number of seconds.
+   */
+  private static long getDuration(ServletConfig config, String name, long defaultValue) {
+    String value = config.getInitParameter(name);
+    if (value == null || value.trim().isEmpty()) return defaultValue;
+    String v = value.trim().toLowerCase(Locale.ENGLISH);
+    long unit = 0;
+    switch (v.charAt(v.length()-1)) {
+      case 's': unit = 1; break;
+      case 'm': unit = 60; break;
+      case 'h': unit = 60*60; break;
+      case 'd': unit = 24*60*60; break;
+      default:
+    }
+    if (unit > 0) {
+      v = v.substring(0, v.length()-1).trim();
+    } else {
+      unit = 1;
+    }
+    try {
+      return Long.parseLong(v) * unit;
+    } catch (NumberFormatException ex) {
+      LOGGER.warn("Ignoring invalid value '{}' for init parameter {}", value, name);
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Returns the value of the specified initialisation parameter as a number of bytes.
+   *
+   * @param config       The servlet configuration
+   * @param name         The name of the initialisation parameter
+   * @param defaultValue The default value if the parameter is not specified or invalid
+   *
+   * @return the corresponding number of bytes.
+   */
+  private static long getSize(ServletConfig config, String name, long defaultValue) {
+    String value = config.getInitParameter(name);
+    if (value == null || value.trim().isEmpty()) return defaultValue;
+    String v = value.trim().toUpperCase(Locale.ENGLISH);
+    long unit = 1;
+    switch (v.charAt(v.length()-1)) {
+      case 'K': unit = 1024L; break;
+      case 'M': unit = 1024L*1024; break;
+      case 'G': unit = 1024L*1024*1024; break;
+      default:
+    }
+    if (unit > 1) {
+      v = v.substring(0, v.length()-1).trim();
+    }
+    try {
+      return Long.parseLong(v) * unit;
+    } catch (NumberFormatException ex) {
+      LOGGER.warn("Ignoring invalid value '{}' for init parameter {}", value, name);
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Returns the value of the specified initialisation parameter as a plain number.
+   *
+   * <p>Unlike sizes, counts of threads, connections or entries do not accept any unit.
+   *
+   * @param config       The servlet configuration
+   * @param name         The name of the initialisation parameter
+   * @param defaultValue The default value if the parameter is not specified or invalid
+   *
+   * @return the corresponding number.
+   */
+  private static int getCount(ServletConfig config, String name, int defaultValue) {
+    String value = config.getInitParameter(name);
+    if (value == null || value.trim().isEmpty()) return defaultValue;
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException ex) {
+      LOGGER.warn("Ignoring invalid value '{}' for init parameter {}", value, name);
+      return defaultValue;
+    }
+  }
+
+}
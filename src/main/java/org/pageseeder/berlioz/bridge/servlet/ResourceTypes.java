@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 1999-2014 allette systems pty. ltd.
+ */
+package org.pageseeder.berlioz.bridge.servlet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The types of resources a proxy servlet accepts and their cache policies.
+ *
+ * <p>Types are specified as a comma-separated list of extensions mapped to media types, for
+ * example <code>"png=image/png, pdf=application/pdf"</code>. Only resources with one of these
+ * extensions can be requested by path, and only resources which PageSeeder returns with one of
+ * these media types are cached and served.
+ *
+ * @author Christophe Lauret
+ *
+ * @version 0.3.2
+ * @since 0.3.2
+ */
+final class ResourceTypes {
+
+  /** Types by extension */
+  private final Map<String, Type> _extensions = new LinkedHashMap<String, Type>();
+
+  /** Types by media type */
+  private final Map<String, Type> _media = new LinkedHashMap<String, Type>();
+
+  /**
+   * @param types The types of resources to accept
+   */
+  ResourceTypes(List<Type> types) {
+    for (Type type : types) {
+      this._extensions.put(type.extension(), type);
+      if (!this._media.containsKey(type.media())) {
+        this._media.put(type.media(), type);
+      }
+    }
+  }
+
+  /**
+   * Parses the specification of the types.
+   *
+   * @param spec A comma-separated list of extensions mapped to media types
+   *
+   * @return the media types by extension in the order they were specified.
+   *
+   * @throws IllegalArgumentException If the specification is invalid
+   */
+  public static Map<String, String> parse(String spec) {
+    Map<String, String> types = new LinkedHashMap<String, String>();
+    for (String item : spec.split(",")) {
+      String t = item.trim();
+      if (t.isEmpty()) continue;
+      int equals = t.indexOf('=');
+      String extension = equals > 0? t.substring(0, equals).trim().toLowerCase(Locale.ENGLISH) : "";
+      String media = equals > 0? toMediaType(t.substring(equals+1)) : "";
+      if (!extension.matches("[a-z0-9]+") || !media.matches("[a-z0-9.+-]+/[a-z0-9.+-]+")) {
+        throw new IllegalArgumentException("Invalid resource type: "+t);
+      }
+      types.put(extension, media);
+    }
+    return types;
+  }
+
+  /**
+   * Returns the type of resource for the specified path or cache key.
+   *
+   * @param path The path or cache key (e.g. "/12345.pdf")
+   *
+   * @return the corresponding type or <code>null</code> if the extension is not accepted.
+   */
+  public Type forPath(String path) {
+    int dot = path.lastIndexOf('.');
+    if (dot < 0 || dot < path.lastIndexOf('/')) return null;
+    return this._extensions.get(path.substring(dot+1).toLowerCase(Locale.ENGLISH));
+  }
+
+  /**
+   * Returns the type of resource for the specified media type.
+   *
+   * @param media The media type (may include parameters)
+   *
+   * @return the corresponding type or <code>null</code> if the media type is not accepted.
+   */
+  public Type forMedia(String media) {
+    return media != null? this._media.get(toMediaType(media)) : null;
+  }
+
+  /**
+   * Indicates whether the path is a URI ID optionally followed by an accepted extension.
+   *
+   * @param path The path info of the request (e.g. "/12345.pdf")
+   *
+   * @return <code>true</code> if the path is a URI ID.
+   */
+  public boolean isURIID(String path) {
+    int dot = path.lastIndexOf('.');
+    String uriid = dot > 0? path.substring(0, dot) : path;
+    return uriid.matches("/\\d+") && (dot < 0 || forPath(path) != null);
+  }
+
+  /**
+   * @return the accepted extensions including the dot (e.g. ".pdf").
+   */
+  public List<String> extensions() {
+    List<String> extensions = new ArrayList<String>();
+    for (String extension : this._extensions.keySet()) {
+      extensions.add('.'+extension);
+    }
+    return Collections.unmodifiableList(extensions);
+  }
+
+  @Override
+  public String toString() {
+    return this._extensions.values().toString();
+  }
+
+  /**
+   * Returns the media type without parameters in lower case.
+   */
+  private static String toMediaType(String media) {
+    int semicolon = media.indexOf(';');
+    String type = semicolon >= 0? media.substring(0, semicolon) : media;
+    return type.trim().toLowerCase(Locale.ENGLISH);
+  }
+
+  /**
+   * A type of resource and its cache policy.
+   */
+  static final class Type {
+
+    /** The extension without the dot */
+    private final String _extension;
+
+    /** The media type */
+    private final String _media;
+
+    /** The Cache-Control header (<code>null</code> to use the default) */
+    private final String _cacheControl;
+
+    /** Number of ms before the resource is revalidated (-1 to use the default) */
+    private final long _freshnessLifetime;
+
+    /**
+     * @param extension         The extension without the dot
+     * @param media             The media type
+     * @param cacheControl      The Cache-Control header (<code>null</code> to use the default)
+     * @param freshnessLifetime Number of ms before the resource is revalidated (-1 to use the default)
+     */
+    Type(String extension, String media, String cacheControl, long freshnessLifetime) {
+      this._extension = extension;
+      this._media = media;
+      this._cacheControl = cacheControl;
+      this._freshnessLifetime = freshnessLifetime;
+    }
+
+    /** @return the extension without the dot */
+    public String extension() {
+      return this._extension;
+    }
+
+    /** @return the media type */
+    public String media() {
+      return this._media;
+    }
+
+    /** @return the Cache-Control header (<code>null</code> to use the default) */
+    public String cacheControl() {
+      return this._cacheControl;
+    }
+
+    /** @return the number of ms before the resource is revalidated (-1 to use the default) */
+    public long freshnessLifetime() {
+      return this._freshnessLifetime;
+    }
+
+    @Override
+    public String toString() {
+      return this._extension+'='+this._media;
+    }
+  }
+
+}
@@ -3,6 +3,7 @@
  */
 package org.pageseeder.berlioz.bridge.servlet;
 
+import java.io.File;
 import java.io.IOException;
 
 import javax.servlet.Filter;
@@ -19,26 +20,61 @@ import org.pageseeder.berlioz.bridge.auth.AuthorizationResult;
 import org.pageseeder.berlioz.bridge.auth.Authorizer;
 import org.pageseeder.berlioz.bridge.auth.LoggedInAuthorizer;
 import org.pageseeder.berlioz.bridge.auth.ProtectedRequest;
+import org.pageseeder.berlioz.bridge.auth.RuleAuthorizer;
 import org.pageseeder.berlioz.bridge.auth.Sessions;
 import org.pageseeder.berlioz.bridge.auth.User;
 
 /**
  * Filters request and check that the user has access to the underlying resource.
  *
+ * <p>Requests for public paths are let through without looking up or creating a session. For
+ * other requests, a session is only created to store the protected URL when the user has not
+ * logged in yet.
+ *
  * @author Christophe Lauret
  *
+ * @deprecated Use {@link BridgeFilter} which also handles the remember me cookie in the same pass.
+ *
  * @version 0.1.0
  * @since 0.1.0
  */
+@Deprecated
 public final class SecurityFilter implements Filter {
 
+  /** Paths which can be accessed without logging in */
+  private PublicPaths publicPaths = PublicPaths.NONE;
+
+  /** Checks whether users can access the requested URIs */
+  private Authorizer authorizer = LoggedInAuthorizer.getInstance();
+
   /**
-   * Do nothing.
+   * This filter accepts the following initialisation parameters.
+   *
+   * <p><code>public-paths</code> is optional and is the list of paths which can be accessed without
+   * logging in, separated by commas or white spaces, see {@link PublicPaths}.
+   * <p><code>authorization-rules</code> is optional and is the path to the file defining the
+   * roles required to access URIs relative to the web application, for example
+   * "/WEB-INF/config/authorization.rules", see {@link RuleAuthorizer}; the file is reloaded when
+   * it is modified. By default, users only need to be logged in.
    *
    * {@inheritDoc}
    */
   @Override
   public void init(FilterConfig config) throws ServletException {
+    try {
+      this.publicPaths = PublicPaths.parse(config.getInitParameter("public-paths"));
+    } catch (IllegalArgumentException ex) {
+      throw new ServletException(ex.getMessage(), ex);
+    }
+    String rules = config.getInitParameter("authorization-rules");
+    if (rules != null && !rules.trim().isEmpty()) {
+      File file = new File(config.getServletContext().getRealPath("/"), rules.trim());
+      try {
+        this.authorizer = new RuleAuthorizer(file.toPath(), RuleAuthorizer.DEFAULT_INTERVAL);
+      } catch (IOException | IllegalArgumentException ex) {
+        throw new ServletException("Unable to load authorization rules from "+rules, ex);
+      }
+    }
   }
 
   /**
@@ -75,19 +111,24 @@ public final class SecurityFilter implements Filter {
   private void doHttpFilter(HttpServletRequest req, HttpServletResponse res, FilterChain chain)
      throws IOException, ServletException {
 
+    // Public paths do not need a session
+    if (this.publicPaths.matches(req)) {
+      chain.doFilter(req, res);
+      return;
+    }
+
     // Retrieve the user from the session
-    HttpSession session = req.getSession(true);
-    Object o = session.getAttribute(Sessions.USER_ATTRIBUTE);
+    HttpSession session = req.getSession(false);
+    Object o = session != null? session.getAttribute(Sessions.USER_ATTRIBUTE) : null;
 
     // The user is authenticated
     if (o instanceof User) {
 
       // Get relevant URI.
-      String uri = req.getRequestURI();
+      String uri = PublicPaths.toPath(req);
 
       // Invoke Authorizer method to see if user can access resource.
-      Authorizer authorizer = LoggedInAuthorizer.getInstance();
-      AuthorizationResult result = authorizer.isUserAuthorized((User)o, uri);
+      AuthorizationResult result = this.authorizer.isUserAuthorized((User)o, uri);
       if (result == AuthorizationResult.AUTHORIZED) {
         chain.doFilter(req, res);
       } else {
@@ -96,13 +137,8 @@ public final class SecurityFilter implements Filter {
 
     // The user has not been authenticated yet
     } else {
-      String url  = req.getRequestURI();
-      String query = req.getQueryString();
-      if (query != null) {
-        url = url + '?' +query;
-      }
-      ProtectedRequest target = new ProtectedRequest(url);
-      session.setAttribute(Sessions.REQUEST_ATTRIBUTE, target);
+      ProtectedRequest target = ProtectedRequest.create(req);
+      req.getSession(true).setAttribute(Sessions.REQUEST_ATTRIBUTE, target);
       res.setHeader("WWW-Authenticate", "FORM");
       res.sendError(HttpServletResponse.SC_UNAUTHORIZED);
     }
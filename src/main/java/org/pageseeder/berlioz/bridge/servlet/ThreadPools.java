@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 1999-2014 allette systems pty. ltd.
+ */
+package org.pageseeder.berlioz.bridge.servlet;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates the pools of threads used by the servlets in the background.
+ *
+ * @author Christophe Lauret
+ *
+ * @version 0.3.2
+ * @since 0.3.2
+ */
+final class ThreadPools {
+
+  /** Number of seconds before idle threads are stopped */
+  private static final long KEEP_ALIVE = 60;
+
+  private ThreadPools() {
+  }
+
+  /**
+   * Returns a bounded pool of daemon threads which are stopped when idle.
+   *
+   * <p>Tasks submitted when all threads are busy and the queue is full are rejected.
+   *
+   * @param name      The name of the threads (e.g. "ImageProxy-Resize")
+   * @param threads   The maximum number of threads
+   * @param queueSize The maximum number of tasks waiting for a thread
+   *
+   * @return the pool of threads
+   */
+  public static ThreadPoolExecutor newThreadPool(final String name, int threads, int queueSize) {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 1999-2014 allette systems pty. ltd.
+ */
+package org.pageseeder.berlioz.bridge.servlet;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Opens connections to PageSeeder with timeouts and a limit on the number of concurrent
+ * connections per host.
+ *
+ * <p>When the limit is reached, requests wait for a connection to be released; interactive
+ * requests are always given a connection before background requests (prefetch and
+ * revalidation).
+ *
+ * <p>Connections are reused by the JDK (HTTP keep-alive) when the response has been fully
+ * read, so leases drain what is left of error responses when they are closed.
+ *
+ * @author Christophe Lauret
+ *
+ * @version 0.3.2
+ * @since 0.3.2
+ */
+final class Upstream {
+
+  /**
+   * The priority of a request.
+   */
+  enum Priority {
+
+    /** A client is waiting for the response */
+    INTERACTIVE,
+
+    /** Prefetch or revalidation */
+    BACKGROUND
+  }
+
+  /** Maximum number of concurrent connections per host */
+  private final int _maxConnections;
+
+  /** Connect timeout in ms */
+  private final int _connectTimeout;
+
+  /** Read timeout in ms */
+  private final int _readTimeout;
+
+  /** Maximum number of ms to wait for a connection */
+  private final long _queueTimeout;
+
+  /** Bulkheads by host */
+  private final ConcurrentMap<String, Bulkhead> _hosts = new ConcurrentHashMap<String, Bulkhead>();
+
+  /**
+   * @param maxConnections Maximum number of concurrent connections per host
+   * @param connectTimeout Connect timeout in ms
+   * @param readTimeout    Read timeout in ms
+   * @param queueTimeout   Maximum number of ms to wait for a connection
+   */
+  Upstream(int maxConnections, int connectTimeout, int readTimeout, long queueTimeout) {
+    this._maxConnections = maxConnections;
+    this._connectTimeout = connectTimeout;
+    this._readTimeout = readTimeout;
+    this._queueTimeout = queueTimeout;
+  }
+
+  /**
+   * Opens a connection to the specified URL once one is available for its host.
+   *
+   * <p>The lease must be closed to release the connection.
+   *
+   * @param url      The URL to connect to
+   * @param priority The priority of the request
+   *
+   * @return the lease on the connection, which is not connected yet.
+   *
+   * @throws IOException If no connection became available in time or the connection could
+   *                     not be opened.
+   */
+  public Lease open(URL url, Priority priority) throws IOException {
+    Bulkhead bulkhead = bulkhead(url.getHost()+':'+url.getPort());
+    try {
+      if (!bulkhead.acquire(priority, this._queueTimeout)) {
+        throw new IOException("Too many concurrent requests to "+url.getHost());
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for a connection");
+    }
+    try {
+      URLConnection connection = url.openConnection();
+      connection.setConnectTimeout(this._connectTimeout);
+      connection.setReadTimeout(this._readTimeout);
+      return new Lease(connection, bulkhead);
+    } catch (IOException | RuntimeException ex) {
+      bulkhead.release();
+      throw ex;
+    }
+  }
+
+  /**
+   * Returns the bulkhead for the specified host.
+   */
+  private Bulkhead bulkhead(String host) {
+    Bulkhead bulkhead = this._hosts.get(host);
+    if (bulkhead == null) {
+      bulkhead = new Bulkhead(this._maxConnections);
+      Bulkhead existing = this._hosts.putIfAbsent(host, bulkhead);
+      if (existing != null) {
+        bulkhead = existing;
+      }
+    }
+    return bulkhead;
+  }
+
+  @Override
+  public String toString() {
+    return "Upstream[max="+this._maxConnections+", hosts="+this._hosts+"]";
+  }
+
+  /**
+   * A connection to the upstream server which must be closed after use.
+   */
+  static final class Lease implements Closeable {
+
+    /** The connection */
+    private final URLConnection _connection;
+
+    /** The bulkhead to release */
+    private final Bulkhead _bulkhead;
+
+    /** Whether this lease was closed */
+    private boolean closed = false;
+
+    Lease(URLConnection connection, Bulkhead bulkhead) {
+      this._connection = connection;
+      this._bulkhead = bulkhead;
+    }
+
+    /** @return the connection */
+    public URLConnection connection() {
+      return this._connection;
+    }
+
+    /**
+     * Drains the error stream so that the connection can be reused and releases the connection.
+     */
+    @Override
+    public void close() {
+      if (this.closed) return;
+      this.closed = true;
+      try {
+        if (this._connection instanceof HttpURLConnection) {
+          InputStream error = ((HttpURLConnection)this._connection).getErrorStream();
+          if (error != null) {
+            try (InputStream in = error) {
+              byte[] buffer = new byte[1024];
+              while (in.read(buffer) != -1) {
+                // Discard
+              }
+            } catch (IOException ex) {
+              // The connection will not be reused
+            }
+          }
+        }
+      } finally {
+        this._bulkhead.release();
+      }
+    }
+  }
+
+  /**
+   * Limits the number of concurrent connections, giving priority to interactive requests.
+   */
+  static final class Bulkhead {
+
+    /** Maximum number of connections */
+    private final int _permits;
+
+    /** Number of connections in use */
+    private int used = 0;
+
+    /** Number of interactive requests waiting */
+    private int waiting = 0;
+
+    Bulkhead(int permits) {
+      this._permits = permits;
+    }
+
+    /**
+     * Waits for a connection to be available.
+     *
+     * @param priority The priority of the request
+     * @param timeout  The maximum number of ms to wait
+     *
+     * @return <code>true</code> if a connection was acquired;
+     *         <code>false</code> if the timeout elapsed.
+     *
+     * @throws InterruptedException If interrupted while waiting
+     */
+    synchronized boolean acquire(Priority priority, long timeout) throws InterruptedException {
+      boolean interactive = priority == Priority.INTERACTIVE;
+      long deadline = System.currentTimeMillis() + timeout;
+      if (interactive) {
+        this.waiting++;
+      }
+      try {
+        // Background requests wait until no interactive request is waiting
+        while (this.used >= this._permits || (!interactive && this.waiting > 0)) {
+          long remaining = deadline - System.currentTimeMillis();
+          if (remaining <= 0) return false;
+          wait(remaining);
+        }
+        this.used++;
+        return true;
+      } finally {
+        if (interactive) {
+          this.waiting--;
+          notifyAll();
+        }
+      }
+    }
+
+    /**
+     * Releases a connection.
+     */
+    synchronized void release() {
+      this.used--;
+      notifyAll();
+    }
+
+    /** @return the number of connections in use */
+    synchronized int used() {
+      return this.used;
+    }
+
+    @Override
+    public synchronized String toString() {
+      return this.used+"/"+this._permits;
+    }
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 1999-2014 allette systems pty. ltd.
+ */
+package org.pageseeder.berlioz.bridge.servlet;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * A utility class to handle HTTP validators and conditional requests.
+ *
+ * @author Christophe Lauret
+ *
+ * @version 0.3.2
+ * @since 0.3.2
+ */
+final class Validators {
+
+  /** Utility class */
+  private Validators() {
+  }
+
+  /**
+   * Returns a strong entity tag for a resource with the specified last modified date and length.
+   *
+   * <p>Cached resources are never modified in place, so the last modified date reported by
+   * PageSeeder and the length identify the content of the resource.
+   *
+   * @param modified The last modified date of the resource (in ms)
+   * @param length   The length of the resource
+   *
+   * @return the corresponding entity tag or <code>null</code> if the date or length are unknown.
+   */
+  public static String toETag(long modified, long length) {
+    if (modified <= 0 || length < 0) return null;
+    return '"'+Long.toHexString(modified)+'-'+Long.toHexString(length)+'"';
+  }
+
+  /**
+   * Returns a strong entity tag for a resource with the specified content hash.
+   *
+   * <p>Resources with identical content share the same entity tag.
+   *
+   * @param hash The hash of the content of the resource
+   *
+   * @return the corresponding entity tag or <code>null</code> if the hash is unknown.
+   */
+  public static String toETag(String hash) {
+    if (hash == null || hash.isEmpty()) return null;
+    return '"'+hash+'"';
+  }
+
+  /**
+   * Indicates whether the client already has the current version of the resource.
+   *
+   * <p>As per RFC 7232, the <code>If-None-Match</code> header takes precedence over the
+   * <code>If-Modified-Since</code> header.
+   *
+   * @param req      The HTTP servlet request
+   * @param etag     The entity tag of the resource (may be <code>null</code>)
+   * @param modified The last modified date of the resource (in ms)
+   *
+   * @return <code>true</code> if a "304 Not Modified" response should be sent;
+   *         <code>false</code> otherwise.
+   */
+  public static boolean isNotModified(HttpServletRequest req, String etag, long modified) {
+    String ifNoneMatch = req.getHeader("If-None-Match");
+    if (ifNoneMatch != null) return etag != null && matches(ifNoneMatch, etag);
+    if (modified <= 0) return false;
+    long ifModifiedSince = getDateHeader(req, "If-Modified-Since");
+    return ifModifiedSince != -1 && !isModifiedSince(modified, ifModifiedSince);
+  }
+
+  /**
+   * Indicates whether the entity tag matches any of the entity tags in the header value
+   * using the weak comparison function.
+   *
+   * @param header The value of a <code>If-None-Match</code> or <code>If-Range</code> header
+   * @param etag   The entity tag of the resource
+   *
+   * @return <code>true</code> if the header is "*" or any of the tags match;
+   *         <code>false</code> otherwise.
+   */
+  static boolean matches(String header, String etag) {
+    String value = header.trim();
+    if ("*".equals(value)) return true;
+    String opaque = opaque(etag);
+    for (String tag : value.split(",")) {
+      if (opaque(tag.trim()).equals(opaque)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Indicates whether the resource was modified since the specified date.
+   *
+   * <p>HTTP dates have a precision of one second, so milliseconds are ignored.
+   *
+   * @param modified The last modified date of the resource (in ms)
+   * @param since    The date sent by the client (in ms)
+   *
+   * @return <code>true</code> if the resource was modified after the date.
+   */
+  static boolean isModifiedSince(long modified, long since) {
+    return modified / 1000 > since / 1000;
+  }
+
+  /**
+   * Returns the value of the date header ignoring invalid values.
+   *
+   * @param req  The HTTP servlet request
+   * @param name The name of the header
+   *
+   * @return the date in ms or -1 if the header is missing or invalid.
+   */
+  static long getDateHeader(HttpServletRequest req, String name) {
+    try {
+      return req.getDateHeader(name);
+    } catch (IllegalArgumentException ex) {
+      return -1;
+    }
+  }
+
+  /**
+   * Returns the entity tag without the weakness indicator.
+   */
+  private static String opaque(String etag) {
+    return etag.startsWith("W/")? etag.substring(2) : etag;
+  }
+
+}
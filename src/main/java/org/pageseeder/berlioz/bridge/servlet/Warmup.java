@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 1999-2014 allette systems pty. ltd.
+ */
+package org.pageseeder.berlioz.bridge.servlet;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.pageseeder.berlioz.bridge.cache.CacheManifest;
+import org.pageseeder.berlioz.bridge.cache.DiskCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Warms up the cache of a resource proxy servlet after a restart.
+ *
+ * <p>The most requested resources are listed in a manifest when the servlet is destroyed and
+ * fetched in the background when it is initialised. Only public resources are listed since
+ * there is no user to fetch the others on behalf of.
+ *
+ * @author Christophe Lauret
+ *
+ * @version 0.3.2
+ * @since 0.3.2
+ */
+final class Warmup {
+
+  /** To know what's going on */
+  private static final Logger LOGGER = LoggerFactory.getLogger(Warmup.class);
+
+  /** The servlet whose cache is warmed up */
+  private final ResourceProxyServlet _servlet;
+
+  /** The manifest */
+  private final Path _manifest;
+
+  /** Maximum number of resources listed in the manifest */
+  private final int _size;
+
+  /** The threads fetching the resources (<code>null</code> until the warm-up starts) */
+  private volatile ThreadPoolExecutor executor = null;
+
+  /**
+   * @param servlet  The servlet whose cache is warmed up
+   * @param manifest The manifest
+   * @param size     Maximum number of resources listed in the manifest
+   */
+  Warmup(ResourceProxyServlet servlet, Path manifest, int size) {
+    this._servlet = servlet;
+    this._manifest = manifest;
+    this._size = size;
+  }
+
+  /**
+   * Fetches the resources listed in the manifest which are not already cached.
+   *
+   * @param name    The name of the threads fetching the resources
+   * @param threads The number of resources fetched at the same time
+   * @param timeout The number of seconds to wait for the resources to be fetched
+   */
+  public void start(String name, int threads, long timeout) {
+    List<String> keys;
+    try {
+      keys = CacheManifest.read(this._manifest);
+    } catch (IOException ex) {
+      LOGGER.warn("Unable to read warm-up manifest", ex);
+      return;
+    }
+    if (keys.isEmpty()) return;
+    LOGGER.info("Warming up resource cache with {} resources", keys.size());
+    ThreadPoolExecutor executor = ThreadPools.newThreadPool(name, threads, keys.size());
+    this.executor = executor;
+    for (final String key : keys) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            Warmup.this._servlet.prefetch(key);
+          } catch (IOException ex) {
+            LOGGER.debug("Unable to warm up {}: {}", key, ex.getMessage());
+          }
+        }
+      });
+    }
+    executor.shutdown();
+    if (timeout > 0) {
+      try {
+        if (!executor.awaitTermination(timeout, TimeUnit.SECONDS)) {
+          LOGGER.info("Resource cache warm-up still in progress after {}s", timeout);
+        }
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Stops fetching the resources which are still waiting and interrupts the others.
+   *
+   * <p>This method must be called before the caches of the servlet are closed.
+   */
+  public void stop() {
+    ThreadPoolExecutor executor = this.executor;
+    if (executor != null) {
+      executor.shutdownNow();
+      this.executor = null;
+    }
+  }
+
+  /**
+   * Writes the most requested resources to the manifest.
+   *
+   * @param disk The disk cache of the servlet
+   */
+  public void save(DiskCache disk) {
+    List<String> keys = new ArrayList<String>();
+    for (DiskCache.Entry entry : disk.mostRequested(this._size)) {
+      // Only public resources can be fetched during the warm-up
+      if (!CacheScope.isScoped(entry.key())) {
+        keys.add(entry.key());
+      }
+    }
+    try {
+      CacheManifest.write(this._manifest, keys);
+      LOGGER.info("Listed {} resources in warm-up manifest", keys.size());
+    } catch (IOException ex) {
+      LOGGER.warn("Unable to write warm-up manifest", ex);
+    }
+  }
+
+}
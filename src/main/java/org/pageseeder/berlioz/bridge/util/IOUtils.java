@@ -5,6 +5,12 @@ import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -23,6 +29,9 @@ public final class IOUtils {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(IOUtils.class);
 
+  /** Size of the buffers used to copy data. */
+  private static final int BUFFER_SIZE = 16384;
+
   /** Utility class. */
   private IOUtils() {
   }
@@ -64,6 +73,76 @@ public final class IOUtils {
     return data;
   }
 
+  /**
+   * Writes the remaining bytes of the buffer to the output stream.
+   *
+   * <p>Heap buffers are written directly, direct buffers are copied through a small buffer.
+   *
+   * @param data   The data to write (its position is updated)
+   * @param output The output stream to write to
+   *
+   * @throws IOException If an error occurs while writing to the output stream
+   */
+  public static void copy(ByteBuffer data, OutputStream output) throws IOException {
+    if (data.hasArray()) {
+      output.write(data.array(), data.arrayOffset()+data.position(), data.remaining());
+      data.position(data.limit());
+    } else {
+      byte[] buffer = new byte[(int)Math.min(BUFFER_SIZE, data.remaining())];
+      while (data.hasRemaining()) {
+        int n = Math.min(buffer.length, data.remaining());
+        data.get(buffer, 0, n);
+        output.write(buffer, 0, n);
+      }
+    }
+  }
+
+  /**
+   * Writes the specified region of the file channel to the output stream.
+   *
+   * <p>The data is read using positioned reads, so the position of the channel is not modified
+   * and the channel can be shared.
+   *
+   * @param channel  The file channel to read
+   * @param position The position of the first byte to write
+   * @param count    The number of bytes to write
+   * @param output   The output stream to write to
+   *
+   * @throws IOException If an error occurs while reading the file or writing to the output stream
+   */
+  public static void copy(FileChannel channel, long position, long count, OutputStream output) throws IOException {
+    byte[] array = new byte[(int)Math.max(1, Math.min(BUFFER_SIZE, count))];
+    ByteBuffer buffer = ByteBuffer.wrap(array);
+    long offset = position;
+    long end = position + count;
+    while (offset < end) {
+      buffer.clear();
+      buffer.limit((int)Math.min(array.length, end - offset));
+      int n = channel.read(buffer, offset);
+      if (n < 0) throw new IOException("Unexpected end of file");
+      output.write(array, 0, n);
+      offset += n;
+    }
+  }
+
+  /**
+   * Moves the source file to the target atomically if the file system supports it.
+   *
+   * <p>The target is replaced if it already exists.
+   *
+   * @param source The file to move
+   * @param target The target location
+   *
+   * @throws IOException If the file could not be moved
+   */
+  public static void move(Path source, Path target) throws IOException {
+    try {
+      Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException ex) {
+      Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
   // Private helpers
   // ----------------------------------------------------------------------------------------------
 
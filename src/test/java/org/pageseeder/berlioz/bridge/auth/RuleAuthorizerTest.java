@@ -0,0 +1,140 @@
+package org.pageseeder.berlioz.bridge.auth;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.pageseeder.xmlwriter.XMLWriter;
+
+public final class RuleAuthorizerTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testMatch() {
+    RuleAuthorizer.Rules rules = RuleAuthorizer.Rules.parse(Arrays.asList(
+        "# Comment",
+        "",
+        "/admin/**           admin",
+        "/admin/help.html    *",
+        "/reports/*.html     manager, admin",
+        "/reports/*/summary  manager",
+        "/docs/              *",
+        "/docs/**            admin"));
+    // "/docs/" and "/docs/**" are the same pattern, the first one applies
+    Assert.assertEquals(5, rules.size());
+    Assert.assertEquals(3, rules.match("/admin").line());
+    Assert.assertEquals(3, rules.match("/admin/users/list").line());
+    Assert.assertEquals(4, rules.match("/admin/help.html").line());
+    Assert.assertEquals(5, rules.match("/reports/2014.html").line());
+    Assert.assertNull(rules.match("/reports/2014.pdf"));
+    Assert.assertEquals(6, rules.match("/reports/2014/summary").line());
+    Assert.assertEquals(7, rules.match("/docs/a/b").line());
+    Assert.assertNull(rules.match("/"));
+    Assert.assertNull(rules.match("/other/admin"));
+  }
+
+  @Test
+  public void testSpecificity() {
+    RuleAuthorizer.Rules rules = RuleAuthorizer.Rules.parse(Arrays.asList(
+        "/*/*/*.html  *",
+        "/admin/**    admin",
+        "/a/**        *",
+        "/a/**/b      admin",
+        "/c           admin",
+        "/c/**        *"));
+    // The first segments differ, a name is more specific than '*'
+    Assert.assertEquals(2, rules.match("/admin/x/y.html").line());
+    Assert.assertEquals(1, rules.match("/other/x/y.html").line());
+    Assert.assertEquals(4, rules.match("/a/x/b").line());
+    Assert.assertEquals(3, rules.match("/a/x/c").line());
+    Assert.assertEquals(5, rules.match("/c").line());
+    Assert.assertEquals(6, rules.match("/c/d").line());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalid() {
+    RuleAuthorizer.Rules.parse(Arrays.asList("/admin/a*b admin"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidSuffix() {
+    // Suffixes are only matched from a '.', so this rule could never apply
+    RuleAuthorizer.Rules.parse(Arrays.asList("/reports/*-admin admin"));
+  }
+
+  @Test
+  public void testAuthorize() throws IOException {
+    Path file = write("/admin/ admin\n/reports/ manager, admin\n", 1000);
+    RuleAuthorizer authorizer = new RuleAuthorizer(file, 0);
+    User admin = newUser("admin");
+    User manager = newUser("manager");
+    Assert.assertEquals(AuthorizationResult.UNAUTHORIZED, authorizer.isUserAuthorized(null, "/index.html"));
+    Assert.assertEquals(AuthorizationResult.AUTHORIZED, authorizer.isUserAuthorized(manager, "/index.html"));
+    Assert.assertEquals(AuthorizationResult.AUTHORIZED, authorizer.isUserAuthorized(admin, "/admin/index.html"));
+    Assert.assertEquals(AuthorizationResult.FORBIDDEN, authorizer.isUserAuthorized(manager, "/admin/index.html"));
+    Assert.assertEquals(AuthorizationResult.AUTHORIZED, authorizer.isUserAuthorized(manager, "/reports/x"));
+  }
+
+  @Test
+  public void testReload() throws IOException {
+    Path file = write("/admin/ admin\n", 1000);
+    RuleAuthorizer authorizer = new RuleAuthorizer(file, 0);
+    User manager = newUser("manager");
+    Assert.assertEquals(AuthorizationResult.FORBIDDEN, authorizer.isUserAuthorized(manager, "/admin/"));
+
+    // Modified
+    write("/admin/ admin, manager\n", 2000);
+    Assert.assertEquals(AuthorizationResult.AUTHORIZED, authorizer.isUserAuthorized(manager, "/admin/"));
+    Assert.assertFalse(authorizer.reload());
+
+    // Invalid rules are ignored
+    write("admin manager\n", 3000);
+    Assert.assertFalse(authorizer.reload());
+    Assert.assertEquals(AuthorizationResult.AUTHORIZED, authorizer.isUserAuthorized(manager, "/admin/"));
+    // So are missing files, until the file is back
+    Files.delete(file);
+    Assert.assertFalse(authorizer.reload());
+    Assert.assertFalse(authorizer.reload());
+    Assert.assertEquals(AuthorizationResult.AUTHORIZED, authorizer.isUserAuthorized(manager, "/admin/"));
+    write("/admin/ admin\n", 3000);
+    Assert.assertTrue(authorizer.reload());
+    Assert.assertEquals(AuthorizationResult.FORBIDDEN, authorizer.isUserAuthorized(manager, "/admin/"));
+  }
+
+  private Path write(String rules, long modified) throws IOException {
+    Path file = this.folder.getRoot().toPath().resolve("authorization.rules");
+    Files.write(file, rules.getBytes(StandardCharsets.UTF_8));
+    Files.setLastModifiedTime(file, FileTime.fromMillis(modified));
+    return file;
+  }
+
+  private static User newUser(final String role) {
+    return new User() {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      public String getName() {
+        return role;
+      }
+
+      @Override
+      public boolean hasRole(String r) {
+        return role.equals(r);
+      }
+
+      @Override
+      public void toXML(XMLWriter xml) throws IOException {
+      }
+    };
+  }
+
+}
@@ -0,0 +1,41 @@
+package org.pageseeder.berlioz.bridge.cache;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public final class CacheManifestTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testReadWrite() throws IOException {
+    Path manifest = this.folder.getRoot().toPath().resolve("test.manifest");
+    List<String> keys = Arrays.asList("/1.png", "/2.jpg", "/3");
+    CacheManifest.write(manifest, keys);
+    Assert.assertEquals(keys, CacheManifest.read(manifest));
+  }
+
+  @Test
+  public void testReadIgnoresComments() throws IOException {
+    Path manifest = this.folder.newFile("test.manifest").toPath();
+    Files.write(manifest, "# comment\n\n /1.png \n#/2.png\n/3.gif".getBytes(StandardCharsets.UTF_8));
+    Assert.assertEquals(Arrays.asList("/1.png", "/3.gif"), CacheManifest.read(manifest));
+  }
+
+  @Test
+  public void testReadMissing() throws IOException {
+    Path manifest = this.folder.getRoot().toPath().resolve("missing.manifest");
+    Assert.assertTrue(CacheManifest.read(manifest).isEmpty());
+  }
+
+}
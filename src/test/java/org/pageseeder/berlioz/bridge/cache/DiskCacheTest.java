@@ -0,0 +1,285 @@
+package org.pageseeder.berlioz.bridge.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public final class DiskCacheTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testCommitAndGet() throws IOException {
+    DiskCache cache = new DiskCache(this.folder.getRoot(), 0);
+    cache.open(3600);
+    try {
+      Assert.assertNull(cache.get("/a.png"));
+      put(cache, "/a.png", 100);
+      DiskCache.Entry entry = cache.get("/a.png");
+      Assert.assertNotNull(entry);
+      Assert.assertEquals(100, entry.size());
+      Assert.assertEquals("image/png", entry.media());
+      Assert.assertTrue(cache.file(entry).exists());
+      Assert.assertEquals(100, cache.size());
+      cache.remove("/a.png");
+      Assert.assertNull(cache.get("/a.png"));
+      Assert.assertEquals(0, cache.size());
+    } finally {
+      cache.close();
+    }
+  }
+
+  @Test
+  public void testEvictLeastRecentlyUsed() throws Exception {
+    DiskCache cache = new DiskCache(this.folder.getRoot(), 1000);
+    cache.open(3600);
+    try {
+      put(cache, "/a.png", 400);
+      Thread.sleep(5);
+      put(cache, "/b.png", 400);
+      Thread.sleep(5);
+      cache.get("/a.png");
+      put(cache, "/c.png", 400);
+      File b = cache.file(cache.peek("/b.png"));
+      cache.evict();
+      Assert.assertNotNull(cache.get("/a.png"));
+      Assert.assertNull(cache.get("/b.png"));
+      Assert.assertNotNull(cache.get("/c.png"));
+      Assert.assertFalse(b.exists());
+      Assert.assertEquals(800, cache.size());
+    } finally {
+      cache.close();
+    }
+  }
+
+  @Test
+  public void testIndexIsReloaded() throws IOException {
+    DiskCache cache = new DiskCache(this.folder.getRoot(), 0);
+    cache.open(3600);
+    put(cache, "/a.png", 10);
+    put(cache, "/b.jpg", 20);
+    cache.close();
+    DiskCache reopened = new DiskCache(this.folder.getRoot(), 0);
+    reopened.open(3600);
+    try {
+      Assert.assertEquals(2, reopened.count());
+      Assert.assertEquals(30, reopened.size());
+      Assert.assertEquals("image/png", reopened.get("/a.png").media());
+    } finally {
+      reopened.close();
+    }
+  }
+
+  @Test
+  public void testIndexNotSavedOnAccess() throws IOException {
+    DiskCache cache = new DiskCache(this.folder.getRoot(), 0);
+    cache.open(3600);
+    try {
+      put(cache, "/a.png", 10);
+      cache.cleanup();
+      File index = new File(this.folder.getRoot(), "index.dat");
+      Assert.assertTrue(index.setLastModified(1000000000000L));
+
+      // Only the access time has changed
+      cache.get("/a.png");
+      cache.cleanup();
+      Assert.assertEquals(1000000000000L, index.lastModified());
+
+      put(cache, "/b.png", 20);
+      cache.cleanup();
+      Assert.assertTrue(index.lastModified() > 1000000000000L);
+    } finally {
+      cache.close();
+    }
+  }
+
+  @Test
+  public void testMetadataIsReloaded() throws IOException {
+    DiskCache cache = new DiskCache(this.folder.getRoot(), 0);
+    cache.open(3600);
+    Path temp = cache.newTempFile("/a");
+    Files.write(temp, new byte[]{1, 2, 3});
+    DiskCache.Entry entry = cache.commit("/a", temp, "image/gif", 1417392000000L, "\"abc\"", 2000L);
+    Assert.assertTrue(entry.fetched() > 0);
+    cache.close();
+    DiskCache reopened = new DiskCache(this.folder.getRoot(), 0);
+    reopened.open(3600);
+    try {
+      DiskCache.Entry reloaded = reopened.get("/a");
+      Assert.assertEquals("image/gif", reloaded.media());
+      Assert.assertEquals(1417392000000L, reloaded.modified());
+      Assert.assertEquals("\"abc\"", reloaded.etag());
+      Assert.assertEquals(entry.fetched(), reloaded.fetched());
+      Assert.assertEquals(2000L, reloaded.expires());
+      Assert.assertEquals(3, reloaded.size());
+    } finally {
+      reopened.close();
+    }
+  }
+
+  @Test
+  public void testMostRequested() throws IOException {
+    DiskCache cache = new DiskCache(this.folder.getRoot(), 0);
+    cache.open(3600);
+    try {
+      put(cache, "/a.png", 10);
+      put(cache, "/b.png", 10);
+      put(cache, "/c.png", 10);
+      cache.get("/b.png");
+      cache.get("/b.png");
+      cache.get("/a.png");
+      List<DiskCache.Entry> entries = cache.mostRequested(5);
+      Assert.assertEquals(2, entries.size());
+      Assert.assertEquals("/b.png", entries.get(0).key());
+      Assert.assertEquals("/a.png", entries.get(1).key());
+      Assert.assertEquals(1, cache.mostRequested(1).size());
+    } finally {
+      cache.close();
+    }
+  }
+
+  @Test
+  public void testRebuildMovesFlatFiles() throws IOException {
+    File root = this.folder.getRoot();
+    Files.write(new File(root, "a.png").toPath(), new byte[50]);
+    DiskCache cache = new DiskCache(root, 0);
+    cache.rebuild();
+    Assert.assertFalse(new File(root, "a.png").exists());
+    Assert.assertTrue(cache.file(cache.peek("/a.png")).exists());
+    Assert.assertEquals(1, cache.count());
+    Assert.assertEquals(50, cache.size());
+  }
+
+  @Test
+  public void testGetMovesFlatFile() throws IOException {
+    File root = this.folder.getRoot();
+    Files.write(new File(root, "12345.png").toPath(), new byte[50]);
+    Files.createDirectories(new File(root, "ab/cd").toPath());
+    Files.write(new File(root, "ab/cd/12346.png").toPath(), new byte[50]);
+    DiskCache cache = new DiskCache(root, 0);
+    DiskCache.Entry entry = cache.get("/12345.png");
+    Assert.assertNotNull(entry);
+    Assert.assertEquals(50, entry.size());
+    Assert.assertFalse(new File(root, "12345.png").exists());
+
+    // Only files of the flat cache are moved
+    cache.rebuild();
+    Assert.assertNull(cache.peek("/12346.png"));
+    Assert.assertEquals(1, cache.count());
+  }
+
+  @Test
+  public void testIdenticalFilesShareBlob() throws IOException {
+    DiskCache cache = new DiskCache(this.folder.getRoot(), 0);
+    cache.open(3600);
+    try {
+      put(cache, "/1.png", new byte[]{1, 2, 3});
+      put(cache, "/2.png", new byte[]{1, 2, 3});
+      put(cache, "/3.png", new byte[]{4, 5, 6});
+      DiskCache.Entry a = cache.get("/1.png");
+      DiskCache.Entry b = cache.get("/2.png");
+      Assert.assertEquals(a.hash(), b.hash());
+      Assert.assertEquals(cache.file(a), cache.file(b));
+      Assert.assertNotEquals(a.hash(), cache.get("/3.png").hash());
+      Assert.assertEquals(3, cache.count());
+      Assert.assertEquals(2, cache.blobs());
+      Assert.assertEquals(6, cache.size());
+
+      // The blob is only deleted when no entry points to it
+      cache.remove("/1.png");
+      Assert.assertTrue(cache.file(b).exists());
+      Assert.assertEquals(6, cache.size());
+      cache.remove("/2.png");
+      Assert.assertFalse(cache.file(b).exists());
+      Assert.assertEquals(3, cache.size());
+    } finally {
+      cache.close();
+    }
+  }
+
+  @Test
+  public void testReplacedBlobIsDeleted() throws IOException {
+    DiskCache cache = new DiskCache(this.folder.getRoot(), 0);
+    cache.open(3600);
+    try {
+      put(cache, "/1.png", new byte[]{1, 2, 3});
+      File old = cache.file(cache.get("/1.png"));
+      put(cache, "/1.png", new byte[]{4, 5});
+      Assert.assertFalse(old.exists());
+      Assert.assertEquals(1, cache.blobs());
+      Assert.assertEquals(2, cache.size());
+    } finally {
+      cache.close();
+    }
+  }
+
+  @Test
+  public void testRemoveOnlySameEntry() throws IOException {
+    DiskCache cache = new DiskCache(this.folder.getRoot(), 0);
+    cache.open(3600);
+    try {
+      put(cache, "/1.png", new byte[]{1, 2, 3});
+      DiskCache.Entry old = cache.get("/1.png");
+      put(cache, "/1.png", new byte[]{4, 5});
+      DiskCache.Entry current = cache.get("/1.png");
+
+      // The key was committed again meanwhile
+      Assert.assertFalse(cache.remove("/1.png", old));
+      Assert.assertSame(current, cache.peek("/1.png"));
+      Assert.assertTrue(cache.file(current).exists());
+      Assert.assertTrue(cache.remove("/1.png", current));
+      Assert.assertNull(cache.peek("/1.png"));
+      Assert.assertEquals(0, cache.size());
+    } finally {
+      cache.close();
+    }
+  }
+
+  @Test
+  public void testSweepDeletesOrphanBlobs() throws IOException {
+    DiskCache cache = new DiskCache(this.folder.getRoot(), 0);
+    cache.open(3600);
+    put(cache, "/1.png", new byte[]{1, 2, 3});
+    cache.close();
+    // Committed after the index was saved
+    put(cache, "/2.png", new byte[]{4, 5});
+    File orphan = cache.file(cache.peek("/2.png"));
+    DiskCache reopened = new DiskCache(this.folder.getRoot(), 0);
+    reopened.open(3600);
+    try {
+      Assert.assertTrue(reopened.sweep());
+      Assert.assertFalse(orphan.exists());
+      Assert.assertTrue(reopened.file(reopened.get("/1.png")).exists());
+      Assert.assertEquals(1, reopened.count());
+    } finally {
+      reopened.close();
+    }
+  }
+
+  private static void put(DiskCache cache, String key, int length) throws IOException {
+    // Different keys must have different content
+    byte[] data = new byte[length];
+    Arrays.fill(data, (byte)key.hashCode());
+    put(cache, key, data);
+  }
+
+  private static void put(DiskCache cache, String key, byte[] data) throws IOException {
+    Path temp = cache.newTempFile(key);
+    try {
+      Files.write(temp, data);
+      cache.commit(key, temp, "image/png", 1000L, null, 0);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+}
@@ -0,0 +1,103 @@
+package org.pageseeder.berlioz.bridge.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public final class MemoryCacheTest {
+
+  @Test
+  public void testGetPut() {
+    MemoryCache cache = new MemoryCache(1024, 512);
+    Assert.assertNull(cache.get("/1.png"));
+    Assert.assertTrue(cache.put("/1.png", newResource(100)));
+    Assert.assertNotNull(cache.get("/1.png"));
+    Assert.assertEquals(100, cache.size());
+    cache.remove("/1.png");
+    Assert.assertNull(cache.get("/1.png"));
+    Assert.assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testTooLarge() {
+    MemoryCache cache = new MemoryCache(1024, 512);
+    Assert.assertFalse(cache.put("/1.png", newResource(2048)));
+    Assert.assertEquals(0, cache.count());
+  }
+
+  @Test
+  public void testOffHeap() throws IOException {
+    MemoryCache cache = new MemoryCache(4096, 512);
+    cache.put("/small.png", newResource(100));
+    cache.put("/large.png", newResource(1000));
+    Assert.assertFalse(cache.get("/small.png").isOffHeap());
+    ImageResource large = cache.get("/large.png");
+    Assert.assertTrue(large.isOffHeap());
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    large.writeTo(out);
+    Assert.assertArrayEquals(newResourceData(1000), out.toByteArray());
+  }
+
+  @Test
+  public void testFrequencyAdmission() {
+    MemoryCache cache = new MemoryCache(1000, 2000);
+    // Hot entries requested several times
+    for (int i = 0; i < 10; i++) {
+      cache.get("/hot1.png");
+      cache.get("/hot2.png");
+    }
+    Assert.assertTrue(cache.put("/hot1.png", newResource(500)));
+    Assert.assertTrue(cache.put("/hot2.png", newResource(500)));
+
+    // A one-off image should not push out hot ones
+    cache.get("/once.png");
+    Assert.assertFalse(cache.put("/once.png", newResource(500)));
+    Assert.assertNotNull(cache.get("/hot1.png"));
+    Assert.assertNotNull(cache.get("/hot2.png"));
+
+    // Unless it becomes more popular
+    for (int i = 0; i < 20; i++) {
+      cache.get("/popular.png");
+    }
+    Assert.assertTrue(cache.put("/popular.png", newResource(500)));
+    Assert.assertEquals(2, cache.count());
+    Assert.assertEquals(1000, cache.size());
+  }
+
+  @Test
+  public void testRejectedReplacementKeepsEntry() {
+    MemoryCache cache = new MemoryCache(1000, 2000);
+    for (int i = 0; i < 10; i++) {
+      cache.get("/hot1.png");
+      cache.get("/hot2.png");
+    }
+    cache.get("/warm.png");
+    Assert.assertTrue(cache.put("/hot1.png", newResource(400)));
+    Assert.assertTrue(cache.put("/warm.png", newResource(200)));
+    Assert.assertTrue(cache.put("/hot2.png", newResource(400)));
+
+    // A larger copy of the warm entry would need to evict a hot one
+    Assert.assertFalse(cache.put("/warm.png", newResource(400)));
+    Assert.assertEquals(200, cache.get("/warm.png").length());
+    Assert.assertEquals(1000, cache.size());
+
+    // A replacement of the same size needs no eviction
+    Assert.assertTrue(cache.put("/warm.png", newResource(200)));
+    Assert.assertEquals(3, cache.count());
+    Assert.assertEquals(1000, cache.size());
+  }
+
+  private static ImageResource newResource(int length) {
+    return new ImageResource(0L, length, "image/png", newResourceData(length));
+  }
+
+  private static byte[] newResourceData(int length) {
+    byte[] data = new byte[length];
+    for (int i = 0; i < length; i++) {
+      data[i] = (byte)i;
+    }
+    return data;
+  }
+}
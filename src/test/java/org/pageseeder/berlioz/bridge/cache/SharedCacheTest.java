@@ -0,0 +1,221 @@
+package org.pageseeder.berlioz.bridge.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public final class SharedCacheTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testPutAndGet() throws IOException {
+    SharedCache cache = new SharedCache(this.folder.newFolder("shared"), 0);
+    cache.open(3600);
+    try {
+      Assert.assertNull(cache.get("/a.png"));
+      put(cache, "/a.png", 100);
+      SharedCache.Item item = cache.get("/a.png");
+      Assert.assertNotNull(item);
+      Assert.assertEquals(100, item.size());
+      Assert.assertEquals("image/png", item.media());
+      Assert.assertEquals("\"a\"", item.etag());
+      Assert.assertTrue(item.isFresh(System.currentTimeMillis()));
+
+      // Another cache on the same directory sees the same item
+      SharedCache other = new SharedCache(this.folder.getRoot().toPath().resolve("shared").toFile(), 0);
+      Assert.assertEquals(item.hash(), other.get("/a.png").hash());
+
+      Path copy = this.folder.getRoot().toPath().resolve("copy.png");
+      cache.copyTo(item, copy);
+      Assert.assertEquals(100, Files.size(copy));
+      cache.copyTo(item, copy);
+      Assert.assertEquals(100, Files.size(copy));
+
+      cache.remove("/a.png");
+      Assert.assertNull(cache.get("/a.png"));
+    } finally {
+      cache.close();
+    }
+  }
+
+  @Test
+  public void testLock() throws IOException {
+    File root = this.folder.newFolder("shared");
+    SharedCache a = new SharedCache(root, 0);
+    SharedCache b = new SharedCache(root, 0);
+    a.open(3600);
+    b.open(3600);
+    try {
+      SharedCache.Lock lock = a.lock("/a.png", 0);
+      Assert.assertNotNull(lock);
+      Assert.assertNull(b.lock("/a.png", 50));
+      lock.close();
+      try (SharedCache.Lock other = b.lock("/a.png", 50)) {
+        Assert.assertNotNull(other);
+      }
+    } finally {
+      a.close();
+      b.close();
+    }
+  }
+
+  @Test
+  public void testLockPerKey() throws IOException {
+    File root = this.folder.newFolder("shared");
+    SharedCache cache = new SharedCache(root, 0);
+    cache.open(3600);
+    try (SharedCache.Lock lock = cache.lock("/a.png", 0)) {
+      Assert.assertNotNull(lock);
+      Assert.assertNull(cache.lock("/a.png", 50));
+      // Other keys are not blocked while a resource is fetched
+      for (int i = 0; i < 100; i++) {
+        try (SharedCache.Lock other = cache.lock("/b"+i+".png", 0)) {
+          Assert.assertNotNull(other);
+        }
+      }
+    } finally {
+      cache.close();
+    }
+  }
+
+  @Test
+  public void testLockKeptByProcess() throws Exception {
+    File root = this.folder.newFolder("shared");
+    SharedCache a = new SharedCache(root, 0);
+    final SharedCache b = new SharedCache(root, 0);
+    a.open(3600);
+    b.open(3600);
+    try (SharedCache.Lock lock = a.lock("/a.png", 0)) {
+      Assert.assertNotNull(lock);
+      // Another thread giving up must not release the lock held by this process
+      final SharedCache.Lock[] waited = new SharedCache.Lock[1];
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          try {
+            waited[0] = b.lock("/a.png", 50);
+          } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+          }
+        }
+      };
+      thread.start();
+      thread.join();
+      Assert.assertNull(waited[0]);
+      // Nor the janitor checking whether the lock file is used (the file is aged by path since
+      // opening it would release the lock)
+      long old = System.currentTimeMillis() - 2*3600*1000;
+      try (DirectoryStream<Path> folders = Files.newDirectoryStream(root.toPath().resolve("locks"))) {
+        for (Path folder : folders) {
+          try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+            for (Path file : files) {
+              Assert.assertTrue(file.toFile().setLastModified(old));
+            }
+          }
+        }
+      }
+      b.trim();
+      Assert.assertFalse(lockInOtherProcess(root, "/a.png"));
+    } finally {
+      a.close();
+      b.close();
+    }
+    Assert.assertTrue(lockInOtherProcess(root, "/a.png"));
+  }
+
+  @Test
+  public void testTrim() throws IOException {
+    File root = this.folder.newFolder("shared");
+    SharedCache cache = new SharedCache(root, 150);
+    cache.open(3600);
+    try {
+      put(cache, "/a.png", 100);
+      put(cache, "/b.png", 101);
+      put(cache, "/c.png", 102);
+      cache.remove("/c.png");
+      cache.lock("/a.png", 0).close();
+      SharedCache.Lock lock = cache.lock("/b.png", 0);
+      // Age everything then use "/b.png"
+      FileTime old = FileTime.fromMillis(System.currentTimeMillis() - 2*3600*1000);
+      for (String directory : Arrays.asList("keys", "blobs", "locks")) {
+        try (DirectoryStream<Path> folders = Files.newDirectoryStream(root.toPath().resolve(directory))) {
+          for (Path folder : folders) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+              for (Path file : files) {
+                Files.setLastModifiedTime(file, old);
+              }
+            }
+          }
+        }
+      }
+      Assert.assertNotNull(cache.get("/b.png"));
+      cache.trim();
+      Assert.assertNull(cache.get("/a.png"));
+      Assert.assertNotNull(cache.get("/b.png"));
+      Assert.assertEquals(1, countBlobs(root.toPath().resolve("blobs")));
+      // The lock file still in use is kept
+      Assert.assertEquals(1, countBlobs(root.toPath().resolve("locks")));
+      lock.close();
+    } finally {
+      cache.close();
+    }
+  }
+
+  private void put(SharedCache cache, String key, int size) throws IOException {
+    byte[] data = new byte[size];
+    Arrays.fill(data, (byte)size);
+    File file = this.folder.newFile();
+    Files.write(file.toPath(), data);
+    String hash = DiskCache.hash(file.toPath());
+    cache.put(key, file, hash, "image/png", 0, "\"a\"", System.currentTimeMillis() + 60000);
+  }
+
+  /**
+   * Tries to lock the key from another JVM.
+   */
+  private static boolean lockInOtherProcess(File root, String key) throws Exception {
+    String java = new File(System.getProperty("java.home"), "bin/java").getPath();
+    Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+        LockProbe.class.getName(), root.getPath(), key).redirectErrorStream(true).start();
+    process.getInputStream().close();
+    return process.waitFor() == 0;
+  }
+
+  /**
+   * Exits with 0 if the lock of the key can be acquired, 1 otherwise.
+   */
+  public static final class LockProbe {
+
+    public static void main(String[] args) throws IOException {
+      SharedCache cache = new SharedCache(new File(args[0]), 0);
+      SharedCache.Lock lock = cache.lock(args[1], 0);
+      System.exit(lock != null? 0 : 1);
+    }
+  }
+
+  private static int countBlobs(Path blobs) throws IOException {
+    int count = 0;
+    try (DirectoryStream<Path> folders = Files.newDirectoryStream(blobs)) {
+      for (Path folder : folders) {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+          for (@SuppressWarnings("unused") Path file : files) {
+            count++;
+          }
+        }
+      }
+    }
+    return count;
+  }
+
+}
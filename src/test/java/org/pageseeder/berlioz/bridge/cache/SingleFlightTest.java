@@ -0,0 +1,83 @@
+package org.pageseeder.berlioz.bridge.cache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public final class SingleFlightTest {
+
+  @Test
+  public void testConcurrentCallsShareResult() throws Exception {
+    final SingleFlight<String, String> flight = new SingleFlight<String, String>();
+    final AtomicInteger calls = new AtomicInteger();
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final Callable<String> call = new Callable<String>() {
+      @Override
+      public String call() throws Exception {
+        calls.incrementAndGet();
+        started.countDown();
+        release.await();
+        return "value";
+      }
+    };
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<String>> results = new ArrayList<Future<String>>();
+    for (int i = 0; i < 8; i++) {
+      results.add(executor.submit(new Callable<String>() {
+        @Override
+        public String call() throws Exception {
+          return flight.execute("key", call);
+        }
+      }));
+    }
+    started.await(5, TimeUnit.SECONDS);
+    // Give the other threads time to join the call in progress
+    Thread.sleep(100);
+    Assert.assertTrue(flight.isInProgress("key"));
+    release.countDown();
+    for (Future<String> result : results) {
+      Assert.assertEquals("value", result.get(5, TimeUnit.SECONDS));
+    }
+    executor.shutdown();
+    Assert.assertEquals(1, calls.get());
+    Assert.assertFalse(flight.isInProgress("key"));
+  }
+
+  @Test
+  public void testSequentialCallsAreExecuted() throws IOException {
+    SingleFlight<String, Integer> flight = new SingleFlight<String, Integer>();
+    final AtomicInteger calls = new AtomicInteger();
+    Callable<Integer> call = new Callable<Integer>() {
+      @Override
+      public Integer call() {
+        return calls.incrementAndGet();
+      }
+    };
+    Assert.assertEquals(Integer.valueOf(1), flight.execute("key", call));
+    Assert.assertEquals(Integer.valueOf(2), flight.execute("key", call));
+    Assert.assertEquals(0, flight.count());
+  }
+
+  @Test(expected = IOException.class)
+  public void testException() throws IOException {
+    SingleFlight<String, String> flight = new SingleFlight<String, String>();
+    flight.execute("key", new Callable<String>() {
+      @Override
+      public String call() throws IOException {
+        throw new IOException("Unable to fetch");
+      }
+    });
+  }
+
+}
@@ -0,0 +1,64 @@
+package org.pageseeder.berlioz.bridge.cache;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public final class TTLCacheTest {
+
+  @Test
+  public void testGetPut() {
+    TTLCache<String, String> cache = new TTLCache<String, String>(10);
+    Assert.assertNull(cache.get("a"));
+    cache.put("a", "1", 60000);
+    Assert.assertEquals("1", cache.get("a"));
+    Assert.assertEquals("1", cache.remove("a"));
+    Assert.assertNull(cache.get("a"));
+  }
+
+  @Test
+  public void testExpiry() throws InterruptedException {
+    TTLCache<String, String> cache = new TTLCache<String, String>(10);
+    cache.put("a", "1", 10);
+    cache.put("b", "2", 60000);
+    Thread.sleep(50);
+    Assert.assertNull(cache.get("a"));
+    Assert.assertEquals("2", cache.get("b"));
+    Assert.assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void testEvictLeastRecentlyUsed() {
+    TTLCache<String, String> cache = new TTLCache<String, String>(2);
+    cache.put("a", "1", 60000);
+    cache.put("b", "2", 60000);
+    cache.get("a");
+    cache.put("c", "3", 60000);
+    Assert.assertEquals(2, cache.size());
+    Assert.assertEquals("1", cache.get("a"));
+    Assert.assertNull(cache.get("b"));
+    Assert.assertEquals("3", cache.get("c"));
+  }
+
+  @Test
+  public void testKeys() {
+    TTLCache<String, String> cache = new TTLCache<String, String>(10);
+    cache.put("a", "1", 60000);
+    cache.put("b", "2", 60000);
+    cache.get("a");
+    Assert.assertEquals(Arrays.asList("b", "a"), cache.keys());
+  }
+
+  @Test
+  public void testClear() {
+    TTLCache<String, Boolean> cache = new TTLCache<String, Boolean>(10);
+    cache.put("/1.png", Boolean.TRUE, 60000);
+    cache.put("/2.png", Boolean.TRUE, 60000);
+    cache.clear();
+    Assert.assertEquals(0, cache.size());
+    Assert.assertNull(cache.get("/1.png"));
+    Assert.assertEquals(10, cache.capacity());
+  }
+
+}
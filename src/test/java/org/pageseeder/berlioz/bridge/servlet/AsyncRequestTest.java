@@ -0,0 +1,157 @@
+package org.pageseeder.berlioz.bridge.servlet;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public final class AsyncRequestTest {
+
+  @Test
+  public void testComplete() {
+    Queue queue = new Queue();
+    MockHttp.Response res = new MockHttp.Response();
+    MockHttp.Request req = newRequest(res);
+    AsyncRequest.start(req.proxy(), 1000, queue, new Writer());
+    Assert.assertEquals(1000, req.async.timeout);
+    Assert.assertEquals(0, req.async.completions);
+    queue.runAll();
+    Assert.assertEquals(1, req.async.completions);
+    Assert.assertEquals("ok", new String(res.body.toByteArray(), StandardCharsets.US_ASCII));
+  }
+
+  @Test
+  public void testRejected() {
+    MockHttp.Response res = new MockHttp.Response();
+    MockHttp.Request req = newRequest(res);
+    AsyncRequest.start(req.proxy(), 1000, new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        throw new RejectedExecutionException();
+      }
+    }, new Writer());
+    // Handled by the current thread
+    Assert.assertEquals(1, req.async.completions);
+    Assert.assertEquals("ok", new String(res.body.toByteArray(), StandardCharsets.US_ASCII));
+  }
+
+  @Test
+  public void testError() {
+    Queue queue = new Queue();
+    MockHttp.Response res = new MockHttp.Response();
+    MockHttp.Request req = newRequest(res);
+    AsyncRequest.start(req.proxy(), 1000, queue, new AsyncRequest.Handler() {
+      @Override
+      public void handle(HttpServletRequest r, HttpServletResponse res) throws IOException {
+        throw new IOException("Upstream failed");
+      }
+    });
+    queue.runAll();
+    Assert.assertEquals(HttpServletResponse.SC_BAD_GATEWAY, res.status);
+    Assert.assertEquals(1, req.async.completions);
+  }
+
+  @Test
+  public void testTimeoutWhileQueued() throws IOException {
+    Queue queue = new Queue();
+    MockHttp.Response res = new MockHttp.Response();
+    MockHttp.Request req = newRequest(res);
+    Writer writer = new Writer();
+    AsyncRequest.start(req.proxy(), 1000, queue, writer);
+    timeout(req);
+    Assert.assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, res.status);
+    Assert.assertEquals(1, req.async.completions);
+
+    // The thread skips the request
+    queue.runAll();
+    Assert.assertFalse(writer.called);
+    Assert.assertEquals(1, req.async.completions);
+  }
+
+  @Test
+  public void testTimeoutWhileHandling() throws IOException {
+    Queue queue = new Queue();
+    MockHttp.Response res = new MockHttp.Response();
+    final MockHttp.Request req = newRequest(res);
+    final List<Exception> errors = new ArrayList<Exception>();
+    AsyncRequest.start(req.proxy(), 1000, queue, new AsyncRequest.Handler() {
+      @Override
+      public void handle(HttpServletRequest r, HttpServletResponse response) throws IOException {
+        timeout(req);
+        // Headers are ignored and output is rejected
+        response.setHeader("ETag", "\"x\"");
+        response.setStatus(200);
+        try {
+          response.getOutputStream().write(1);
+        } catch (IOException ex) {
+          errors.add(ex);
+          throw ex;
+        }
+      }
+    });
+    queue.runAll();
+    Assert.assertEquals(1, errors.size());
+    Assert.assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, res.status);
+    Assert.assertNull(res.headers.get("ETag"));
+    Assert.assertEquals(0, res.body.size());
+    Assert.assertEquals(1, req.async.completions);
+  }
+
+  private static MockHttp.Request newRequest(MockHttp.Response res) {
+    MockHttp.Request req = new MockHttp.Request("GET", "/resources", "/12345.png");
+    req.asyncSupported = true;
+    req.response = res.proxy();
+    return req;
+  }
+
+  private static void timeout(MockHttp.Request req) throws IOException {
+    for (AsyncListener listener : req.async.listeners) {
+      listener.onTimeout(new AsyncEvent(req.async.proxy()));
+    }
+  }
+
+  /**
+   * Writes "ok" to the response.
+   */
+  private static final class Writer implements AsyncRequest.Handler {
+
+    boolean called = false;
+
+    @Override
+    public void handle(HttpServletRequest req, HttpServletResponse res) throws IOException {
+      this.called = true;
+      res.getOutputStream().write("ok".getBytes(StandardCharsets.US_ASCII));
+    }
+  }
+
+  /**
+   * Queues the tasks until they are run explicitly.
+   */
+  private static final class Queue implements Executor {
+
+    private final List<Runnable> _tasks = new ArrayList<Runnable>();
+
+    @Override
+    public void execute(Runnable command) {
+      this._tasks.add(command);
+    }
+
+    void runAll() {
+      for (Runnable task : this._tasks) {
+        task.run();
+      }
+      this._tasks.clear();
+    }
+  }
+
+}
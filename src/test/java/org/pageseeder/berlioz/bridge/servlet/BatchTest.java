@@ -0,0 +1,73 @@
+package org.pageseeder.berlioz.bridge.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.pageseeder.berlioz.bridge.cache.ImageResource;
+
+public final class BatchTest {
+
+  private static final ResourceTypes TYPES = new ResourceTypes(Arrays.asList(
+      new ResourceTypes.Type("png", "image/png", null, -1),
+      new ResourceTypes.Type("pdf", "application/pdf", null, -1)));
+
+  @Test
+  public void testParse() {
+    String[] values = new String[]{"1.png, 2.pdf", "/3", "1.png"};
+    Assert.assertEquals(Arrays.asList("/1.png", "/2.pdf", "/3"), Batch.parse(values, TYPES, 3));
+    Assert.assertEquals(Collections.emptyList(), Batch.parse(null, TYPES, 3));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testParseInvalid() {
+    Batch.parse(new String[]{"1.png,docs/2.png"}, TYPES, 10);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testParseTooMany() {
+    Batch.parse(new String[]{"1,2,3"}, TYPES, 2);
+  }
+
+  @Test
+  public void testWrite() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Batch batch = new Batch(out, "b");
+    Assert.assertEquals("multipart/mixed; boundary=b", batch.contentType());
+    batch.write("/1.png", "image/png", "\"x\"", toContent("abc"));
+    batch.write("/2.pdf", "application/pdf", null, toContent("de"));
+    batch.close();
+    String expected = "--b\r\n"
+        + "Content-Type: image/png\r\n"
+        + "Content-Location: /1.png\r\n"
+        + "ETag: \"x\"\r\n"
+        + "Content-Length: 3\r\n\r\n"
+        + "abc\r\n"
+        + "--b\r\n"
+        + "Content-Type: application/pdf\r\n"
+        + "Content-Location: /2.pdf\r\n"
+        + "Content-Length: 2\r\n\r\n"
+        + "de\r\n"
+        + "--b--\r\n";
+    Assert.assertEquals(expected, new String(out.toByteArray(), StandardCharsets.US_ASCII));
+    Assert.assertEquals(2, batch.parts());
+  }
+
+  @Test
+  public void testWriteEmpty() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Batch batch = new Batch(out, "b");
+    batch.close();
+    Assert.assertEquals("--b--\r\n", new String(out.toByteArray(), StandardCharsets.US_ASCII));
+  }
+
+  private static Content toContent(String data) {
+    byte[] bytes = data.getBytes(StandardCharsets.US_ASCII);
+    return Content.of(new ImageResource(0, bytes.length, "text/plain", bytes));
+  }
+
+}
@@ -0,0 +1,190 @@
+package org.pageseeder.berlioz.bridge.servlet;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.pageseeder.berlioz.bridge.auth.PSUser;
+import org.pageseeder.berlioz.bridge.auth.Sessions;
+import org.pageseeder.bridge.model.PSMember;
+
+public final class BridgeFilterTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private BridgeFilter filter;
+
+  /** The requests which reached the end of the chain */
+  private final List<HttpServletRequest> chained = new ArrayList<HttpServletRequest>();
+
+  @Before
+  public void setUp() throws IOException {
+    this.folder.newFolder("WEB-INF");
+  }
+
+  @After
+  public void tearDown() {
+    if (this.filter != null) {
+      this.filter.destroy();
+    }
+  }
+
+  @Test
+  public void testParametersOnlyReadOnLoginPost() throws Exception {
+    init("public-paths", "/login, /static/");
+    MockHttp.Request req = request("POST", "/static/upload.html");
+    req.parameters.put("rememberme", new String[]{"true"});
+    doFilter(req);
+    Assert.assertEquals(0, req.parameterReads);
+
+    // Not a login
+    req = request("GET", "/login");
+    req.parameters.put("rememberme", new String[]{"true"});
+    doFilter(req);
+    Assert.assertEquals(0, req.parameterReads);
+
+    req = request("POST", "/login");
+    req.parameters.put("rememberme", new String[]{"true"});
+    req.parameters.put("username", new String[]{"jsmith"});
+    req.parameters.put("password", new String[]{"secret"});
+    MockHttp.Response res = doFilter(req);
+    Assert.assertTrue(req.parameterReads > 0);
+    Assert.assertNotNull(res.cookie("pid"));
+    Assert.assertEquals(3, this.chained.size());
+  }
+
+  @Test
+  public void testRememberMeOnlyWithoutUser() throws Exception {
+    init("public-paths", "/static/");
+    PSUser user = user();
+    MockHttp.Request req = request("GET", "/index.html");
+    req.session = new MockHttp.Session();
+    req.session.attributes.put(Sessions.USER_ATTRIBUTE, user);
+    req.cookies.add(new Cookie("pid", "invalid:invalid"));
+    MockHttp.Response res = doFilter(req);
+    Assert.assertEquals(1, this.chained.size());
+    Assert.assertSame(user, req.attributes.get(Sessions.USER_ATTRIBUTE));
+    Assert.assertTrue(res.cookies.isEmpty());
+
+    // Public paths are served without logging in
+    req = request("GET", "/static/style.css");
+    req.cookies.add(new Cookie("pid", "invalid:invalid"));
+    res = doFilter(req);
+    Assert.assertEquals(2, this.chained.size());
+    Assert.assertNull(req.attributes.get(Sessions.USER_ATTRIBUTE));
+    Assert.assertEquals(0, req.sessionsCreated);
+    Assert.assertTrue(res.cookies.isEmpty());
+  }
+
+  @Test
+  public void testLogoutRemovesCookie() throws Exception {
+    init("public-paths", "/logout.html");
+    MockHttp.Request req = request("GET", "/logout.html");
+    req.cookies.add(new Cookie("pid", "invalid:invalid"));
+    MockHttp.Response res = doFilter(req);
+    Assert.assertEquals(1, this.chained.size());
+    Assert.assertEquals(0, res.cookie("pid").getMaxAge());
+  }
+
+  @Test
+  public void testUnauthorized() throws Exception {
+    init("public-paths", "/login");
+    MockHttp.Request req = request("GET", "/login");
+    doFilter(req);
+    Assert.assertEquals(0, req.sessionsCreated);
+
+    // The session is only created to store the protected URL
+    req = request("GET", "/index.html");
+    req.queryString = "a=b";
+    MockHttp.Response res = doFilter(req);
+    Assert.assertEquals(401, res.status);
+    Assert.assertEquals("FORM", res.headers.get("WWW-Authenticate"));
+    Assert.assertEquals(1, req.sessionsCreated);
+    Assert.assertNotNull(req.session.attributes.get(Sessions.REQUEST_ATTRIBUTE));
+    Assert.assertEquals(1, this.chained.size());
+  }
+
+  @Test
+  public void testForbidden() throws Exception {
+    Path rules = this.folder.getRoot().toPath().resolve("WEB-INF/config/authorization.rules");
+    Files.createDirectories(rules.getParent());
+    Files.write(rules, "/admin/ admin\n".getBytes(StandardCharsets.UTF_8));
+    init("authorization-rules", "/WEB-INF/config/authorization.rules");
+    MockHttp.Request req = request("GET", "/admin/index.html");
+    req.session = new MockHttp.Session();
+    req.session.attributes.put(Sessions.USER_ATTRIBUTE, user());
+    MockHttp.Response res = doFilter(req);
+    Assert.assertEquals(403, res.status);
+    Assert.assertTrue(this.chained.isEmpty());
+
+    req = request("GET", "/index.html");
+    req.session = new MockHttp.Session();
+    req.session.attributes.put(Sessions.USER_ATTRIBUTE, user());
+    Assert.assertEquals(200, doFilter(req).status);
+    Assert.assertEquals(1, this.chained.size());
+  }
+
+  @Test
+  public void testUserAttribute() throws Exception {
+    init("remember-me", "false", "authorize", "false");
+    PSUser user = user();
+    MockHttp.Request req = request("GET", "/index.html");
+    req.session = new MockHttp.Session();
+    req.session.attributes.put(Sessions.USER_ATTRIBUTE, user);
+    doFilter(req);
+    Assert.assertSame(user, req.attributes.get(Sessions.USER_ATTRIBUTE));
+    Assert.assertSame(user, Sessions.getUser(this.chained.get(0)));
+
+    // Resolved only, not required
+    req = request("GET", "/index.html");
+    Assert.assertEquals(200, doFilter(req).status);
+    Assert.assertNull(req.attributes.get(Sessions.USER_ATTRIBUTE));
+    Assert.assertEquals(0, req.sessionsCreated);
+  }
+
+  private void init(String... parameters) throws ServletException {
+    this.filter = new BridgeFilter();
+    this.filter.init(MockHttp.filterConfig(this.folder.getRoot(), parameters));
+  }
+
+  private MockHttp.Response doFilter(MockHttp.Request req) throws IOException, ServletException {
+    MockHttp.Response res = new MockHttp.Response();
+    this.filter.doFilter(req.proxy(), res.proxy(), new FilterChain() {
+      @Override
+      public void doFilter(ServletRequest request, ServletResponse response) {
+        BridgeFilterTest.this.chained.add((HttpServletRequest)request);
+      }
+    });
+    return res;
+  }
+
+  private static MockHttp.Request request(String method, String path) {
+    return new MockHttp.Request(method, path, null);
+  }
+
+  private static PSUser user() {
+    PSMember member = new PSMember();
+    member.setId(42L);
+    member.setUsername("jsmith");
+    return new PSUser(member, null, Arrays.asList("manager"));
+  }
+
+}
@@ -0,0 +1,46 @@
+package org.pageseeder.berlioz.bridge.servlet;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public final class ByteRangeTest {
+
+  @Test
+  public void testSingleRange() {
+    List<ByteRange> ranges = ByteRange.parse("bytes=0-499", 1000);
+    Assert.assertEquals(1, ranges.size());
+    Assert.assertEquals(0, ranges.get(0).start());
+    Assert.assertEquals(499, ranges.get(0).end());
+    Assert.assertEquals(500, ranges.get(0).length());
+    Assert.assertEquals("bytes 0-499/1000", ranges.get(0).toContentRange(1000));
+  }
+
+  @Test
+  public void testOpenAndSuffixRanges() {
+    List<ByteRange> ranges = ByteRange.parse("bytes=900-, -100", 1000);
+    Assert.assertEquals(2, ranges.size());
+    Assert.assertEquals("900-999", ranges.get(0).toString());
+    Assert.assertEquals("900-999", ranges.get(1).toString());
+    Assert.assertEquals("0-999", ByteRange.parse("bytes=-2000", 1000).get(0).toString());
+    Assert.assertEquals("500-999", ByteRange.parse("bytes=500-5000", 1000).get(0).toString());
+  }
+
+  @Test
+  public void testUnsatisfiable() {
+    Assert.assertTrue(ByteRange.parse("bytes=1000-", 1000).isEmpty());
+    Assert.assertTrue(ByteRange.parse("bytes=-0", 1000).isEmpty());
+    Assert.assertEquals(1, ByteRange.parse("bytes=2000-3000,0-0", 1000).size());
+  }
+
+  @Test
+  public void testInvalid() {
+    Assert.assertNull(ByteRange.parse("items=0-1", 1000));
+    Assert.assertNull(ByteRange.parse("bytes=abc", 1000));
+    Assert.assertNull(ByteRange.parse("bytes=5-1", 1000));
+    Assert.assertNull(ByteRange.parse("bytes=x-1", 1000));
+    Assert.assertNull(ByteRange.parse("bytes=0-1,2-3,4-5,6-7,8-9,0-1,2-3,4-5,6-7,8-9,0-1,2-3,4-5,6-7,8-9,0-1,2-3", 1000));
+  }
+
+}
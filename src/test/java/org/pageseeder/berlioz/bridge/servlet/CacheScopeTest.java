@@ -0,0 +1,41 @@
+package org.pageseeder.berlioz.bridge.servlet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public final class CacheScopeTest {
+
+  @Test
+  public void testToKey() {
+    Assert.assertEquals("/12345.png", CacheScope.toKey("/12345.png", null));
+    Assert.assertEquals("/12345@u42.png", CacheScope.toKey("/12345.png", "u42"));
+    Assert.assertEquals("/12345@u42", CacheScope.toKey("/12345", "u42"));
+  }
+
+  @Test
+  public void testToURIID() {
+    Assert.assertEquals("/12345.png", CacheScope.toURIID("/12345.png"));
+    Assert.assertEquals("/12345.png", CacheScope.toURIID("/12345@u42.png"));
+    Assert.assertEquals("/12345", CacheScope.toURIID("/12345@u42"));
+    Assert.assertEquals("/12345.png", CacheScope.toURIID("/12345@u42~200x0-contain-q85.png"));
+  }
+
+  @Test
+  public void testIsScoped() {
+    Assert.assertFalse(CacheScope.isScoped("/12345.png"));
+    Assert.assertTrue(CacheScope.isScoped("/12345@u42.png"));
+    Assert.assertTrue(CacheScope.toKey("/12345.png", "u42").startsWith(CacheScope.toPrefix("/12345")));
+    Assert.assertFalse(CacheScope.toKey("/123456.png", "u42").startsWith(CacheScope.toPrefix("/12345")));
+  }
+
+  @Test
+  public void testVariants() {
+    // Variants of scoped resources remain in the same scope
+    String key = CacheScope.toKey("/12345.png", "u42");
+    String variant = new ImageVariant(200, 0, ImageVariant.Fit.CONTAIN, 85).toKey(key);
+    Assert.assertTrue(CacheScope.isScoped(variant));
+    Assert.assertTrue(variant.startsWith(ImageVariant.toPrefix(key)));
+    Assert.assertFalse(variant.startsWith(ImageVariant.toPrefix("/12345.png")));
+  }
+
+}
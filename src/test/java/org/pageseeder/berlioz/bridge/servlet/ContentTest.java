@@ -0,0 +1,87 @@
+package org.pageseeder.berlioz.bridge.servlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public final class ContentTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testSendFile() throws IOException {
+    File file = newFile(40000);
+    MockHttp.Request req = new MockHttp.Request("GET", "/1.png", null);
+    MockHttp.Response res = new MockHttp.Response();
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      Content.of(file, channel, true).send("image/png", "\"x\"", 0, req.proxy(), res.proxy());
+    }
+    Assert.assertEquals("40000", res.headers.get("Content-Length"));
+    Assert.assertArrayEquals(Files.readAllBytes(file.toPath()), res.body.toByteArray());
+  }
+
+  @Test
+  public void testSendFileRange() throws IOException {
+    File file = newFile(40000);
+    MockHttp.Request req = new MockHttp.Request("GET", "/1.png", null);
+    req.headers.put("Range", "bytes=20000-20009");
+    MockHttp.Response res = new MockHttp.Response();
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      Content.of(file, channel, true).send("image/png", "\"x\"", 0, req.proxy(), res.proxy());
+    }
+    Assert.assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, res.status);
+    byte[] expected = Arrays.copyOfRange(Files.readAllBytes(file.toPath()), 20000, 20010);
+    Assert.assertArrayEquals(expected, res.body.toByteArray());
+  }
+
+  @Test
+  public void testSendFileByContainer() throws IOException {
+    File file = newFile(1000);
+    MockHttp.Request req = new MockHttp.Request("GET", "/1.png", null);
+    req.attributes.put("org.apache.tomcat.sendfile.support", Boolean.TRUE);
+    req.headers.put("Range", "bytes=100-199");
+    MockHttp.Response res = new MockHttp.Response();
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      Content.of(file, channel, true).send("image/png", "\"x\"", 0, req.proxy(), res.proxy());
+    }
+    Assert.assertEquals(file.getCanonicalPath(), req.attributes.get("org.apache.tomcat.sendfile.filename"));
+    Assert.assertEquals(Long.valueOf(100), req.attributes.get("org.apache.tomcat.sendfile.start"));
+    Assert.assertEquals(Long.valueOf(200), req.attributes.get("org.apache.tomcat.sendfile.end"));
+    Assert.assertEquals(0, res.body.size());
+  }
+
+  @Test
+  public void testSendFileDisabled() throws IOException {
+    File file = newFile(1000);
+    MockHttp.Request req = new MockHttp.Request("GET", "/1.png", null);
+    req.attributes.put("org.apache.tomcat.sendfile.support", Boolean.TRUE);
+    MockHttp.Response res = new MockHttp.Response();
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      Content.of(file, channel, false).send("image/png", null, 0, req.proxy(), res.proxy());
+    }
+    Assert.assertNull(req.attributes.get("org.apache.tomcat.sendfile.filename"));
+    Assert.assertEquals(1000, res.body.size());
+  }
+
+  private File newFile(int length) throws IOException {
+    byte[] data = new byte[length];
+    for (int i = 0; i < length; i++) {
+      data[i] = (byte)(i * 31);
+    }
+    File file = this.folder.newFile();
+    Files.write(file.toPath(), data);
+    return file;
+  }
+
+}
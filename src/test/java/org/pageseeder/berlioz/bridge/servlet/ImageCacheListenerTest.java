@@ -0,0 +1,88 @@
+package org.pageseeder.berlioz.bridge.servlet;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public final class ImageCacheListenerTest {
+
+  private static final byte[] PNG = "png-data".getBytes(StandardCharsets.US_ASCII);
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private MockUpstream upstream;
+
+  private ResourceProxyServletTest.TestServlet servlet;
+
+  @Before
+  public void setUp() throws Exception {
+    this.upstream = new MockUpstream();
+    this.servlet = new ResourceProxyServletTest.TestServlet(this.upstream);
+    this.servlet.init(MockHttp.config(this.folder.newFolder("webapp")));
+  }
+
+  @After
+  public void tearDown() {
+    this.servlet.destroy();
+    this.upstream.close();
+  }
+
+  @Test
+  public void testEvictReferenced() throws Exception {
+    this.upstream.respond(200, PNG, "Content-Type", "image/png", "Cache-Control", "max-age=3600");
+    get("/101.png");
+    get("/102.png");
+    Assert.assertEquals(2, this.upstream.count());
+
+    Path psml = this.folder.newFile("test.psml").toPath();
+    Files.write(psml, "<document><image src=\"a.png\" uriid=\"101\"/></document>".getBytes(StandardCharsets.UTF_8));
+    new ImageCacheListener(this.servlet).received(psml, StandardWatchEventKinds.ENTRY_MODIFY);
+
+    // Only the referenced image is fetched again
+    get("/101.png");
+    get("/102.png");
+    Assert.assertEquals(3, this.upstream.count());
+  }
+
+  @Test
+  public void testEvictNotFound() throws Exception {
+    this.upstream.respond(404, null);
+    get("/101.png");
+    get("/102.png");
+
+    Path psml = this.folder.newFile("test.psml").toPath();
+    Files.write(psml, "<document><xref href=\"files/a.pdf\" uriid=\"101\"/></document>".getBytes(StandardCharsets.UTF_8));
+    new ImageCacheListener(this.servlet).received(psml, StandardWatchEventKinds.ENTRY_CREATE);
+
+    // Only the referenced resource is no longer known to be missing
+    this.upstream.respond(200, PNG, "Content-Type", "image/png");
+    Assert.assertEquals(200, get("/101.png").status);
+    Assert.assertEquals(404, get("/102.png").status);
+    Assert.assertEquals(3, this.upstream.count());
+  }
+
+  @Test
+  public void testIgnoreDeletedDocument() throws IOException {
+    Path psml = this.folder.getRoot().toPath().resolve("deleted.psml");
+    new ImageCacheListener(this.servlet).received(psml, StandardWatchEventKinds.ENTRY_DELETE);
+    Assert.assertEquals(0, this.upstream.count());
+  }
+
+  private MockHttp.Response get(String path) throws Exception {
+    MockHttp.Request req = new MockHttp.Request("GET", "/resources", path);
+    MockHttp.Response res = new MockHttp.Response();
+    this.servlet.doGet(req.proxy(), res.proxy());
+    return res;
+  }
+
+}
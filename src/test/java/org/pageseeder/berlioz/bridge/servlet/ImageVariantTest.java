@@ -0,0 +1,148 @@
+package org.pageseeder.berlioz.bridge.servlet;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import javax.imageio.ImageIO;
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.pageseeder.berlioz.bridge.servlet.ImageVariant.Fit;
+
+public final class ImageVariantTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testToKey() {
+    ImageVariant variant = new ImageVariant(200, 0, Fit.CONTAIN, 0);
+    Assert.assertEquals("/123~200x0-contain.png", variant.toKey("/123.png"));
+    Assert.assertEquals("/123~200x0-contain", variant.toKey("/123"));
+    Assert.assertEquals("/123~200x0-contain-q85.jpg", new ImageVariant(200, 0, Fit.CONTAIN, 85).toKey("/123.jpg"));
+    Assert.assertTrue(variant.toKey("/123.png").startsWith(ImageVariant.toPrefix("/123.png")));
+    Assert.assertTrue(variant.toKey("/123.png").startsWith(ImageVariant.toPrefix("/123")));
+    Assert.assertFalse(variant.toKey("/1234.png").startsWith(ImageVariant.toPrefix("/123")));
+  }
+
+  @Test
+  public void testParse() {
+    int[] sizes = {100, 200, 400};
+    Assert.assertNull(ImageVariant.parse(request(), "image/png", sizes));
+    Assert.assertEquals("200x0-contain", ImageVariant.parse(request("width", "150"), "image/png", sizes).toString());
+    Assert.assertEquals("100x400-cover", ImageVariant.parse(request("width", "1", "height", "999", "fit", "cover"),
+        "image/png", sizes).toString());
+    // The quality only applies to JPEG images
+    Assert.assertEquals("200x0-contain", ImageVariant.parse(request("width", "200", "quality", "50"),
+        "image/png", sizes).toString());
+    Assert.assertEquals("200x0-contain-q50", ImageVariant.parse(request("width", "200", "quality", "50"),
+        "image/jpeg", sizes).toString());
+    Assert.assertEquals("200x0-contain-q85", ImageVariant.parse(request("width", "200"), "image/jpeg", sizes).toString());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testParseInvalid() {
+    ImageVariant.parse(request("width", "-1"), "image/png", ImageVariant.DEFAULT_SIZES);
+  }
+
+  @Test
+  public void testParseSizes() {
+    Assert.assertArrayEquals(new int[]{100, 200, 400}, ImageVariant.parseSizes("400, 100,200"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testParseSizesInvalid() {
+    ImageVariant.parseSizes("100, 0");
+  }
+
+  @Test
+  public void testMaxPixels() throws IOException {
+    File source = this.folder.newFile("source");
+    ImageIO.write(new BufferedImage(400, 200, BufferedImage.TYPE_INT_RGB), "png", source);
+    Path target = this.folder.newFile("target").toPath();
+    ImageVariant variant = new ImageVariant(100, 0, Fit.CONTAIN, 0);
+    try {
+      variant.resize(source, target, "image/png", 400*200-1);
+      Assert.fail("Image should be too large");
+    } catch (IOException ex) {
+      Assert.assertTrue(ex.getMessage().contains("400x200"));
+    }
+    Assert.assertEquals("image/png", variant.resize(source, target, "image/png", 400*200));
+  }
+
+  @Test(expected = IOException.class)
+  public void testUnsupported() throws IOException {
+    File source = this.folder.newFile("source");
+    Files.write(source.toPath(), new byte[]{1, 2, 3});
+    new ImageVariant(100, 0, Fit.CONTAIN, 0).resize(source, this.folder.newFile("target").toPath(), "image/png", 1000);
+  }
+
+  @Test
+  public void testIsResizable() {
+    Assert.assertTrue(ImageVariant.isResizable("image/png"));
+    Assert.assertTrue(ImageVariant.isResizable("image/JPEG"));
+    Assert.assertTrue(ImageVariant.isResizable("image/gif"));
+    Assert.assertFalse(ImageVariant.isResizable("image/svg+xml"));
+    Assert.assertFalse(ImageVariant.isResizable("application/pdf"));
+    Assert.assertFalse(ImageVariant.isResizable(null));
+  }
+
+  @Test
+  public void testContain() throws IOException {
+    BufferedImage image = resize(new ImageVariant(100, 100, Fit.CONTAIN, 85), 400, 200, "image/png");
+    Assert.assertEquals(100, image.getWidth());
+    Assert.assertEquals(50, image.getHeight());
+  }
+
+  @Test
+  public void testCover() throws IOException {
+    BufferedImage image = resize(new ImageVariant(100, 100, Fit.COVER, 85), 400, 200, "image/jpeg");
+    Assert.assertEquals(100, image.getWidth());
+    Assert.assertEquals(100, image.getHeight());
+  }
+
+  @Test
+  public void testFill() throws IOException {
+    BufferedImage image = resize(new ImageVariant(100, 100, Fit.FILL, 85), 400, 200, "image/png");
+    Assert.assertEquals(100, image.getWidth());
+    Assert.assertEquals(100, image.getHeight());
+  }
+
+  @Test
+  public void testWidthOnly() throws IOException {
+    BufferedImage image = resize(new ImageVariant(200, 0, Fit.CONTAIN, 85), 400, 100, "image/png");
+    Assert.assertEquals(200, image.getWidth());
+    Assert.assertEquals(50, image.getHeight());
+  }
+
+  @Test
+  public void testNoUpscale() throws IOException {
+    BufferedImage image = resize(new ImageVariant(800, 800, Fit.CONTAIN, 85), 400, 200, "image/png");
+    Assert.assertEquals(400, image.getWidth());
+    Assert.assertEquals(200, image.getHeight());
+  }
+
+  private BufferedImage resize(ImageVariant variant, int width, int height, String media) throws IOException {
+    File source = this.folder.newFile("source");
+    String format = media.substring(6);
+    ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), format, source);
+    Path target = this.folder.newFile("target").toPath();
+    Assert.assertEquals(media, variant.resize(source, target, media, Long.MAX_VALUE));
+    return ImageIO.read(target.toFile());
+  }
+
+  private static HttpServletRequest request(String... parameters) {
+    MockHttp.Request req = new MockHttp.Request("GET", "/resources", "/123.png");
+    for (int i = 0; i < parameters.length; i += 2) {
+      req.parameters.put(parameters[i], new String[]{parameters[i+1]});
+    }
+    return req.proxy();
+  }
+
+}
@@ -0,0 +1,359 @@
+package org.pageseeder.berlioz.bridge.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Minimal HTTP servlet requests and responses for tests, backed by dynamic proxies.
+ *
+ * <p>Only the methods used by this library are implemented, the others return default values.
+ */
+final class MockHttp {
+
+  private MockHttp() {
+  }
+
+  /**
+   * The state of a mock request.
+   */
+  static final class Request implements InvocationHandler {
+
+    String method = "GET";
+    String contextPath = "";
+    String servletPath = "";
+    String pathInfo = null;
+    String queryString = null;
+    final Map<String, String> headers = new HashMap<String, String>();
+    final Map<String, String[]> parameters = new HashMap<String, String[]>();
+    final Map<String, Object> attributes = new HashMap<String, Object>();
+    final List<Cookie> cookies = new ArrayList<Cookie>();
+    Session session = null;
+    int parameterReads = 0;
+    int sessionsCreated = 0;
+    boolean asyncSupported = false;
+    Async async = null;
+    private HttpServletRequest proxy = null;
+
+    /** The response returned by the asynchronous context */
+    HttpServletResponse response = null;
+
+    Request(String method, String servletPath, String pathInfo) {
+      this.method = method;
+      this.servletPath = servletPath;
+      this.pathInfo = pathInfo;
+    }
+
+    HttpServletRequest proxy() {
+      if (this.proxy == null) {
+        this.proxy = (HttpServletRequest)Proxy.newProxyInstance(MockHttp.class.getClassLoader(),
+            new Class<?>[]{HttpServletRequest.class}, this);
+      }
+      return this.proxy;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method m, Object[] args) {
+      switch (m.getName()) {
+        case "getMethod": return this.method;
+        case "getContextPath": return this.contextPath;
+        case "getServletPath": return this.servletPath;
+        case "getPathInfo": return this.pathInfo;
+        case "getQueryString": return this.queryString;
+        case "getRequestURI":
+          return this.contextPath+this.servletPath+(this.pathInfo != null? this.pathInfo : "");
+        case "getHeader": return this.headers.get(args[0]);
+        case "getDateHeader": {
+          String value = this.headers.get(args[0]);
+          return value != null? Long.parseLong(value) : -1L;
+        }
+        case "getParameter": {
+          this.parameterReads++;
+          String[] values = this.parameters.get(args[0]);
+          return values != null? values[0] : null;
+        }
+        case "getParameterValues":
+          this.parameterReads++;
+          return this.parameters.get(args[0]);
+        case "getParameterMap":
+          this.parameterReads++;
+          return this.parameters;
+        case "getAttribute": return this.attributes.get(args[0]);
+        case "setAttribute": this.attributes.put((String)args[0], args[1]); return null;
+        case "removeAttribute": this.attributes.remove(args[0]); return null;
+        case "getCookies": return this.cookies.isEmpty()? null : this.cookies.toArray(new Cookie[0]);
+        case "getSession": {
+          boolean create = args == null || (Boolean)args[0];
+          if (this.session == null && create) {
+            this.session = new Session();
+            this.sessionsCreated++;
+          }
+          return this.session != null? this.session.proxy() : null;
+        }
+        case "isAsyncSupported": return this.asyncSupported;
+        case "isAsyncStarted": return this.async != null;
+        case "startAsync":
+          if (!this.asyncSupported) throw new IllegalStateException("Not supported");
+          this.async = new Async(this.proxy(), this.response);
+          return this.async.proxy();
+        case "getAsyncContext": return this.async != null? this.async.proxy() : null;
+        case "hashCode": return System.identityHashCode(proxy);
+        case "equals": return proxy == args[0];
+        case "toString": return "MockRequest["+this.method+" "+this.servletPath+"]";
+        default: return defaultValue(m.getReturnType());
+      }
+    }
+  }
+
+  /**
+   * The state of a mock asynchronous context.
+   */
+  static final class Async implements InvocationHandler {
+
+    final HttpServletRequest request;
+    final HttpServletResponse response;
+    final List<AsyncListener> listeners = new ArrayList<AsyncListener>();
+    final CountDownLatch completed = new CountDownLatch(1);
+    long timeout = 0;
+    int completions = 0;
+    private AsyncContext proxy = null;
+
+    Async(HttpServletRequest request, HttpServletResponse response) {
+      this.request = request;
+      this.response = response;
+    }
+
+    synchronized AsyncContext proxy() {
+      if (this.proxy == null) {
+        this.proxy = (AsyncContext)Proxy.newProxyInstance(MockHttp.class.getClassLoader(),
+            new Class<?>[]{AsyncContext.class}, this);
+      }
+      return this.proxy;
+    }
+
+    /**
+     * Waits for the request to be completed.
+     */
+    boolean await(long ms) throws InterruptedException {
+      return this.completed.await(ms, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized Object invoke(Object proxy, Method m, Object[] args) {
+      switch (m.getName()) {
+        case "getRequest": return this.request;
+        case "getResponse": return this.response;
+        case "hasOriginalRequestAndResponse": return Boolean.TRUE;
+        case "setTimeout": this.timeout = (Long)args[0]; return null;
+        case "getTimeout": return this.timeout;
+        case "addListener": this.listeners.add((AsyncListener)args[0]); return null;
+        case "complete":
+          this.completions++;
+          this.completed.countDown();
+          return null;
+        case "hashCode": return System.identityHashCode(proxy);
+        case "equals": return proxy == args[0];
+        default: return defaultValue(m.getReturnType());
+      }
+    }
+  }
+
+  /**
+   * The state of a mock session.
+   */
+  static final class Session implements InvocationHandler {
+
+    final Map<String, Object> attributes = new HashMap<String, Object>();
+    boolean invalidated = false;
+
+    HttpSession proxy() {
+      return (HttpSession)Proxy.newProxyInstance(MockHttp.class.getClassLoader(),
+          new Class<?>[]{HttpSession.class}, this);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method m, Object[] args) {
+      switch (m.getName()) {
+        case "getAttribute": return this.attributes.get(args[0]);
+        case "setAttribute": this.attributes.put((String)args[0], args[1]); return null;
+        case "removeAttribute": this.attributes.remove(args[0]); return null;
+        case "invalidate": this.invalidated = true; this.attributes.clear(); return null;
+        case "hashCode": return System.identityHashCode(proxy);
+        case "equals": return proxy == args[0];
+        default: return defaultValue(m.getReturnType());
+      }
+    }
+  }
+
+  /**
+   * The state of a mock response.
+   */
+  static final class Response implements InvocationHandler {
+
+    int status = HttpServletResponse.SC_OK;
+    String contentType = null;
+    final Map<String, String> headers = new LinkedHashMap<String, String>();
+    final List<Cookie> cookies = new ArrayList<Cookie>();
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    boolean committed = false;
+
+    /** Runs when the first byte is written to the body */
+    Runnable onWrite = null;
+
+    HttpServletResponse proxy() {
+      return (HttpServletResponse)Proxy.newProxyInstance(MockHttp.class.getClassLoader(),
+          new Class<?>[]{HttpServletResponse.class}, this);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method m, Object[] args) throws IOException {
+      switch (m.getName()) {
+        case "setStatus": this.status = (Integer)args[0]; return null;
+        case "getStatus": return this.status;
+        case "sendError":
+          if (this.committed) throw new IllegalStateException("Committed");
+          this.status = (Integer)args[0];
+          this.committed = true;
+          return null;
+        case "setContentType": this.contentType = (String)args[0]; return null;
+        case "getContentType": return this.contentType;
+        case "setHeader":
+        case "addHeader": this.headers.put((String)args[0], (String)args[1]); return null;
+        case "setDateHeader":
+        case "addDateHeader": this.headers.put((String)args[0], args[1].toString()); return null;
+        case "setContentLength": this.headers.put("Content-Length", args[0].toString()); return null;
+        case "getHeader": return this.headers.get(args[0]);
+        case "containsHeader": return this.headers.containsKey(args[0]);
+        case "addCookie": this.cookies.add((Cookie)args[0]); return null;
+        case "isCommitted": return this.committed;
+        case "getOutputStream": return new ServletOutputStream() {
+          @Override
+          public void write(int b) {
+            commit();
+            Response.this.body.write(b);
+          }
+          @Override
+          public void write(byte[] b, int off, int len) {
+            commit();
+            Response.this.body.write(b, off, len);
+          }
+        };
+        case "hashCode": return System.identityHashCode(proxy);
+        case "equals": return proxy == args[0];
+        default: return defaultValue(m.getReturnType());
+      }
+    }
+
+    private void commit() {
+      this.committed = true;
+      if (this.onWrite != null) {
+        Runnable r = this.onWrite;
+        this.onWrite = null;
+        r.run();
+      }
+    }
+
+    /**
+     * @return the cookie with the specified name or <code>null</code>.
+     */
+    Cookie cookie(String name) {
+      for (Cookie cookie : this.cookies) {
+        if (cookie.getName().equals(name)) return cookie;
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Returns a servlet configuration whose context is rooted in the specified folder.
+   *
+   * @param root       The root of the web application
+   * @param parameters The initialisation parameters as name and value pairs
+   *
+   * @return the servlet configuration
+   */
+  static ServletConfig config(File root, String... parameters) {
+    return (ServletConfig)config(ServletConfig.class, root, parameters);
+  }
+
+  /**
+   * Returns a filter configuration whose context is rooted in the specified folder.
+   *
+   * @param root       The root of the web application
+   * @param parameters The initialisation parameters as name and value pairs
+   *
+   * @return the filter configuration
+   */
+  static FilterConfig filterConfig(File root, String... parameters) {
+    return (FilterConfig)config(FilterConfig.class, root, parameters);
+  }
+
+  private static Object config(Class<?> type, final File root, String... parameters) {
+    final Map<String, String> init = new HashMap<String, String>();
+    for (int i = 0; i < parameters.length; i += 2) {
+      init.put(parameters[i], parameters[i+1]);
+    }
+    final Map<String, Object> attributes = new HashMap<String, Object>();
+    final ServletContext context = (ServletContext)Proxy.newProxyInstance(MockHttp.class.getClassLoader(),
+        new Class<?>[]{ServletContext.class}, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method m, Object[] args) {
+        switch (m.getName()) {
+          case "getRealPath": return new File(root, (String)args[0]).getAbsolutePath();
+          case "getAttribute": return attributes.get(args[0]);
+          case "setAttribute": attributes.put((String)args[0], args[1]); return null;
+          case "removeAttribute": attributes.remove(args[0]); return null;
+          case "hashCode": return System.identityHashCode(proxy);
+          case "equals": return proxy == args[0];
+          default: return defaultValue(m.getReturnType());
+        }
+      }
+    });
+    return Proxy.newProxyInstance(MockHttp.class.getClassLoader(), new Class<?>[]{type}, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method m, Object[] args) {
+        switch (m.getName()) {
+          case "getInitParameter": return init.get(args[0]);
+          case "getInitParameterNames": return Collections.enumeration(init.keySet());
+          case "getServletContext": return context;
+          case "getServletName":
+          case "getFilterName": return "test";
+          case "hashCode": return System.identityHashCode(proxy);
+          case "equals": return proxy == args[0];
+          default: return defaultValue(m.getReturnType());
+        }
+      }
+    });
+  }
+
+  private static Object defaultValue(Class<?> type) {
+    if (type == boolean.class) return Boolean.FALSE;
+    if (type == int.class) return 0;
+    if (type == long.class) return 0L;
+    if (type == java.util.Enumeration.class) return Collections.enumeration(Collections.emptyList());
+    return null;
+  }
+
+}
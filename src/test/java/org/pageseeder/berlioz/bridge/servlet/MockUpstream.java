@@ -0,0 +1,155 @@
+package org.pageseeder.berlioz.bridge.servlet;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local HTTP server standing in for PageSeeder in tests.
+ *
+ * <p>Every request receives the response currently set and is recorded.
+ */
+final class MockUpstream implements Closeable, HttpHandler {
+
+  private final HttpServer _server;
+
+  /** The requests received so far */
+  final List<HttpExchange> requests = new ArrayList<HttpExchange>();
+
+  private int status = 200;
+  private Map<String, String> headers = new LinkedHashMap<String, String>();
+  private byte[] body = new byte[0];
+
+  /** The status of the responses to specific URIs */
+  private final Map<String, Integer> statuses = new HashMap<String, Integer>();
+
+  /** Responses are held until the gate is opened (may be <code>null</code>) */
+  private volatile CountDownLatch gate = null;
+
+  MockUpstream() throws IOException {
+    this._server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    this._server.createContext("/", this);
+    this._server.start();
+  }
+
+  /**
+   * Sets the response to all subsequent requests.
+   *
+   * @param status  The HTTP status
+   * @param body    The body of the response (may be <code>null</code>)
+   * @param headers The response headers as name and value pairs
+   */
+  synchronized void respond(int status, byte[] body, String... headers) {
+    this.status = status;
+    this.body = body != null? body : new byte[0];
+    this.headers = new LinkedHashMap<String, String>();
+    for (int i = 0; i < headers.length; i += 2) {
+      this.headers.put(headers[i], headers[i+1]);
+    }
+  }
+
+  /**
+   * Sets the status of the responses to all subsequent requests for the specified URI, which
+   * receive no body.
+   *
+   * @param uri    The path and query of the request
+   * @param status The HTTP status
+   */
+  synchronized void respond(String uri, int status) {
+    this.statuses.put(uri, status);
+  }
+
+  /**
+   * Holds all subsequent responses until {@link #open()} is called.
+   */
+  void hold() {
+    this.gate = new CountDownLatch(1);
+  }
+
+  /**
+   * Sends the responses which were held.
+   */
+  void open() {
+    CountDownLatch gate = this.gate;
+    this.gate = null;
+    if (gate != null) {
+      gate.countDown();
+    }
+  }
+
+  /**
+   * @return the number of requests received so far.
+   */
+  synchronized int count() {
+    return this.requests.size();
+  }
+
+  /**
+   * @return the last request received.
+   */
+  synchronized HttpExchange last() {
+    return this.requests.get(this.requests.size()-1);
+  }
+
+  /**
+   * @return the URL of the specified path on this server.
+   */
+  URL url(String path) {
+    try {
+      return new URL("http", "127.0.0.1", this._server.getAddress().getPort(), path);
+    } catch (MalformedURLException ex) {
+      throw new IllegalArgumentException(ex);
+    }
+  }
+
+  @Override
+  public void handle(HttpExchange exchange) throws IOException {
+    int status;
+    byte[] body;
+    synchronized (this) {
+      this.requests.add(exchange);
+      Integer override = this.statuses.get(exchange.getRequestURI().toString());
+      status = override != null? override : this.status;
+      body = override != null? new byte[0] : this.body;
+      for (Map.Entry<String, String> header : this.headers.entrySet()) {
+        exchange.getResponseHeaders().add(header.getKey(), header.getValue());
+      }
+    }
+    CountDownLatch gate = this.gate;
+    if (gate != null) {
+      try {
+        gate.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    boolean empty = status == 304 || body.length == 0;
+    exchange.sendResponseHeaders(status, empty? -1 : body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      if (!empty) {
+        out.write(body);
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    open();
+    this._server.stop(0);
+  }
+
+}
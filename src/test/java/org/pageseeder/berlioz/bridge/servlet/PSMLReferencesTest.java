@@ -0,0 +1,62 @@
+package org.pageseeder.berlioz.bridge.servlet;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public final class PSMLReferencesTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testParse() throws IOException {
+    Path psml = write("<document level=\"portable\">"
+        + "<documentinfo><uri id=\"100\" title=\"Test\"/></documentinfo>"
+        + "<section id=\"content\"><fragment id=\"1\">"
+        + "<para><image src=\"images/a.png\" uriid=\"101\"/></para>"
+        + "<para><image src=\"images/b.png\" uriid=\"102\"/><image src=\"external.png\"/></para>"
+        + "<para><xref href=\"files/c.pdf\" uriid=\"103\"/><xref href=\"other.psml\" uriid=\"104\"/></para>"
+        + "</fragment></section></document>");
+    PSMLReferences references = PSMLReferences.parse(psml);
+    Set<String> expected = new HashSet<String>(Arrays.asList("100", "101", "102", "103"));
+    Assert.assertEquals(expected, references.uriids());
+    Assert.assertEquals(3, references.files().size());
+    Assert.assertEquals("images/a.png", references.files().get("101"));
+    Assert.assertEquals("files/c.pdf", references.files().get("103"));
+    Assert.assertNull(references.files().get("100"));
+  }
+
+  @Test
+  public void testParseIncomplete() throws IOException {
+    Path psml = write("<document><image uriid=\"1\"/>");
+    // URI IDs found before the error are still returned
+    Assert.assertEquals(Collections.singleton("1"), PSMLReferences.parse(psml).uriids());
+  }
+
+  @Test
+  public void testExternalEntities() throws IOException {
+    Path secret = this.folder.newFile("secret.txt").toPath();
+    Files.write(secret, "42".getBytes(StandardCharsets.UTF_8));
+    Path psml = write("<!DOCTYPE document [<!ENTITY id SYSTEM \""+secret.toUri()+"\">]>"
+        + "<document><image uriid=\"&id;\"/><image uriid=\"1\"/></document>");
+    Assert.assertTrue(PSMLReferences.parse(psml).uriids().isEmpty());
+  }
+
+  private Path write(String xml) throws IOException {
+    Path psml = this.folder.newFile("test.psml").toPath();
+    Files.write(psml, xml.getBytes(StandardCharsets.UTF_8));
+    return psml;
+  }
+
+}
@@ -0,0 +1,45 @@
+package org.pageseeder.berlioz.bridge.servlet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public final class PublicPathsTest {
+
+  @Test
+  public void testNone() {
+    Assert.assertTrue(PublicPaths.parse(null).isEmpty());
+    Assert.assertTrue(PublicPaths.parse(" ").isEmpty());
+    Assert.assertFalse(PublicPaths.parse(null).matches("/"));
+  }
+
+  @Test
+  public void testExactAndPrefix() {
+    PublicPaths paths = PublicPaths.parse("/index.html, /static/\n/login");
+    Assert.assertFalse(paths.isEmpty());
+    Assert.assertTrue(paths.matches("/index.html"));
+    Assert.assertTrue(paths.matches("/login"));
+    Assert.assertFalse(paths.matches("/login/other"));
+    Assert.assertTrue(paths.matches("/static/"));
+    Assert.assertTrue(paths.matches("/static/css/style.css"));
+    Assert.assertFalse(paths.matches("/static"));
+    Assert.assertFalse(paths.matches("/private/index.html"));
+  }
+
+  @Test
+  public void testGlobs() {
+    PublicPaths paths = PublicPaths.parse("/**/*.css /images/*.png /a.b/**");
+    Assert.assertTrue(paths.matches("/style.css"));
+    Assert.assertTrue(paths.matches("/css/x/style.css"));
+    Assert.assertFalse(paths.matches("/style.css.html"));
+    Assert.assertTrue(paths.matches("/images/logo.png"));
+    Assert.assertFalse(paths.matches("/images/sub/logo.png"));
+    Assert.assertTrue(paths.matches("/a.b/c/d"));
+    Assert.assertFalse(paths.matches("/aXb/c"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalid() {
+    PublicPaths.parse("static/");
+  }
+
+}
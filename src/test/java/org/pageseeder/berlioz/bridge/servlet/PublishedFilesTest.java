@@ -0,0 +1,84 @@
+package org.pageseeder.berlioz.bridge.servlet;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public final class PublishedFilesTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testIndex() throws IOException {
+    Path psml = this.folder.newFolder("psml").toPath();
+    Path website = this.folder.newFolder("website").toPath();
+    Path document = Files.createDirectories(psml.resolve("docs")).resolve("test.psml");
+    String xml = "<document level=\"portable\">"
+        + "<section id=\"content\"><fragment id=\"1\">"
+        + "<para><image src=\"images/a%20b.png\" uriid=\"101\"/><image src=\"../../outside.png\" uriid=\"102\"/></para>"
+        + "<para><xref href=\"files/c.pdf\" uriid=\"103\"/><xref href=\"other.psml\" uriid=\"104\"/></para>"
+        + "<para><image src=\"http://example.org/d.png\" uriid=\"105\"/><image src=\"images/e.png\"/></para>"
+        + "</fragment></section></document>";
+    Files.write(document, xml.getBytes(StandardCharsets.UTF_8));
+    Path a = write(website.resolve("docs/images/a b.png"));
+    Path c = write(website.resolve("docs/files/c.pdf"));
+
+    PublishedFiles published = new PublishedFiles(psml, website);
+    published.index();
+    Assert.assertEquals(2, published.size());
+    Assert.assertEquals(a, published.forURIID("101"));
+    Assert.assertNull(published.forURIID("102"));
+    Assert.assertEquals(c, published.forURIID("103"));
+    Assert.assertNull(published.forURIID("104"));
+    Assert.assertNull(published.forURIID("105"));
+
+    // Files map back to their URI ID
+    Assert.assertEquals("101", published.toURIID(psml.resolve("docs/images/a b.png")));
+    Assert.assertEquals("103", published.toURIID(c));
+    Assert.assertNull(published.toURIID(psml.resolve("docs/test.psml")));
+    Assert.assertNull(published.toURIID(this.folder.getRoot().toPath().resolve("docs/files/c.pdf")));
+
+    // Files are checked on disk
+    Files.delete(c);
+    Assert.assertNull(published.forURIID("103"));
+  }
+
+  @Test
+  public void testUpdateMoved() throws IOException {
+    Path psml = this.folder.newFolder("psml").toPath();
+    Path document = psml.resolve("test.psml");
+    PublishedFiles published = new PublishedFiles(psml, psml);
+    Files.write(document, "<document><image src=\"a.png\" uriid=\"101\"/></document>".getBytes(StandardCharsets.UTF_8));
+    published.update(document);
+    Assert.assertEquals("101", published.toURIID(psml.resolve("a.png")));
+    Files.write(document, "<document><image src=\"b.png\" uriid=\"101\"/></document>".getBytes(StandardCharsets.UTF_8));
+    published.update(document);
+    Assert.assertNull(published.toURIID(psml.resolve("a.png")));
+    Assert.assertEquals("101", published.toURIID(psml.resolve("b.png")));
+  }
+
+  @Test
+  public void testForPath() throws IOException {
+    Path website = this.folder.newFolder("website").toPath();
+    Path a = write(website.resolve("docs/a.png"));
+    write(this.folder.getRoot().toPath().resolve("secret.png"));
+    PublishedFiles published = new PublishedFiles(this.folder.newFolder("psml").toPath(), website);
+    Assert.assertEquals(a, published.forPath("/docs/a.png"));
+    Assert.assertNull(published.forPath("/docs/b.png"));
+    Assert.assertNull(published.forPath("/docs"));
+    Assert.assertNull(published.forPath("/../secret.png"));
+  }
+
+  private static Path write(Path file) throws IOException {
+    Files.createDirectories(file.getParent());
+    return Files.write(file, new byte[]{1, 2, 3}).toAbsolutePath().normalize();
+  }
+
+}
@@ -0,0 +1,537 @@
+package org.pageseeder.berlioz.bridge.servlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.pageseeder.berlioz.bridge.auth.PSUser;
+import org.pageseeder.berlioz.bridge.auth.Sessions;
+import org.pageseeder.berlioz.bridge.cache.CacheManifest;
+import org.pageseeder.bridge.model.PSMember;
+import org.pageseeder.bridge.PSSession;
+
+public final class ResourceProxyServletTest {
+
+  private static final byte[] PNG = "png-data".getBytes(StandardCharsets.US_ASCII);
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private MockUpstream upstream;
+
+  private TestServlet servlet;
+
+  @Before
+  public void setUp() throws IOException {
+    this.upstream = new MockUpstream();
+  }
+
+  @After
+  public void tearDown() {
+    if (this.servlet != null) {
+      this.servlet.destroy();
+    }
+    this.upstream.close();
+  }
+
+  @Test
+  public void testRevalidateNotModified() throws Exception {
+    init("stale-while-revalidate", "0");
+    this.upstream.respond(200, PNG, "Content-Type", "image/png", "ETag", "\"v1\"", "Expires", httpDate(-60000));
+    Assert.assertEquals(200, get("/12345.png").status);
+    Assert.assertEquals(1, this.upstream.count());
+
+    // Stale, so revalidated before it is served
+    this.upstream.respond(304, null, "Cache-Control", "max-age=3600");
+    MockHttp.Response res = get("/12345.png");
+    Assert.assertEquals(200, res.status);
+    Assert.assertArrayEquals(PNG, res.body.toByteArray());
+    Assert.assertEquals(2, this.upstream.count());
+    Assert.assertEquals("\"v1\"", this.upstream.last().getRequestHeaders().getFirst("If-None-Match"));
+
+    // The expiry was refreshed by the 304
+    res = get("/12345.png");
+    Assert.assertArrayEquals(PNG, res.body.toByteArray());
+    Assert.assertEquals(2, this.upstream.count());
+  }
+
+  @Test
+  public void testRevalidateChanged() throws Exception {
+    init("stale-while-revalidate", "0");
+    this.upstream.respond(200, PNG, "Content-Type", "image/png", "Expires", httpDate(-60000));
+    get("/12345.png");
+    byte[] changed = "changed".getBytes(StandardCharsets.US_ASCII);
+    this.upstream.respond(200, changed, "Content-Type", "image/png", "Cache-Control", "max-age=3600");
+    Assert.assertArrayEquals(changed, get("/12345.png").body.toByteArray());
+    Assert.assertArrayEquals(changed, get("/12345.png").body.toByteArray());
+    Assert.assertEquals(2, this.upstream.count());
+  }
+
+  @Test
+  public void testStaleIfError() throws Exception {
+    init("stale-while-revalidate", "0", "stale-if-error", "3600");
+    this.upstream.respond(200, PNG, "Content-Type", "image/png", "Expires", httpDate(-60000));
+    get("/12345.png");
+
+    // PageSeeder fails, the stale resource is served
+    this.upstream.respond(500, null);
+    MockHttp.Response res = get("/12345.png");
+    Assert.assertEquals(200, res.status);
+    Assert.assertArrayEquals(PNG, res.body.toByteArray());
+    Assert.assertEquals(2, this.upstream.count());
+  }
+
+  @Test(expected = IOException.class)
+  public void testStaleIfErrorElapsed() throws Exception {
+    init("stale-while-revalidate", "0", "stale-if-error", "30");
+    this.upstream.respond(200, PNG, "Content-Type", "image/png", "Expires", httpDate(-60000));
+    get("/12345.png");
+    this.upstream.respond(500, null);
+    get("/12345.png");
+  }
+
+  @Test
+  public void testStaleWhileRevalidate() throws Exception {
+    init();
+    this.upstream.respond(200, PNG, "Content-Type", "image/png", "ETag", "\"v1\"", "Expires", httpDate(-60000));
+    get("/12345.png");
+
+    // Served immediately and revalidated in the background
+    this.upstream.respond(304, null, "Cache-Control", "max-age=3600");
+    Assert.assertArrayEquals(PNG, get("/12345.png").body.toByteArray());
+    long timeout = System.currentTimeMillis() + 5000;
+    while (this.upstream.count() < 2 && System.currentTimeMillis() < timeout) {
+      Thread.sleep(10);
+    }
+    Assert.assertEquals(2, this.upstream.count());
+  }
+
+  @Test
+  public void testFreshnessLifetimeDuration() throws Exception {
+    init("stale-while-revalidate", "0", "freshness-lifetime", "1s");
+    this.upstream.respond(200, PNG, "Content-Type", "image/png");
+    get("/12345.png");
+    get("/12345.png");
+    Assert.assertEquals(1, this.upstream.count());
+    Thread.sleep(1100);
+    get("/12345.png");
+    Assert.assertEquals(2, this.upstream.count());
+  }
+
+  @Test
+  public void testSharedCacheUnavailable() throws Exception {
+    File shared = this.folder.newFolder("shared");
+    init("shared-cache", shared.getPath());
+    // Replace the directory of lock files by a file so that resources cannot be locked
+    Path root = shared.toPath().resolve("127.0.0.1-"+this.upstream.url("/").getPort()+"/shared");
+    Files.delete(root.resolve("locks"));
+    Files.createFile(root.resolve("locks"));
+    this.upstream.respond(200, PNG, "Content-Type", "image/png", "Cache-Control", "max-age=3600");
+    MockHttp.Response res = get("/12345.png");
+    Assert.assertEquals(200, res.status);
+    Assert.assertArrayEquals(PNG, res.body.toByteArray());
+    Assert.assertEquals(1, this.upstream.count());
+  }
+
+  @Test
+  public void testBatch() throws Exception {
+    init();
+    this.upstream.respond(200, PNG, "Content-Type", "image/png", "Cache-Control", "max-age=3600");
+    get("/12345.png");
+    MockHttp.Request req = new MockHttp.Request("GET", "/resources", "/batch");
+    req.parameters.put("uriid", new String[]{"12345.png,12346.png"});
+    MockHttp.Response res = new MockHttp.Response();
+    this.servlet.doGet(req.proxy(), res.proxy());
+    Assert.assertTrue(res.contentType.startsWith("multipart/mixed; boundary="));
+    String body = new String(res.body.toByteArray(), StandardCharsets.US_ASCII);
+    Assert.assertTrue(body.contains("Content-Location: /12345.png"));
+    Assert.assertTrue(body.contains("Content-Location: /12346.png"));
+    Assert.assertEquals(2, this.upstream.count());
+  }
+
+  @Test
+  public void testBatchDisabled() throws Exception {
+    init("batch-size", "0");
+    Assert.assertEquals(404, get("/batch").status);
+  }
+
+  @Test
+  public void testWarmup() throws Exception {
+    Path manifest = this.folder.getRoot().toPath().resolve("WEB-INF/cache/resources.manifest");
+    Files.createDirectories(manifest.getParent());
+    CacheManifest.write(manifest, Arrays.asList("/12345.png", "/12346.png"));
+    this.upstream.respond(200, PNG, "Content-Type", "image/png", "Cache-Control", "max-age=3600");
+    init("warmup", "true", "warmup-timeout", "5");
+    Assert.assertEquals(2, this.upstream.count());
+    Assert.assertArrayEquals(PNG, get("/12345.png").body.toByteArray());
+    Assert.assertEquals(2, this.upstream.count());
+
+    // The most requested resources are listed when the servlet is destroyed
+    Files.delete(manifest);
+    this.servlet.destroy();
+    this.servlet = null;
+    Assert.assertTrue(CacheManifest.read(manifest).contains("/12345.png"));
+  }
+
+  @Test
+  public void testWarmupStoppedOnDestroy() throws Exception {
+    Path manifest = this.folder.getRoot().toPath().resolve("WEB-INF/cache/resources.manifest");
+    Files.createDirectories(manifest.getParent());
+    CacheManifest.write(manifest, Arrays.asList("/12345.png", "/12346.png", "/12347.png"));
+    this.upstream.respond(200, PNG, "Content-Type", "image/png", "Cache-Control", "max-age=3600");
+    this.upstream.hold();
+    init("warmup", "true", "warmup-threads", "1");
+    long timeout = System.currentTimeMillis() + 5000;
+    while (this.upstream.count() < 1 && System.currentTimeMillis() < timeout) {
+      Thread.sleep(10);
+    }
+
+    // The resources still waiting are not fetched once the servlet is destroyed
+    final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+    Thread.UncaughtExceptionHandler handler = Thread.getDefaultUncaughtExceptionHandler();
+    Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+      @Override
+      public void uncaughtException(Thread t, Throwable ex) {
+        errors.add(ex);
+      }
+    });
+    try {
+      this.servlet.destroy();
+      this.servlet = null;
+      this.upstream.open();
+      Thread.sleep(200);
+    } finally {
+      Thread.setDefaultUncaughtExceptionHandler(handler);
+    }
+    Assert.assertEquals(1, this.upstream.count());
+    Assert.assertEquals(Collections.emptyList(), errors);
+  }
+
+  @Test
+  public void testNotFound() throws Exception {
+    init();
+    this.upstream.respond(404, null);
+    Assert.assertEquals(404, get("/12345.png").status);
+    Assert.assertEquals(404, get("/12345.png").status);
+    Assert.assertEquals(1, this.upstream.count());
+    Assert.assertEquals(1, this.servlet.getSuppressedNotFound());
+
+    // Publishing clears the resources not found
+    this.servlet.clearNotFound();
+    this.upstream.respond(200, PNG, "Content-Type", "image/png");
+    Assert.assertEquals(200, get("/12345.png").status);
+    Assert.assertEquals(2, this.upstream.count());
+  }
+
+  @Test
+  public void testNotFoundInvalidate() throws Exception {
+    init();
+    this.upstream.respond(404, null);
+    get("/12345.png");
+    get("/12346.png");
+    this.servlet.invalidate("12345");
+    this.upstream.respond(200, PNG, "Content-Type", "image/png");
+    Assert.assertEquals(200, get("/12345.png").status);
+    Assert.assertEquals(404, get("/12346.png").status);
+    Assert.assertEquals(3, this.upstream.count());
+  }
+
+  @Test
+  public void testNotFoundExpiry() throws Exception {
+    init("not-found-cache-ttl", "1");
+    this.upstream.respond(404, null);
+    get("/12345.png");
+    get("/12345.png");
+    Assert.assertEquals(1, this.upstream.count());
+    Thread.sleep(1100);
+    get("/12345.png");
+    Assert.assertEquals(2, this.upstream.count());
+    Assert.assertEquals(1, this.servlet.getSuppressedNotFound());
+  }
+
+  @Test
+  public void testNotFoundDisabled() throws Exception {
+    init("not-found-cache-size", "0");
+    this.upstream.respond(404, null);
+    Assert.assertEquals(404, get("/12345.png").status);
+    Assert.assertEquals(404, get("/12345.png").status);
+    Assert.assertEquals(2, this.upstream.count());
+    Assert.assertEquals(0, this.servlet.getSuppressedNotFound());
+  }
+
+  @Test
+  public void testConnectionReleasedBeforeClient() throws Exception {
+    init("upstream-max-connections", "1", "upstream-queue-timeout", "1");
+    this.upstream.respond(200, PNG, "Content-Type", "image/png", "Cache-Control", "max-age=3600");
+
+    // While the first client is sent the resource, the only connection is available again
+    final int[] status = new int[1];
+    MockHttp.Request req = new MockHttp.Request("GET", "/resources", "/12345.png");
+    MockHttp.Response res = new MockHttp.Response();
+    res.onWrite = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          status[0] = get("/12346.png").status;
+        } catch (Exception ex) {
+          status[0] = -1;
+        }
+      }
+    };
+    this.servlet.doGet(req.proxy(), res.proxy());
+    Assert.assertArrayEquals(PNG, res.body.toByteArray());
+    Assert.assertEquals(200, status[0]);
+    Assert.assertEquals(2, this.upstream.count());
+  }
+
+  @Test
+  public void testAsync() throws Exception {
+    init("async", "true");
+    this.upstream.respond(200, PNG, "Content-Type", "image/png", "Cache-Control", "max-age=3600");
+
+    // Not cached, fetched on a thread of the pool
+    MockHttp.Response res = new MockHttp.Response();
+    MockHttp.Request req = getAsync("/12345.png", res);
+    Assert.assertNotNull(req.async);
+    Assert.assertTrue(req.async.await(5000));
+    Assert.assertEquals(200, res.status);
+    Assert.assertArrayEquals(PNG, res.body.toByteArray());
+    Assert.assertEquals(1, req.async.completions);
+
+    // Cached, served on the container thread
+    res = new MockHttp.Response();
+    req = getAsync("/12345.png", res);
+    Assert.assertNull(req.async);
+    Assert.assertArrayEquals(PNG, res.body.toByteArray());
+    Assert.assertEquals(1, this.upstream.count());
+  }
+
+  @Test
+  public void testAsyncNotFound() throws Exception {
+    init("async", "true");
+    this.upstream.respond(404, null);
+    MockHttp.Response res = new MockHttp.Response();
+    MockHttp.Request req = getAsync("/12345.png", res);
+    Assert.assertTrue(req.async.await(5000));
+    Assert.assertEquals(404, res.status);
+
+    // Remembered, so no need to release the container thread
+    res = new MockHttp.Response();
+    req = getAsync("/12345.png", res);
+    Assert.assertNull(req.async);
+    Assert.assertEquals(404, res.status);
+    Assert.assertEquals(1, this.upstream.count());
+  }
+
+  @Test
+  public void testAsyncBatch() throws Exception {
+    init("async", "true");
+    this.upstream.respond(200, PNG, "Content-Type", "image/png", "Cache-Control", "max-age=3600");
+    get("/12345.png");
+
+    // One resource is not cached, fetched on a thread of the pool
+    MockHttp.Response res = new MockHttp.Response();
+    MockHttp.Request req = new MockHttp.Request("GET", "/resources", "/batch");
+    req.parameters.put("uriid", new String[]{"12345.png,12346.png"});
+    req.asyncSupported = true;
+    req.response = res.proxy();
+    this.servlet.doGet(req.proxy(), req.response);
+    Assert.assertNotNull(req.async);
+    Assert.assertTrue(req.async.await(5000));
+    Assert.assertTrue(new String(res.body.toByteArray(), StandardCharsets.US_ASCII).contains("Content-Location: /12346.png"));
+    Assert.assertEquals(2, this.upstream.count());
+
+    // All cached, served on the container thread
+    res = new MockHttp.Response();
+    req = new MockHttp.Request("GET", "/resources", "/batch");
+    req.parameters.put("uriid", new String[]{"12345.png,12346.png"});
+    req.asyncSupported = true;
+    req.response = res.proxy();
+    this.servlet.doGet(req.proxy(), req.response);
+    Assert.assertNull(req.async);
+    Assert.assertEquals(2, this.upstream.count());
+  }
+
+  @Test
+  public void testAsyncTimeout() throws Exception {
+    init("async", "true");
+    this.upstream.respond(200, PNG, "Content-Type", "image/png", "Cache-Control", "max-age=3600");
+    this.upstream.hold();
+    MockHttp.Response res = new MockHttp.Response();
+    MockHttp.Request req = getAsync("/12345.png", res);
+
+    // The container times out the request while PageSeeder is slow
+    for (AsyncListener listener : req.async.listeners) {
+      listener.onTimeout(new AsyncEvent(req.async.proxy()));
+    }
+    Assert.assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, res.status);
+    Assert.assertEquals(1, req.async.completions);
+
+    // The worker neither writes to the response nor completes the request again
+    this.upstream.open();
+    long timeout = System.currentTimeMillis() + 5000;
+    while (this.upstream.count() < 1 && System.currentTimeMillis() < timeout) {
+      Thread.sleep(10);
+    }
+    Thread.sleep(200);
+    Assert.assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, res.status);
+    Assert.assertEquals(0, res.body.size());
+    Assert.assertEquals(1, req.async.completions);
+  }
+
+  @Test
+  public void testUserScopeAnonymousFirst() throws Exception {
+    init("scope", "user", "cache-control", "public, max-age=60");
+    this.upstream.respond(200, PNG, "Content-Type", "image/png", "Cache-Control", "max-age=3600");
+    MockHttp.Response res = get("/12345.png", user());
+    Assert.assertEquals(200, res.status);
+    Assert.assertEquals("public, max-age=60", res.headers.get("Cache-Control"));
+    Assert.assertNull(res.headers.get("Vary"));
+    Assert.assertEquals("/ps/uri/12345.png", this.upstream.last().getRequestURI().toString());
+
+    // Public, so served to anyone
+    Assert.assertArrayEquals(PNG, get("/12345.png").body.toByteArray());
+    Assert.assertEquals(1, this.upstream.count());
+  }
+
+  @Test
+  public void testUserScopeFallback() throws Exception {
+    init("scope", "user", "cache-control", "public, max-age=60");
+    this.upstream.respond(200, PNG, "Content-Type", "image/png", "Cache-Control", "max-age=3600");
+    this.upstream.respond("/ps/uri/12345.png", 403);
+    MockHttp.Response res = get("/12345.png", user());
+    Assert.assertEquals(200, res.status);
+    Assert.assertArrayEquals(PNG, res.body.toByteArray());
+    Assert.assertEquals("private, max-age=60", res.headers.get("Cache-Control"));
+    Assert.assertEquals("Cookie", res.headers.get("Vary"));
+    Assert.assertEquals(2, this.upstream.count());
+    Assert.assertEquals("/ps/uri/12345.png?user", this.upstream.last().getRequestURI().toString());
+
+    // Cached for the user without asking anonymously again
+    Assert.assertEquals(200, get("/12345.png", user()).status);
+    Assert.assertEquals(2, this.upstream.count());
+  }
+
+  @Test
+  public void testUserScopePublicMaxStale() throws Exception {
+    init("scope", "user", "stale-while-revalidate", "60");
+    this.upstream.respond(200, PNG, "Content-Type", "image/png", "ETag", "\"v1\"", "Expires", httpDate(-60000));
+    get("/12345.png", user());
+    Assert.assertEquals(1, this.upstream.count());
+
+    // Shared entries are not served stale by default
+    byte[] changed = "png-data-2".getBytes(StandardCharsets.US_ASCII);
+    this.upstream.respond(200, changed, "Content-Type", "image/png", "Cache-Control", "max-age=3600");
+    Thread.sleep(1100);
+    Assert.assertArrayEquals(changed, get("/12345.png").body.toByteArray());
+    Assert.assertEquals(2, this.upstream.count());
+  }
+
+  @Test
+  public void testUserScopeBatch() throws Exception {
+    init("scope", "user", "cache-control", "public, max-age=60");
+    this.upstream.respond(200, PNG, "Content-Type", "image/png", "Cache-Control", "max-age=3600");
+    this.upstream.respond("/ps/uri/12346.png", 403);
+    MockHttp.Request req = new MockHttp.Request("GET", "/resources", "/batch");
+    req.parameters.put("uriid", new String[]{"12345.png,12346.png"});
+    req.attributes.put(Sessions.USER_ATTRIBUTE, user());
+    MockHttp.Response res = new MockHttp.Response();
+    this.servlet.doGet(req.proxy(), res.proxy());
+    String body = new String(res.body.toByteArray(), StandardCharsets.US_ASCII);
+    Assert.assertTrue(body.contains("Content-Location: /12345.png"));
+    Assert.assertTrue(body.contains("Content-Location: /12346.png"));
+    Assert.assertEquals("private, max-age=60", res.headers.get("Cache-Control"));
+    Assert.assertEquals("Cookie", res.headers.get("Vary"));
+  }
+
+  @Test
+  public void testToPrivate() {
+    Assert.assertEquals("private, max-age=60", ResourceProxyServlet.toPrivate("public, max-age=60"));
+    Assert.assertEquals("private, max-age=60", ResourceProxyServlet.toPrivate("max-age=60, private"));
+    Assert.assertEquals("private", ResourceProxyServlet.toPrivate("public"));
+  }
+
+  private void init(String... parameters) throws ServletException {
+    this.servlet = new TestServlet(this.upstream);
+    this.servlet.init(MockHttp.config(this.folder.getRoot(), parameters));
+  }
+
+  private MockHttp.Response get(String path) throws Exception {
+    MockHttp.Request req = new MockHttp.Request("GET", "/resources", path);
+    MockHttp.Response res = new MockHttp.Response();
+    this.servlet.doGet(req.proxy(), res.proxy());
+    return res;
+  }
+
+  private MockHttp.Response get(String path, PSUser user) throws Exception {
+    MockHttp.Request req = new MockHttp.Request("GET", "/resources", path);
+    req.attributes.put(Sessions.USER_ATTRIBUTE, user);
+    MockHttp.Response res = new MockHttp.Response();
+    this.servlet.doGet(req.proxy(), res.proxy());
+    return res;
+  }
+
+  private static PSUser user() {
+    PSMember member = new PSMember();
+    member.setId(42L);
+    member.setUsername("jsmith");
+    return new PSUser(member, null, Collections.<String>emptyList());
+  }
+
+  private MockHttp.Request getAsync(String path, MockHttp.Response res) throws Exception {
+    MockHttp.Request req = new MockHttp.Request("GET", "/resources", path);
+    req.asyncSupported = true;
+    req.response = res.proxy();
+    this.servlet.doGet(req.proxy(), req.response);
+    return req;
+  }
+
+  private static String httpDate(long offset) {
+    SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+    return format.format(new Date(System.currentTimeMillis() + offset));
+  }
+
+  /**
+   * Fetches resources from the mock upstream server instead of PageSeeder.
+   */
+  static final class TestServlet extends ResourceProxyServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient MockUpstream _upstream;
+
+    TestServlet(MockUpstream upstream) {
+      this._upstream = upstream;
+    }
+
+    @Override
+    URL toURL(String key, PSSession session) {
+      // Resources fetched for a user are told apart by their query
+      return this._upstream.url("/ps/uri"+CacheScope.toURIID(key)+(CacheScope.isScoped(key)? "?user" : ""));
+    }
+  }
+
+}
@@ -0,0 +1,57 @@
+package org.pageseeder.berlioz.bridge.servlet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public final class ResourceTypesTest {
+
+  @Test
+  public void testParse() {
+    Map<String, String> types = ResourceTypes.parse(" PNG=image/png, pdf = Application/PDF ,");
+    Assert.assertEquals(2, types.size());
+    Assert.assertEquals("image/png", types.get("png"));
+    Assert.assertEquals("application/pdf", types.get("pdf"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testParseInvalid() {
+    ResourceTypes.parse("png=image/png, pdf");
+  }
+
+  @Test
+  public void testLookup() {
+    ResourceTypes types = newTypes("png=image/png, jpg=image/jpeg, jpeg=image/jpeg, pdf=application/pdf");
+    Assert.assertEquals("pdf", types.forPath("/ps/docs/report.PDF").extension());
+    Assert.assertNull(types.forPath("/ps/docs/page.html"));
+    Assert.assertNull(types.forPath("/ps/docs.pdf/page"));
+    Assert.assertEquals("jpg", types.forMedia("image/JPEG; charset=binary").extension());
+    Assert.assertNull(types.forMedia("text/html"));
+    Assert.assertNull(types.forMedia(null));
+    Assert.assertEquals(Arrays.asList(".png", ".jpg", ".jpeg", ".pdf"), types.extensions());
+  }
+
+  @Test
+  public void testIsURIID() {
+    ResourceTypes types = newTypes("png=image/png, pdf=application/pdf");
+    Assert.assertTrue(types.isURIID("/123"));
+    Assert.assertTrue(types.isURIID("/123.pdf"));
+    Assert.assertTrue(types.isURIID("/123.PNG"));
+    Assert.assertFalse(types.isURIID("/123.html"));
+    Assert.assertFalse(types.isURIID("/docs/123.pdf"));
+    Assert.assertFalse(types.isURIID("/abc.pdf"));
+  }
+
+  private static ResourceTypes newTypes(String spec) {
+    List<ResourceTypes.Type> types = new ArrayList<ResourceTypes.Type>();
+    for (Map.Entry<String, String> t : ResourceTypes.parse(spec).entrySet()) {
+      types.add(new ResourceTypes.Type(t.getKey(), t.getValue(), null, -1));
+    }
+    return new ResourceTypes(types);
+  }
+
+}
@@ -0,0 +1,63 @@
+package org.pageseeder.berlioz.bridge.servlet;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.pageseeder.berlioz.bridge.servlet.Upstream.Bulkhead;
+import org.pageseeder.berlioz.bridge.servlet.Upstream.Priority;
+
+public final class UpstreamTest {
+
+  @Test
+  public void testAcquireRelease() throws InterruptedException {
+    Bulkhead bulkhead = new Bulkhead(2);
+    Assert.assertTrue(bulkhead.acquire(Priority.INTERACTIVE, 0));
+    Assert.assertTrue(bulkhead.acquire(Priority.BACKGROUND, 0));
+    Assert.assertFalse(bulkhead.acquire(Priority.INTERACTIVE, 10));
+    Assert.assertEquals(2, bulkhead.used());
+    bulkhead.release();
+    Assert.assertTrue(bulkhead.acquire(Priority.INTERACTIVE, 0));
+  }
+
+  @Test
+  public void testInteractiveFirst() throws InterruptedException {
+    final Bulkhead bulkhead = new Bulkhead(1);
+    Assert.assertTrue(bulkhead.acquire(Priority.INTERACTIVE, 0));
+    final List<Priority> order = new CopyOnWriteArrayList<Priority>();
+    final CountDownLatch done = new CountDownLatch(2);
+    Thread background = waiter(bulkhead, Priority.BACKGROUND, order, done);
+    background.start();
+    Thread.sleep(50);
+    Thread interactive = waiter(bulkhead, Priority.INTERACTIVE, order, done);
+    interactive.start();
+    Thread.sleep(50);
+    bulkhead.release();
+    Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+    Assert.assertEquals(Priority.INTERACTIVE, order.get(0));
+    Assert.assertEquals(Priority.BACKGROUND, order.get(1));
+  }
+
+  private static Thread waiter(final Bulkhead bulkhead, final Priority priority, final List<Priority> order,
+      final CountDownLatch done) {
+    return new Thread() {
+      @Override
+      public void run() {
+        try {
+          if (bulkhead.acquire(priority, 5000)) {
+            order.add(priority);
+            Thread.sleep(20);
+            bulkhead.release();
+          }
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+        done.countDown();
+      }
+    };
+  }
+
+}
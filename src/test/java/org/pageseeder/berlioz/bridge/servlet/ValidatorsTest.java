@@ -0,0 +1,34 @@
+package org.pageseeder.berlioz.bridge.servlet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public final class ValidatorsTest {
+
+  @Test
+  public void testToETag() {
+    Assert.assertEquals("\"3e8-a\"", Validators.toETag(1000L, 10L));
+    Assert.assertNull(Validators.toETag(0L, 10L));
+    Assert.assertNull(Validators.toETag(1000L, -1L));
+  }
+
+  @Test
+  public void testMatches() {
+    String etag = Validators.toETag(1000L, 10L);
+    Assert.assertTrue(Validators.matches("*", etag));
+    Assert.assertTrue(Validators.matches("\"3e8-a\"", etag));
+    Assert.assertTrue(Validators.matches("W/\"3e8-a\"", etag));
+    Assert.assertTrue(Validators.matches("\"xyz\", \"3e8-a\"", etag));
+    Assert.assertFalse(Validators.matches("\"xyz\"", etag));
+    Assert.assertFalse(Validators.matches("\"3e8-b\"", etag));
+  }
+
+  @Test
+  public void testIsModifiedSince() {
+    Assert.assertFalse(Validators.isModifiedSince(1000L, 1000L));
+    Assert.assertFalse(Validators.isModifiedSince(1999L, 1000L));
+    Assert.assertTrue(Validators.isModifiedSince(2000L, 1000L));
+    Assert.assertFalse(Validators.isModifiedSince(1000L, 5000L));
+  }
+
+}